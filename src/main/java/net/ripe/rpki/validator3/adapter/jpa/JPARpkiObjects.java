@@ -29,27 +29,70 @@
  */
 package net.ripe.rpki.validator3.adapter.jpa;
 
+import com.google.common.collect.Iterables;
+import com.querydsl.core.BooleanBuilder;
 import com.querydsl.core.Tuple;
+import com.querydsl.core.types.dsl.Expressions;
+import com.querydsl.core.types.dsl.StringExpression;
+import com.querydsl.core.types.dsl.StringPath;
+import com.querydsl.jpa.JPAExpressions;
 import com.querydsl.jpa.impl.JPAQuery;
+import lombok.extern.slf4j.Slf4j;
+import net.ripe.rpki.validator3.domain.AuthorityChangeLog;
 import net.ripe.rpki.validator3.domain.CertificateTreeValidationRun;
 import net.ripe.rpki.validator3.domain.RpkiObject;
+import net.ripe.rpki.validator3.domain.RpkiObjectFilter;
 import net.ripe.rpki.validator3.domain.RpkiObjects;
+import net.ripe.rpki.validator3.domain.querydsl.QCertificateTreeValidationRun;
+import net.ripe.rpki.validator3.domain.querydsl.QRpkiObject;
+import net.ripe.rpki.validator3.util.Sha256IdIndex;
+import net.ripe.rpki.validator3.util.Sha256Key;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.transaction.Transactional;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 import static net.ripe.rpki.validator3.domain.querydsl.QCertificateTreeValidationRun.certificateTreeValidationRun;
 import static net.ripe.rpki.validator3.domain.querydsl.QRpkiObject.rpkiObject;
 
 @Repository
+@Slf4j
 @Transactional(Transactional.TxType.REQUIRED)
 public class JPARpkiObjects extends JPARepository<RpkiObject> implements RpkiObjects {
 
-    public JPARpkiObjects() {
+    /**
+     * Limits the number of parameters in a single query, databases do not cope well with huge IN lists.
+     */
+    private static final int IN_QUERY_CHUNK_SIZE = 500;
+
+    private final Sha256IdIndex sha256Index = new Sha256IdIndex();
+
+    private volatile boolean sha256IndexLoaded;
+
+    private final AuthorityChangeLog authorityChangeLog;
+
+    @Autowired
+    public JPARpkiObjects(AuthorityChangeLog authorityChangeLog) {
         super(rpkiObject);
+        this.authorityChangeLog = authorityChangeLog;
     }
 
     @Override
@@ -57,6 +100,206 @@ public class JPARpkiObjects extends JPARepository<RpkiObject> implements RpkiObj
         return Optional.ofNullable(select().where(rpkiObject.sha256.eq(sha256)).fetchFirst());
     }
 
+    @Override
+    public void add(RpkiObject object) {
+        super.add(object);
+        sha256Index.put(Sha256Key.of(object.getSha256()), object.getId());
+        recordAuthorityChange(object);
+    }
+
+    @Override
+    public void remove(RpkiObject object) {
+        super.remove(object);
+        final Sha256Key key = Sha256Key.of(object.getSha256());
+        final long id = object.getId();
+        // Until the removal is committed the object still exists for other transactions. A stale entry is harmless,
+        // it just results in a lookup by id that does not find anything.
+        afterCommit(() -> sha256Index.remove(key, id));
+        recordAuthorityChange(object);
+    }
+
+    private void recordAuthorityChange(RpkiObject object) {
+        final byte[] authorityKeyIdentifier = object.getAuthorityKeyIdentifier();
+        if (authorityKeyIdentifier != null) {
+            afterCommit(() -> authorityChangeLog.changed(authorityKeyIdentifier));
+        }
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Uses the in-memory SHA-256 index to find the identifiers of the objects, so hashes of objects that are not
+     * in the database do not need to be looked up at all and the others are retrieved by primary key.
+     */
+    @Override
+    public Map<Sha256Key, RpkiObject> findBySha256In(Collection<byte[]> sha256s) {
+        final List<Long> ids = findIdsInSha256Index(sha256s);
+        final Map<Sha256Key, RpkiObject> result = new HashMap<>(ids.size());
+        for (List<Long> chunk : Iterables.partition(ids, IN_QUERY_CHUNK_SIZE)) {
+            select().where(rpkiObject.id.in(chunk)).fetch().forEach(o -> result.put(Sha256Key.of(o.getSha256()), o));
+        }
+        return result;
+    }
+
+    /**
+     * Like {@link #findBySha256In(Collection)}, but only the identifier and hash of the objects are selected. The
+     * query confirms the objects exist, as removed objects stay in the index until the removal is committed.
+     */
+    @Override
+    public Map<Sha256Key, Long> findIdsBySha256In(Collection<byte[]> sha256s) {
+        final List<Long> ids = findIdsInSha256Index(sha256s);
+        final Map<Sha256Key, Long> result = new HashMap<>(ids.size());
+        for (List<Long> chunk : Iterables.partition(ids, IN_QUERY_CHUNK_SIZE)) {
+            queryFactory.select(rpkiObject.id, rpkiObject.sha256).from(rpkiObject).where(rpkiObject.id.in(chunk)).fetch()
+                .forEach(t -> result.put(Sha256Key.of(t.get(rpkiObject.sha256)), t.get(rpkiObject.id)));
+        }
+        return result;
+    }
+
+    /**
+     * The index is loaded on the calling thread, the returned predicate only consults the in-memory index.
+     */
+    @Override
+    public Predicate<byte[]> isStoredSha256() {
+        loadSha256Index();
+        return sha256 -> sha256Index.get(Sha256Key.of(sha256)) != Sha256IdIndex.NOT_FOUND;
+    }
+
+    private List<Long> findIdsInSha256Index(Collection<byte[]> sha256s) {
+        loadSha256Index();
+        final List<Long> ids = new ArrayList<>(sha256s.size());
+        for (byte[] sha256 : sha256s) {
+            final long id = sha256Index.get(Sha256Key.of(sha256));
+            if (id != Sha256IdIndex.NOT_FOUND) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * The locations are changed with batched JDBC statements on the element collection table. Pending changes are
+     * flushed first, and instances of the changed objects are detached afterwards so their locations are reloaded.
+     */
+    @Override
+    public void updateLocations(Collection<Pair<Long, String>> removed, Collection<Pair<Long, String>> added) {
+        entityManager.flush();
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            executeBatch(connection, "DELETE FROM rpki_object_locations WHERE rpki_object_id = ? AND locations = ?", removed);
+            executeBatch(connection, "INSERT INTO rpki_object_locations (rpki_object_id, locations) SELECT ?, ? " +
+                "WHERE NOT EXISTS (SELECT 1 FROM rpki_object_locations WHERE rpki_object_id = ? AND locations = ?)", added);
+        });
+        Stream.concat(removed.stream(), added.stream())
+            .map(Pair::getLeft)
+            .distinct()
+            .forEach(id -> entityManager.detach(entityManager.getReference(RpkiObject.class, id)));
+    }
+
+    private static final String UNREFERENCED =
+        "NOT EXISTS (SELECT 1 FROM rpki_object_locations l WHERE l.rpki_object_id = o.id) " +
+        "AND NOT EXISTS (SELECT 1 FROM validation_run_validated_objects v WHERE v.rpki_object_id = o.id)";
+
+    /**
+     * Candidates are selected first, so the removed objects can also be removed from the SHA-256 index. The delete
+     * statement checks again that the objects are unreferenced, as a concurrent transaction may have added a location
+     * in the meantime.
+     */
+    @Override
+    public int removeUnreferenced(int limit) {
+        entityManager.flush();
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            final List<Triple<Long, byte[], byte[]>> candidates = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement("SELECT o.id, o.sha256, o.authority_key_identifier FROM rpki_object o WHERE " + UNREFERENCED + " LIMIT ?")) {
+                statement.setInt(1, limit);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        candidates.add(Triple.of(resultSet.getLong(1), resultSet.getBytes(2), resultSet.getBytes(3)));
+                    }
+                }
+            }
+            if (candidates.isEmpty()) {
+                return 0;
+            }
+
+            int removed = 0;
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM rpki_object o WHERE o.id = ? AND " + UNREFERENCED)) {
+                for (Triple<Long, byte[], byte[]> candidate : candidates) {
+                    statement.setLong(1, candidate.getLeft());
+                    statement.addBatch();
+                }
+                final int[] counts = statement.executeBatch();
+                for (int i = 0; i < counts.length; ++i) {
+                    if (counts[i] > 0) {
+                        final long id = candidates.get(i).getLeft();
+                        final Sha256Key key = Sha256Key.of(candidates.get(i).getMiddle());
+                        final byte[] authorityKeyIdentifier = candidates.get(i).getRight();
+                        afterCommit(() -> sha256Index.remove(key, id));
+                        if (authorityKeyIdentifier != null) {
+                            afterCommit(() -> authorityChangeLog.changed(authorityKeyIdentifier));
+                        }
+                        removed++;
+                    }
+                }
+            }
+            return removed;
+        });
+    }
+
+    /**
+     * Every pair of parameters of the statement is bound to the object id and location of the row.
+     */
+    private static void executeBatch(Connection connection, String sql, Collection<Pair<Long, String>> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            final int parameterCount = statement.getParameterMetaData().getParameterCount();
+            int count = 0;
+            for (Pair<Long, String> row : rows) {
+                for (int i = 1; i < parameterCount; i += 2) {
+                    statement.setLong(i, row.getLeft());
+                    statement.setString(i + 1, row.getRight());
+                }
+                statement.addBatch();
+                if (++count % IN_QUERY_CHUNK_SIZE == 0) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * The index is loaded once and then kept up-to-date by {@link #add(RpkiObject)}, {@link #remove(RpkiObject)} and
+     * {@link #removeUnreferenced(int)}, so it stays warm between validation runs. Objects are added to the index as soon as they are persisted, so an
+     * object that is not in the index is not in the database either.
+     */
+    private void loadSha256Index() {
+        if (sha256IndexLoaded) {
+            return;
+        }
+        synchronized (sha256Index) {
+            if (!sha256IndexLoaded) {
+                try (Stream<Tuple> hashes = stream(queryFactory.select(rpkiObject.id, rpkiObject.sha256).from(rpkiObject))) {
+                    hashes.forEach(t -> sha256Index.put(Sha256Key.of(t.get(rpkiObject.sha256)), t.get(rpkiObject.id)));
+                }
+                log.info("Loaded the SHA-256 index of {} RPKI objects", sha256Index.size());
+                sha256IndexLoaded = true;
+            }
+        }
+    }
+
     @Override
     public Stream<RpkiObject> all() {
         return stream(select());
@@ -87,6 +330,55 @@ public class JPARpkiObjects extends JPARepository<RpkiObject> implements RpkiObj
             .map(x -> Pair.of(x.get(0, CertificateTreeValidationRun.class), x.get(1, RpkiObject.class)));
     }
 
+    @Override
+    public Stream<Pair<String, RpkiObject>> findCurrentlyValidated(RpkiObjectFilter filter) {
+        QCertificateTreeValidationRun validationRun = new QCertificateTreeValidationRun("validationRun");
+        QRpkiObject validatedObject = new QRpkiObject("validatedObject");
+        StringPath location = Expressions.stringPath("location");
+        // Objects that lost all their locations are still listed, they have no location to order by
+        StringExpression orderLocation = Expressions.stringTemplate("coalesce({0}, '')", location);
+
+        BooleanBuilder validated = new BooleanBuilder(validatedObject.id.eq(rpkiObject.id))
+            .and(validationRun.id.in(JPAValidationRuns.latestSuccessfulValidationRuns()));
+        if (filter.getTrustAnchorId() != null) {
+            validated.and(validationRun.trustAnchor.id.eq(filter.getTrustAnchorId()));
+        }
+
+        BooleanBuilder where = new BooleanBuilder(JPAExpressions
+            .selectOne()
+            .from(validationRun)
+            .join(validationRun.validatedObjects, validatedObject)
+            .where(validated)
+            .exists());
+        if (filter.getType() != null) {
+            where.and(rpkiObject.type.eq(filter.getType()));
+        }
+        if (filter.getLocationPrefix() != null) {
+            where.and(location.startsWith(filter.getLocationPrefix()));
+        }
+        if (filter.getAfterLocation() != null && filter.getAfterId() != null) {
+            where.and(orderLocation.gt(filter.getAfterLocation())
+                .or(orderLocation.eq(filter.getAfterLocation()).and(rpkiObject.id.gt(filter.getAfterId()))));
+        }
+
+        JPAQuery<Tuple> query = queryFactory
+            .select(orderLocation, rpkiObject)
+            .from(rpkiObject)
+            .leftJoin(rpkiObject.locations, location)
+            .where(where)
+            .orderBy(orderLocation.asc(), rpkiObject.id.asc())
+            .limit(filter.getLimit());
+        return stream(query).map(x -> {
+            RpkiObject object = x.get(1, RpkiObject.class);
+            // The summary of a ROA includes its prefixes, which can no longer be loaded once the object is detached
+            if (object.getType() == RpkiObject.Type.ROA) {
+                Hibernate.initialize(object.getRoaPrefixes());
+            }
+            entityManager.detach(object);
+            return Pair.of(x.get(0, String.class), object);
+        });
+    }
+
     @Override
     public Stream<Pair<CertificateTreeValidationRun, RpkiObject>> findCurrentlyValidated() {
         JPAQuery<Tuple> query = queryFactory
@@ -102,4 +394,10 @@ public class JPARpkiObjects extends JPARepository<RpkiObject> implements RpkiObj
     public void merge(RpkiObject object) {
         entityManager.merge(object);
     }
+
+    @Override
+    public void flushAndDetach(Collection<RpkiObject> objects) {
+        entityManager.flush();
+        objects.forEach(entityManager::detach);
+    }
 }
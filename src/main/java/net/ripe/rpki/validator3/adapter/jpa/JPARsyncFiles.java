@@ -0,0 +1,86 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.adapter.jpa;
+
+import com.google.common.collect.Iterables;
+import net.ripe.rpki.validator3.domain.RsyncFile;
+import net.ripe.rpki.validator3.domain.RsyncFiles;
+import org.springframework.stereotype.Repository;
+
+import javax.transaction.Transactional;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static net.ripe.rpki.validator3.domain.querydsl.QRsyncFile.rsyncFile;
+
+@Repository
+@Transactional(Transactional.TxType.REQUIRED)
+public class JPARsyncFiles extends JPARepository<RsyncFile> implements RsyncFiles {
+
+    /**
+     * Limits the number of parameters in a single query, databases do not cope well with huge IN lists.
+     */
+    private static final int IN_QUERY_CHUNK_SIZE = 500;
+
+    public JPARsyncFiles() {
+        super(rsyncFile);
+    }
+
+    @Override
+    public void addAll(Collection<RsyncFile> files) {
+        files.forEach(this::add);
+        entityManager.flush();
+        files.forEach(entityManager::detach);
+    }
+
+    @Override
+    public void removeAll(Collection<RsyncFile> files) {
+        final List<Long> ids = files.stream().map(RsyncFile::getId).collect(Collectors.toList());
+        for (List<Long> chunk : Iterables.partition(ids, IN_QUERY_CHUNK_SIZE)) {
+            queryFactory.delete(rsyncFile).where(rsyncFile.id.in(chunk)).execute();
+        }
+    }
+
+    @Override
+    public Map<String, RsyncFile> findByLocationPrefix(String locationPrefix) {
+        final Map<String, RsyncFile> result = new HashMap<>();
+        try (Stream<RsyncFile> files = stream(select().where(rsyncFile.location.startsWith(locationPrefix)))) {
+            files.forEach(file -> {
+                entityManager.detach(file);
+                result.put(file.getLocation(), file);
+            });
+        }
+        return result;
+    }
+}
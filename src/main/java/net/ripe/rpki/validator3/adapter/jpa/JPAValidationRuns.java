@@ -29,11 +29,16 @@
  */
 package net.ripe.rpki.validator3.adapter.jpa;
 
+import com.querydsl.core.types.dsl.BooleanExpression;
+import com.querydsl.core.types.dsl.NumberPath;
 import com.querydsl.core.types.dsl.PathBuilder;
 import com.querydsl.jpa.JPAExpressions;
 import com.querydsl.jpa.JPQLQuery;
 import com.querydsl.jpa.impl.JPAQuery;
+import net.ripe.rpki.validator3.domain.CertificateTreeValidationRun;
 import net.ripe.rpki.validator3.domain.RpkiRepository;
+import net.ripe.rpki.validator3.domain.RrdpRepositoryValidationRun;
+import net.ripe.rpki.validator3.domain.RsyncRepositoryValidationRun;
 import net.ripe.rpki.validator3.domain.TrustAnchor;
 import net.ripe.rpki.validator3.domain.TrustAnchorValidationRun;
 import net.ripe.rpki.validator3.domain.ValidationRun;
@@ -46,6 +51,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.transaction.Transactional;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
@@ -127,6 +134,62 @@ public class JPAValidationRuns extends JPARepository<ValidationRun> implements V
         }
     }
 
+    @Override
+    public int removeOldValidationRuns(int keep, int limit) {
+        final List<Long> ids = new ArrayList<>();
+        ids.addAll(findOldValidationRuns(TrustAnchorValidationRun.class, validationRun.as(QTrustAnchorValidationRun.class).trustAnchor.id, keep, limit - ids.size()));
+        ids.addAll(findOldValidationRuns(CertificateTreeValidationRun.class, validationRun.as(QCertificateTreeValidationRun.class).trustAnchor.id, keep, limit - ids.size()));
+        ids.addAll(findOldValidationRuns(RrdpRepositoryValidationRun.class, validationRun.as(QRrdpRepositoryValidationRun.class).rpkiRepository.id, keep, limit - ids.size()));
+        // A single rsync validation run covers all rsync repositories, so these runs have no owner
+        ids.addAll(findOldValidationRuns(RsyncRepositoryValidationRun.class, null, keep, limit - ids.size()));
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        return (int) queryFactory.delete(validationRun).where(validationRun.id.in(ids)).execute();
+    }
+
+    /**
+     * Finds the oldest validation runs of the given type for owners that have more than <code>keep</code> runs.
+     */
+    private List<Long> findOldValidationRuns(Class<? extends ValidationRun> type, NumberPath<Long> owner, int keep, int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        final BooleanExpression ofType = validationRun.instanceOf(type);
+        final List<Long> owners = owner == null
+            ? Collections.singletonList(null)
+            : queryFactory.select(owner).from(validationRun).where(ofType).groupBy(owner).having(validationRun.count().gt(keep)).fetch();
+
+        final List<Long> result = new ArrayList<>();
+        for (Long ownerId : owners) {
+            final BooleanExpression ofOwner = owner == null ? ofType : ofType.and(owner.eq(ownerId));
+            final Long oldestKept = queryFactory.select(validationRun.id).from(validationRun)
+                .where(ofOwner)
+                .orderBy(validationRun.id.desc())
+                .offset(keep - 1)
+                .fetchFirst();
+            if (oldestKept == null) {
+                continue;
+            }
+            final Long latestSuccessful = queryFactory.select(validationRun.id.max()).from(validationRun)
+                .where(ofOwner, validationRun.status.eq(ValidationRun.Status.SUCCEEDED))
+                .fetchOne();
+            result.addAll(queryFactory.select(validationRun.id).from(validationRun)
+                .where(
+                    ofOwner,
+                    validationRun.id.lt(oldestKept),
+                    validationRun.status.ne(ValidationRun.Status.RUNNING),
+                    latestSuccessful == null ? null : validationRun.id.ne(latestSuccessful)
+                )
+                .orderBy(validationRun.id.asc())
+                .limit(limit - result.size())
+                .fetch());
+            if (result.size() >= limit) {
+                break;
+            }
+        }
+        return result;
+    }
 
     protected <T extends ValidationRun> JPAQuery<T> select(Class<T> type) {
         return queryFactory.selectFrom(new PathBuilder<>(type, "validationRun"));
@@ -41,6 +41,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 public class QuartzCertificateTreeValidationJob implements Job {
 
     public static final String TRUST_ANCHOR_ID_KEY = "trustAnchorId";
+    public static final String FULL_VALIDATION_KEY = "fullValidation";
 
     @Autowired
     private CertificateTreeValidationService validationService;
@@ -49,9 +50,20 @@ public class QuartzCertificateTreeValidationJob implements Job {
     @Setter
     private long trustAnchorId;
 
+    /**
+     * Set by the periodic trigger. Validations triggered by repository changes only revalidate what changed.
+     */
+    @Getter
+    @Setter
+    private boolean fullValidation;
+
     @Override
     public void execute(JobExecutionContext context) throws JobExecutionException {
-        validationService.validate(trustAnchorId);
+        if (fullValidation) {
+            validationService.validate(trustAnchorId);
+        } else {
+            validationService.validateIncrementally(trustAnchorId);
+        }
     }
 
     static JobDetail buildJob(TrustAnchor trustAnchor) {
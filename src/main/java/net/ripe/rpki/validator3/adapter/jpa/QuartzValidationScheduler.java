@@ -66,7 +66,16 @@ public class QuartzValidationScheduler {
                     .withSchedule(SimpleScheduleBuilder.repeatMinutelyForever(10))
                     .build()
             );
-            scheduler.addJob(QuartzCertificateTreeValidationJob.buildJob(trustAnchor), true);
+            JobDetail certificateTreeValidationJob = QuartzCertificateTreeValidationJob.buildJob(trustAnchor);
+            scheduler.addJob(certificateTreeValidationJob, true);
+            scheduler.scheduleJob(
+                TriggerBuilder.newTrigger()
+                    .forJob(certificateTreeValidationJob)
+                    .usingJobData(QuartzCertificateTreeValidationJob.FULL_VALIDATION_KEY, true)
+                    .startAt(DateBuilder.futureDate(1, DateBuilder.IntervalUnit.HOUR))
+                    .withSchedule(SimpleScheduleBuilder.repeatHourlyForever(1))
+                    .build()
+            );
         } catch (SchedulerException ex) {
             throw new RuntimeException(ex);
         }
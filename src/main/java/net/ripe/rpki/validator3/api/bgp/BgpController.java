@@ -0,0 +1,118 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.api.bgp;
+
+import lombok.extern.slf4j.Slf4j;
+import net.ripe.ipresource.Asn;
+import net.ripe.ipresource.IpRange;
+import net.ripe.rpki.validator3.api.Api;
+import net.ripe.rpki.validator3.api.ApiCommand;
+import net.ripe.rpki.validator3.api.ApiError;
+import net.ripe.rpki.validator3.api.ApiResponse;
+import net.ripe.rpki.validator3.domain.RouteOriginValidator;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Route origin validation (RFC 6811) of BGP announcements against the current validated ROA prefixes.
+ */
+@RestController
+@RequestMapping(path = "/bgp", produces = Api.API_MIME_TYPE)
+@Slf4j
+public class BgpController {
+
+    private final RouteOriginValidator routeOriginValidator;
+
+    @Autowired
+    public BgpController(RouteOriginValidator routeOriginValidator) {
+        this.routeOriginValidator = routeOriginValidator;
+    }
+
+    @GetMapping(path = "/validity")
+    public ResponseEntity<ApiResponse<BgpValidityResource>> validity(@RequestParam("asn") String asn, @RequestParam("prefix") String prefix) {
+        try {
+            return ResponseEntity.ok(ApiResponse.data(validate(BgpRoute.builder().asn(asn).prefix(prefix).build())));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(ApiError.of(HttpStatus.BAD_REQUEST, e.getMessage())));
+        }
+    }
+
+    @PostMapping(path = "/validity", consumes = Api.API_MIME_TYPE)
+    public ResponseEntity<ApiResponse<List<BgpValidityResource>>> validity(@RequestBody @Valid ApiCommand<List<@NotNull @Valid BgpRoute>> command) {
+        try {
+            List<BgpValidityResource> result = new ArrayList<>(command.getData().size());
+            for (BgpRoute route : command.getData()) {
+                result.add(validate(route));
+            }
+            return ResponseEntity.ok(ApiResponse.data(result));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(ApiResponse.error(ApiError.of(HttpStatus.BAD_REQUEST, e.getMessage())));
+        }
+    }
+
+    private BgpValidityResource validate(BgpRoute route) {
+        long asn = parseAsn(route.getAsn());
+        IpRange prefix = parsePrefix(route.getPrefix());
+        return BgpValidityResource.of(asn, prefix.toString(), routeOriginValidator.validate(asn, prefix));
+    }
+
+    private static long parseAsn(String asn) {
+        try {
+            return Asn.parse(asn.trim()).longValue();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid AS number: " + asn);
+        }
+    }
+
+    private static IpRange parsePrefix(String prefix) {
+        IpRange result;
+        try {
+            result = IpRange.parse(prefix.trim());
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid prefix: " + prefix);
+        }
+        if (!result.isLegalPrefix()) {
+            throw new IllegalArgumentException("Invalid prefix: " + prefix);
+        }
+        return result;
+    }
+}
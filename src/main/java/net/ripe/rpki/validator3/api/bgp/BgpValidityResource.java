@@ -0,0 +1,78 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.api.bgp;
+
+import lombok.Value;
+import net.ripe.rpki.validator3.domain.RouteValidity;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefix;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+@Value(staticConstructor = "of")
+public class BgpValidityResource {
+    Route route;
+    String validity;
+    List<Vrp> matched;
+    List<Vrp> unmatchedAsn;
+    List<Vrp> unmatchedLength;
+
+    public static BgpValidityResource of(long asn, String prefix, RouteValidity routeValidity) {
+        return of(
+            Route.of(asn, prefix),
+            routeValidity.getValidity().name(),
+            vrps(routeValidity.getMatched()),
+            vrps(routeValidity.getUnmatchedAsn()),
+            vrps(routeValidity.getUnmatchedLength())
+        );
+    }
+
+    private static List<Vrp> vrps(List<ValidatedRoaPrefix> prefixes) {
+        return prefixes.stream().map(Vrp::of).collect(Collectors.toList());
+    }
+
+    @Value(staticConstructor = "of")
+    public static class Route {
+        long originAsn;
+        String prefix;
+    }
+
+    @Value(staticConstructor = "of")
+    public static class Vrp {
+        long asn;
+        String prefix;
+        int maxLength;
+        String trustAnchor;
+
+        public static Vrp of(ValidatedRoaPrefix prefix) {
+            return of(prefix.getAsn(), prefix.getPrefix().toString(), prefix.getEffectiveMaximumLength(), prefix.getTrustAnchor());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.api.roas;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixSet;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Stream;
+
+/**
+ * The JSON and CSV exports of the current validated ROA prefixes.
+ * <p>
+ * The exports are rendered on first use after the validated ROA prefixes changed and then served from memory until
+ * the next change. Every rendering gets a new, increasing serial number. The serial is at least the time of
+ * rendering in milliseconds since the epoch, so it keeps increasing across restarts as long as the clock does.
+ */
+@Component
+@Slf4j
+public class Exports {
+
+    public static final String JSON_CONTENT_TYPE = "text/json; charset=UTF-8";
+    public static final String CSV_CONTENT_TYPE = "text/csv; charset=UTF-8";
+
+    private final ValidatedRoaPrefixes validatedRoaPrefixes;
+    private final ObjectMapper objectMapper;
+
+    private long serial;
+    private volatile Rendered rendered;
+
+    @Autowired
+    public Exports(ValidatedRoaPrefixes validatedRoaPrefixes, ObjectMapper objectMapper) {
+        this.validatedRoaPrefixes = validatedRoaPrefixes;
+        this.objectMapper = objectMapper;
+    }
+
+    public RenderedExport getJson() {
+        return getRendered().getJson();
+    }
+
+    public RenderedExport getCsv() {
+        return getRendered().getCsv();
+    }
+
+    private Rendered getRendered() {
+        ValidatedRoaPrefixSet prefixes = validatedRoaPrefixes.getCurrent();
+        Rendered result = rendered;
+        return result != null && result.getPrefixes() == prefixes ? result : render(prefixes);
+    }
+
+    private synchronized Rendered render(ValidatedRoaPrefixSet prefixes) {
+        if (rendered != null && rendered.getPrefixes() == prefixes) {
+            return rendered;
+        }
+
+        long started = System.currentTimeMillis();
+        serial = Math.max(serial + 1, System.currentTimeMillis());
+        rendered = new Rendered(
+            prefixes,
+            new RenderedExport(JSON_CONTENT_TYPE, serial, renderJson(prefixes)),
+            new RenderedExport(CSV_CONTENT_TYPE, serial, renderCsv(prefixes))
+        );
+        log.info("Rendered exports of {} validated ROA prefixes with serial {} in {}ms", prefixes.size(), serial, System.currentTimeMillis() - started);
+        return rendered;
+    }
+
+    private byte[] renderJson(ValidatedRoaPrefixSet prefixes) {
+        try {
+            return objectMapper.writeValueAsBytes(new ExportsController.JsonExport(exportPrefixes(prefixes)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("failed to render JSON export", e);
+        }
+    }
+
+    private static byte[] renderCsv(ValidatedRoaPrefixSet prefixes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (CSVWriter writer = new CSVWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            writer.writeNext(new String[]{"ASN", "IP Prefix", "Max Length", "Trust Anchor"});
+            exportPrefixes(prefixes).forEach(prefix -> {
+                writer.writeNext(new String[]{prefix.getAsn(), prefix.getPrefix(), String.valueOf(prefix.getMaxLength()), prefix.getTa()});
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static Stream<ExportsController.ExportRoaPrefix> exportPrefixes(ValidatedRoaPrefixSet prefixes) {
+        return prefixes
+            .stream()
+            .map(prefix -> new ExportsController.ExportRoaPrefix(
+                String.valueOf(prefix.getAsn()),
+                prefix.getPrefix().toString(),
+                prefix.getEffectiveMaximumLength(),
+                prefix.getTrustAnchor()
+            ))
+            .distinct();
+    }
+
+    @Value
+    private static class Rendered {
+        ValidatedRoaPrefixSet prefixes;
+        RenderedExport json;
+        RenderedExport csv;
+    }
+}
@@ -29,17 +29,17 @@
  */
 package net.ripe.rpki.validator3.api.roas;
 
-import au.com.bytecode.opencsv.CSVWriter;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
-import net.ripe.rpki.validator3.domain.RpkiObject;
-import net.ripe.rpki.validator3.domain.RpkiObjects;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.stream.Stream;
 
 /**
@@ -47,49 +47,83 @@ import java.util.stream.Stream;
  * <p>
  * The data format is backwards compatible with the RPKI validator 2.x (see
  * https://github.com/RIPE-NCC/rpki-validator/blob/350d939d5e18858ee6cefc0c9a99e0c70b609b6d/rpki-validator-app/src/main/scala/net/ripe/rpki/validator/controllers/ExportController.scala#L41).
+ * <p>
+ * The exports are served from memory as rendered by {@link Exports}, gzip compressed when the client accepts it. The
+ * serial of the export is returned in the {@value #EXPORT_SERIAL_HEADER} header.
  */
 @RestController
 @Slf4j
 public class ExportsController {
 
-    private final RpkiObjects rpkiObjects;
+    public static final String EXPORT_SERIAL_HEADER = "X-Export-Serial";
+
+    private final Exports exports;
 
     @Autowired
-    public ExportsController(RpkiObjects rpkiObjects) {
-        this.rpkiObjects = rpkiObjects;
+    public ExportsController(Exports exports) {
+        this.exports = exports;
     }
 
-    @GetMapping(path = "/export.json", produces = "text/json; charset=UTF-8")
-    public JsonExport exportJson() {
-        return new JsonExport(loadValidatedPrefixes());
+    @GetMapping(path = "/export.json")
+    public void exportJson(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        write(exports.getJson(), request, response);
     }
 
-    @GetMapping(path = "/export.csv", produces = "text/csv; charset=UTF-8")
-    public void exportCsv(HttpServletResponse response) throws IOException {
-        Stream<ExportRoaPrefix> validatedPrefixes = loadValidatedPrefixes();
+    @GetMapping(path = "/export.csv")
+    public void exportCsv(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        write(exports.getCsv(), request, response);
+    }
+
+    private void write(RenderedExport export, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        boolean gzip = acceptsGzip(request);
+        String entityTag = gzip ? export.getGzipEntityTag() : export.getEntityTag();
+
+        response.setHeader(HttpHeaders.ETAG, entityTag);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        response.setHeader(EXPORT_SERIAL_HEADER, String.valueOf(export.getSerial()));
 
-        response.setContentType("text/csv; charset=UTF-8");
+        if (matchesEntityTag(request, entityTag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
 
-        try (CSVWriter writer = new CSVWriter(response.getWriter())) {
-            writer.writeNext(new String[]{"ASN", "IP Prefix", "Max Length", "Trust Anchor"});
-            validatedPrefixes.forEach(prefix -> {
-                writer.writeNext(new String[]{prefix.getAsn(), prefix.getPrefix(), String.valueOf(prefix.getMaxLength()), prefix.getTa()});
-            });
+        byte[] content = gzip ? export.getGzipContent() : export.getContent();
+        response.setContentType(export.getContentType());
+        response.setContentLength(content.length);
+        if (gzip) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
         }
+        response.getOutputStream().write(content);
     }
 
-    protected Stream<ExportRoaPrefix> loadValidatedPrefixes() {
-        return rpkiObjects
-            .findCurrentlyValidated(RpkiObject.Type.ROA)
-            .flatMap(pair -> pair.getValue().getRoaPrefixes().stream()
-                .map(prefix -> new ExportRoaPrefix(
-                    String.valueOf(prefix.getAsn()),
-                    prefix.getPrefix(),
-                    prefix.getEffectiveLength(),
-                    pair.getKey().getTrustAnchor().getName()
-                ))
-            )
-            .distinct();
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        for (String header : Collections.list(request.getHeaders(HttpHeaders.ACCEPT_ENCODING))) {
+            for (String coding : header.split(",")) {
+                String[] parameters = coding.trim().split(";");
+                String name = parameters[0].trim();
+                if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip") || name.equals("*")) {
+                    return Stream.of(parameters).skip(1)
+                        .map(String::trim)
+                        .noneMatch(parameter -> parameter.matches("[qQ]\\s*=\\s*0(\\.0*)?"));
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesEntityTag(HttpServletRequest request, String entityTag) {
+        for (String header : Collections.list(request.getHeaders(HttpHeaders.IF_NONE_MATCH))) {
+            for (String tag : header.split(",")) {
+                String trimmed = tag.trim();
+                if (trimmed.startsWith("W/")) {
+                    trimmed = trimmed.substring(2);
+                }
+                if (trimmed.equals("*") || trimmed.equals(entityTag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     @Value
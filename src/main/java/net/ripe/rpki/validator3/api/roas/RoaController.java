@@ -32,8 +32,7 @@ package net.ripe.rpki.validator3.api.roas;
 import lombok.extern.slf4j.Slf4j;
 import net.ripe.rpki.validator3.api.Api;
 import net.ripe.rpki.validator3.api.ApiResponse;
-import net.ripe.rpki.validator3.domain.RpkiObject;
-import net.ripe.rpki.validator3.domain.RpkiObjects;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixes;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -46,18 +45,17 @@ import java.util.stream.Stream;
 @RequestMapping(path = "/roas", produces = Api.API_MIME_TYPE)
 @Slf4j
 public class RoaController {
-    private final RpkiObjects rpkiObjects;
+    private final ValidatedRoaPrefixes validatedRoaPrefixes;
 
     @Autowired
-    public RoaController(RpkiObjects rpkiObjects) {
-        this.rpkiObjects = rpkiObjects;
+    public RoaController(ValidatedRoaPrefixes validatedRoaPrefixes) {
+        this.validatedRoaPrefixes = validatedRoaPrefixes;
     }
 
     @GetMapping(path = "/validated-prefixes")
     public ResponseEntity<ApiResponse<Stream<ValidatedPrefix>>> list() {
-        Stream<ValidatedPrefix> validatedPrefixes = rpkiObjects
-            .findCurrentlyValidated(RpkiObject.Type.ROA)
-            .flatMap(x -> x.getValue().getRoaPrefixes().stream())
+        Stream<ValidatedPrefix> validatedPrefixes = validatedRoaPrefixes.getCurrent()
+            .stream()
             .map(ValidatedPrefix::of)
             .distinct();
         return ResponseEntity.ok(ApiResponse.data(validatedPrefixes));
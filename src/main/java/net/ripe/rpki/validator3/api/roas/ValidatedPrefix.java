@@ -33,6 +33,7 @@ import lombok.Value;
 import net.ripe.ipresource.IpRange;
 import net.ripe.rpki.commons.crypto.cms.roa.RoaCms;
 import net.ripe.rpki.validator3.domain.RoaPrefix;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefix;
 
 import java.util.stream.Stream;
 
@@ -52,6 +53,15 @@ public class ValidatedPrefix {
         );
     }
 
+    public static ValidatedPrefix of(ValidatedRoaPrefix validatedRoaPrefix) {
+        return of(
+            validatedRoaPrefix.getPrefix().toString(),
+            validatedRoaPrefix.getMaximumLength(),
+            validatedRoaPrefix.getEffectiveMaximumLength(),
+            validatedRoaPrefix.getAsn()
+        );
+    }
+
     public static Stream<ValidatedPrefix> of(RoaCms roaCms) {
         long asn = roaCms.getAsn().longValue();
         return roaCms.getPrefixes().stream()
@@ -31,11 +31,14 @@ package net.ripe.rpki.validator3.api.rpkiobjects;
 
 import com.fasterxml.jackson.annotation.JsonSubTypes;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import net.ripe.ipresource.Asn;
 import net.ripe.ipresource.IpResourceSet;
 import net.ripe.rpki.commons.crypto.CertificateRepositoryObject;
 import net.ripe.rpki.commons.crypto.ValidityPeriod;
@@ -47,29 +50,37 @@ import net.ripe.rpki.commons.crypto.x509cert.X509CertificateInformationAccessDes
 import net.ripe.rpki.commons.crypto.x509cert.X509ResourceCertificate;
 import net.ripe.rpki.commons.validation.ValidationResult;
 import net.ripe.rpki.validator3.api.Api;
+import net.ripe.rpki.validator3.api.ApiError;
 import net.ripe.rpki.validator3.api.ApiResponse;
-import net.ripe.rpki.validator3.domain.CertificateTreeValidationRun;
+import net.ripe.rpki.validator3.domain.DecodedObjectCache;
 import net.ripe.rpki.validator3.domain.RpkiObject;
-import net.ripe.rpki.validator3.domain.ValidationCheck;
-import net.ripe.rpki.validator3.domain.ValidationRuns;
+import net.ripe.rpki.validator3.domain.RpkiObjectFilter;
+import net.ripe.rpki.validator3.domain.RpkiObjects;
 import net.ripe.rpki.validator3.util.Hex;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.ResponseEntity;
+import org.springframework.hateoas.Link;
+import org.springframework.hateoas.Links;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.X509CRLEntry;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.SortedSet;
@@ -83,39 +94,118 @@ import java.util.stream.StreamSupport;
 @Slf4j
 public class RpkiObjectController {
 
-    private final ValidationRuns validationRuns;
+    static final int DEFAULT_LIMIT = 1000;
+    static final int MAX_LIMIT = 10000;
+
+    private final RpkiObjects rpkiObjects;
+    private final DecodedObjectCache decodedObjectCache;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public RpkiObjectController(final ValidationRuns validationRuns) {
-        this.validationRuns = validationRuns;
+    public RpkiObjectController(final RpkiObjects rpkiObjects, final DecodedObjectCache decodedObjectCache, final ObjectMapper objectMapper) {
+        this.rpkiObjects = rpkiObjects;
+        this.decodedObjectCache = decodedObjectCache;
+        this.objectMapper = objectMapper;
     }
 
+    /**
+     * Lists the currently validated objects ordered by location, one page at a time. The response contains a link
+     * to the next page unless this is the last page. Objects are written to the response as they are read from the
+     * database, so the whole page is never kept in memory.
+     */
     @GetMapping(path = "/")
-    public ResponseEntity<ApiResponse<Stream<RpkiObj>>> all() {
-        final List<CertificateTreeValidationRun> vrs = validationRuns.findLatestSuccessful(CertificateTreeValidationRun.class);
+    public void all(
+            @RequestParam(name = "type", required = false) RpkiObject.Type type,
+            @RequestParam(name = "trustAnchorId", required = false) Long trustAnchorId,
+            @RequestParam(name = "locationPrefix", required = false) String locationPrefix,
+            @RequestParam(name = "after", required = false) String after,
+            @RequestParam(name = "limit", defaultValue = "" + DEFAULT_LIMIT) int limit,
+            final HttpServletResponse response
+    ) throws IOException {
+        final RpkiObjectFilter.RpkiObjectFilterBuilder filter = RpkiObjectFilter.builder()
+                .type(type)
+                .trustAnchorId(trustAnchorId)
+                .locationPrefix(locationPrefix)
+                .limit(limit + 1);
+        if (limit < 1 || limit > MAX_LIMIT) {
+            writeError(response, "limit must be between 1 and " + MAX_LIMIT);
+            return;
+        }
+        if (after != null) {
+            final Optional<Pair<String, Long>> cursor = parseCursor(after);
+            if (!cursor.isPresent()) {
+                writeError(response, "invalid cursor " + after);
+                return;
+            }
+            filter.afterLocation(cursor.get().getLeft()).afterId(cursor.get().getRight());
+        }
 
-        final Stream<RpkiObj> rpkiObjStream = vrs.stream().flatMap(vr -> {
-            final Map<String, ValidationCheck> checkMap = vr.getValidationChecks().
-                    stream().collect(Collectors.toMap(ValidationCheck::getLocation, Function.identity()));
+        response.setContentType(Api.API_MIME_TYPE);
+        try (Stream<Pair<String, RpkiObject>> objects = rpkiObjects.findCurrentlyValidated(filter.build());
+             JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("data");
+
+            final Iterator<Pair<String, RpkiObject>> iterator = objects.iterator();
+            Pair<String, RpkiObject> last = null;
+            int count = 0;
+            while (count < limit && iterator.hasNext()) {
+                last = iterator.next();
+                // The locations of the detached object cannot be loaded, an empty location means it has none
+                final String location = last.getLeft().isEmpty() ? unknownLocation(last.getRight()) : last.getLeft();
+                final RpkiObj rpkiObj = mapRpkiObject(last.getRight(), Optional.of(ValidationResult.withLocation(location)));
+                if (rpkiObj != null) {
+                    objectMapper.writeValue(generator, rpkiObj);
+                }
+                ++count;
+            }
+            generator.writeEndArray();
+
+            if (iterator.hasNext()) {
+                final String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                        .replaceQueryParam("after", formatCursor(last.getLeft(), last.getRight().getId()))
+                        .toUriString();
+                generator.writeFieldName("links");
+                objectMapper.writeValue(generator, new Links(new Link(next, "next")));
+            }
+            generator.writeEndObject();
+        }
+    }
 
-            return vr.getValidatedObjects().stream().map(r -> {
-                Optional<ValidationCheck> check = r.getLocations().stream().map(checkMap::get).filter(Objects::nonNull).findFirst();
-                return Pair.of(r, check);
-            });
-        }).sorted(
-                Comparator.comparing(o -> location(o.getLeft()))
-        ).map(pair ->
-                mapRpkiObject(pair.getLeft(), pair.getRight().map(c -> ValidationResult.withLocation(c.getLocation())))
-        ).filter(Objects::nonNull);
+    private void writeError(final HttpServletResponse response, final String detail) throws IOException {
+        response.setStatus(HttpStatus.BAD_REQUEST.value());
+        response.setContentType(Api.API_MIME_TYPE);
+        objectMapper.writeValue(response.getOutputStream(), ApiResponse.error(ApiError.of(HttpStatus.BAD_REQUEST, detail)));
+    }
 
-        return ResponseEntity.ok(ApiResponse.data(rpkiObjStream));
+    /**
+     * The cursor is the id and location of the last object of the previous page, encoded so it can be used in a URL.
+     */
+    private static String formatCursor(final String location, final long id) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((id + ":" + location).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Optional<Pair<String, Long>> parseCursor(final String cursor) {
+        try {
+            final String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            final int separator = decoded.indexOf(':');
+            return Optional.of(Pair.of(decoded.substring(separator + 1), Long.parseLong(decoded.substring(0, separator))));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return Optional.empty();
+        }
     }
 
     private RpkiObj mapRpkiObject(final RpkiObject rpkiObject, final Optional<ValidationResult> validationResult) {
         switch (rpkiObject.getType()) {
             case CER:
+                if (rpkiObject.hasSummary()) {
+                    return makeCertificate(validationResult, rpkiObject);
+                }
                 return makeTypedDto(rpkiObject, validationResult, X509ResourceCertificate.class, cert -> makeCertificate(validationResult, cert, rpkiObject));
             case ROA:
+                if (rpkiObject.hasSummary() && !rpkiObject.getRoaPrefixes().isEmpty()) {
+                    return makeRoa(validationResult, rpkiObject);
+                }
                 return makeTypedDto(rpkiObject, validationResult, RoaCms.class, cert -> makeRoa(validationResult, cert, rpkiObject));
             case MFT:
                 return makeTypedDto(rpkiObject, validationResult, ManifestCms.class, cert -> makeMft(validationResult, cert, rpkiObject));
@@ -133,10 +223,8 @@ public class RpkiObjectController {
                                                                          final Optional<ValidationResult> validationResult,
                                                                          final Class<T> clazz,
                                                                          final Function<T, RpkiObj> create) {
-        Optional<T> maybeCert = validationResult.flatMap(vr -> rpkiObject.get(clazz, vr));
-        if (!maybeCert.isPresent()) {
-            maybeCert = rpkiObject.get(clazz, location(rpkiObject));
-        }
+        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElseGet(() -> location(rpkiObject));
+        final Optional<T> maybeCert = decodedObjectCache.get(rpkiObject, clazz, ValidationResult.withLocation(location));
         if (maybeCert.isPresent()) {
             return create.apply(maybeCert.get());
         }
@@ -146,13 +234,17 @@ public class RpkiObjectController {
     private static String location(final RpkiObject rpkiObject) {
         final SortedSet<String> locations = rpkiObject.getLocations();
         if (locations.isEmpty()) {
-            return "unknown." + rpkiObject.getType().toString().toLowerCase(Locale.ROOT);
+            return unknownLocation(rpkiObject);
         }
         return locations.first();
     }
 
+    private static String unknownLocation(final RpkiObject rpkiObject) {
+        return "unknown." + rpkiObject.getType().toString().toLowerCase(Locale.ROOT);
+    }
+
     private ResourceCertificate makeCertificate(final Optional<ValidationResult> validationResult, final X509ResourceCertificate certificate, final RpkiObject rpkiObject) {
-        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElse(location(rpkiObject));
+        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElseGet(() -> location(rpkiObject));
         final boolean isValid = isValid(validationResult);
 
         return ResourceCertificate.builder().
@@ -171,12 +263,32 @@ public class RpkiObjectController {
                 build();
     }
 
+    private ResourceCertificate makeCertificate(final Optional<ValidationResult> validationResult, final RpkiObject rpkiObject) {
+        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElseGet(() -> location(rpkiObject));
+        final boolean isValid = isValid(validationResult);
+
+        return ResourceCertificate.builder().
+                uri(location).
+                valid(isValid).
+                warnings(formatChecks(validationResult.map(ValidationResult::getWarnings).orElse(Collections.emptyList()))).
+                errors(formatChecks(validationResult.map(ValidationResult::getFailuresForAllLocations).orElse(Collections.emptyList()))).
+                resources(formatResources(rpkiObject.getResources())).
+                subjectName(rpkiObject.getSubject()).
+                ski(Hex.format(rpkiObject.getSubjectKeyIdentifier())).
+                aki(Hex.format(rpkiObject.getAuthorityKeyIdentifier())).
+                validityTime(formatValidity(rpkiObject)).
+                sia(formatSia(rpkiObject.getSubjectInformationAccess())).
+                serial(rpkiObject.getSerialNumber()).
+                sha256(Hex.format(rpkiObject.getSha256())).
+                build();
+    }
+
     private boolean isValid(Optional<ValidationResult> validationResult) {
         return !validationResult.filter(ValidationResult::hasFailureForCurrentLocation).isPresent();
     }
 
     private Roa makeRoa(final Optional<ValidationResult> validationResult, RoaCms roaCms, final RpkiObject rpkiObject) {
-        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElse(location(rpkiObject));
+        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElseGet(() -> location(rpkiObject));
         final boolean isValid = isValid(validationResult);
 
         final List<net.ripe.rpki.commons.crypto.cms.roa.RoaPrefix> pref = roaCms.getPrefixes();
@@ -199,6 +311,34 @@ public class RpkiObjectController {
                 build();
     }
 
+    private Roa makeRoa(final Optional<ValidationResult> validationResult, final RpkiObject rpkiObject) {
+        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElseGet(() -> location(rpkiObject));
+        final boolean isValid = isValid(validationResult);
+
+        final List<RoaPrefix> prefixes = rpkiObject.getRoaPrefixes().stream().map(p ->
+                RoaPrefix.builder().
+                        prefix(p.getPrefix()).
+                        maxLenght(p.getMaximumLength()).
+                        build()
+        ).collect(Collectors.toList());
+
+        return Roa.builder().
+                uri(location).
+                valid(isValid).
+                warnings(formatChecks(validationResult.map(ValidationResult::getWarnings).orElse(Collections.emptyList()))).
+                errors(formatChecks(validationResult.map(ValidationResult::getFailuresForAllLocations).orElse(Collections.emptyList()))).
+                asn(new Asn(rpkiObject.getRoaPrefixes().get(0).getAsn()).toString()).
+                roaPrefixes(prefixes).
+                sha256(Hex.format(rpkiObject.getSha256())).
+                eeCertificate(EeCertificate.builder().
+                        validityTime(formatValidity(rpkiObject)).
+                        subjectName(rpkiObject.getSubject()).
+                        serial(rpkiObject.getSerialNumber()).
+                        resources(formatResources(rpkiObject.getResources())).
+                        build()).
+                build();
+    }
+
     private EeCertificate makeEeCertificate(X509ResourceCertificate certificate) {
         return EeCertificate.builder().
                 validityTime(formatValidity(certificate.getValidityPeriod())).
@@ -209,7 +349,7 @@ public class RpkiObjectController {
     }
 
     private Mft makeMft(final Optional<ValidationResult> validationResult, ManifestCms manifestCms, final RpkiObject rpkiObject) {
-        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElse(location(rpkiObject));
+        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElseGet(() -> location(rpkiObject));
         final boolean isValid = isValid(validationResult);
 
         return Mft.builder().
@@ -233,7 +373,7 @@ public class RpkiObjectController {
     }
 
     private Crl makeCrl(final Optional<ValidationResult> validationResult, final X509Crl crl, final RpkiObject rpkiObject) {
-        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElse(location(rpkiObject));
+        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElseGet(() -> location(rpkiObject));
         final boolean isValid = isValid(validationResult);
 
         final Set<? extends X509CRLEntry> revokedCertificates = crl.getCrl().getRevokedCertificates();
@@ -253,7 +393,7 @@ public class RpkiObjectController {
     }
 
     private RpkiObj makeGbr(Optional<ValidationResult> validationResult, GhostbustersCms gbr, RpkiObject rpkiObject) {
-        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElse(location(rpkiObject));
+        final String location = validationResult.map(vr -> vr.getCurrentLocation().getName()).orElseGet(() -> location(rpkiObject));
         final boolean isValid = isValid(validationResult);
 
         return GhostbustersRecord.builder()
@@ -268,7 +408,7 @@ public class RpkiObjectController {
     }
 
     private RpkiObj makeOther(final Optional<ValidationResult> vr, final RpkiObject ro) {
-        return Other.builder().uri(location(ro)).build();
+        return Other.builder().uri(vr.map(v -> v.getCurrentLocation().getName()).orElse(location(ro))).build();
     }
 
     private static List<String> formatResources(final IpResourceSet resources) {
@@ -282,6 +422,24 @@ public class RpkiObjectController {
         ));
     }
 
+    private static List<String> formatResources(final String resources) {
+        return resources.isEmpty() ? Collections.emptyList() : Arrays.asList(resources.split(","));
+    }
+
+    private static Map<String, String> formatSia(final String sia) {
+        return Arrays.stream(sia.split("\n")).filter(s -> !s.isEmpty()).collect(Collectors.toMap(
+                s -> s.substring(0, s.indexOf(' ')),
+                s -> s.substring(s.indexOf(' ') + 1)
+        ));
+    }
+
+    private static ValidityTime formatValidity(final RpkiObject rpkiObject) {
+        return ValidityTime.builder().
+                notValidAfter(Date.from(rpkiObject.getNotValidAfter())).
+                notValidBefore(Date.from(rpkiObject.getNotValidBefore())).
+                build();
+    }
+
     private static ValidityTime formatValidity(final ValidityPeriod validityPeriod) {
         return ValidityTime.builder().
                 notValidAfter(validityPeriod.getNotValidAfter().toDate()).
@@ -34,6 +34,7 @@ import net.ripe.rpki.validator3.domain.RpkiRepositories;
 import net.ripe.rpki.validator3.domain.RpkiRepository;
 import net.ripe.rpki.validator3.domain.TrustAnchor;
 import net.ripe.rpki.validator3.domain.TrustAnchors;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixes;
 import net.ripe.rpki.validator3.domain.ValidationRuns;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -53,6 +54,8 @@ public class TrustAnchorService {
     private RpkiRepositories rpkiRepositories;
     @Autowired
     private ValidationRuns validationRunRepository;
+    @Autowired
+    private ValidatedRoaPrefixes validatedRoaPrefixes;
 
     public long execute(@Valid AddTrustAnchor command) {
         TrustAnchor trustAnchor = new TrustAnchor();
@@ -77,6 +80,7 @@ public class TrustAnchorService {
         validationRunRepository.removeAllForTrustAnchor(trustAnchor);
         rpkiRepositories.removeAllForTrustAnchor(trustAnchor);
         trustAnchors.remove(trustAnchor);
+        validatedRoaPrefixes.remove(trustAnchor);
     }
 
 }
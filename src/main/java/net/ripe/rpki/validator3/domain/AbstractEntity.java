@@ -40,8 +40,13 @@ import java.time.Instant;
 @MappedSuperclass
 public abstract class AbstractEntity {
 
+    /**
+     * Identifiers are allocated in blocks, so inserts of new entities can be batched without a round trip to the
+     * sequence for every entity. Must match the increment of the database sequence.
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "hibernate_sequence")
+    @SequenceGenerator(name = "hibernate_sequence", sequenceName = "hibernate_sequence", allocationSize = 50)
     @Getter
     private long id = -1;
 
@@ -0,0 +1,65 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import net.ripe.rpki.validator3.util.Hex;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the certificate authorities that published or withdrew objects, identified by the authority key
+ * identifier of those objects. Changes are numbered in the order they are recorded, which allows certificate tree
+ * validation to find the certificate authorities that changed since its previous run.
+ *
+ * Changes must only be recorded once they are committed, otherwise a validation run might consume a change before
+ * the changed objects are visible to it.
+ */
+@Component
+public class AuthorityChangeLog {
+
+    private final Map<String, Long> changes = new HashMap<>();
+
+    private long latestChangeNumber;
+
+    public synchronized long getLatestChangeNumber() {
+        return latestChangeNumber;
+    }
+
+    public synchronized void changed(byte[] authorityKeyIdentifier) {
+        changes.put(Hex.format(authorityKeyIdentifier), ++latestChangeNumber);
+    }
+
+    public synchronized boolean isChangedSince(byte[] authorityKeyIdentifier, long changeNumber) {
+        Long latest = changes.get(Hex.format(authorityKeyIdentifier));
+        return latest != null && latest > changeNumber;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import net.ripe.rpki.commons.crypto.CertificateRepositoryObject;
+import net.ripe.rpki.commons.crypto.util.CertificateRepositoryObjectFactory;
+import net.ripe.rpki.commons.validation.ValidationResult;
+import net.ripe.rpki.validator3.util.Sha256;
+import net.ripe.rpki.validator3.util.Sha256Key;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Cache of parsed {@link CertificateRepositoryObject}s, keyed by the SHA-256 of their encoding.
+ *
+ * The hash of an {@link RpkiObject} is verified once, when its encoding is parsed on a cache miss. Cache hits skip
+ * both hashing and parsing. The cache is bounded by the total size of the encoded objects and holds the parsed
+ * objects through soft references, so they can also be reclaimed under memory pressure.
+ */
+@Component
+public class DecodedObjectCache {
+
+    private final Cache<Sha256Key, CertificateRepositoryObject> cache;
+
+    @Autowired
+    public DecodedObjectCache(
+        @Value("${rpki.validator.decoded.object.cache.max.encoded.size}") long maxEncodedSize,
+        MeterRegistry meterRegistry
+    ) {
+        this.cache = GuavaCacheMetrics.monitor(
+            meterRegistry,
+            CacheBuilder.newBuilder()
+                .maximumWeight(maxEncodedSize)
+                .weigher((Sha256Key key, CertificateRepositoryObject object) -> object.getEncoded().length)
+                .softValues()
+                .recordStats()
+                .build(),
+            "rpki.decoded.objects"
+        );
+    }
+
+    /**
+     * Returns the parsed object of the given type. Failed checks are recorded for the current location of the
+     * validation result, using the same keys as {@link RpkiObject#get(Class, String)}.
+     */
+    public <T extends CertificateRepositoryObject> Optional<T> get(RpkiObject rpkiObject, Class<T> clazz, ValidationResult validationResult) {
+        Sha256Key key = Sha256Key.of(rpkiObject.getSha256());
+        CertificateRepositoryObject candidate = cache.getIfPresent(key);
+        if (candidate == null) {
+            validationResult.rejectIfFalse(Arrays.equals(Sha256.hash(rpkiObject.getEncoded()), rpkiObject.getSha256()), "rpki.object.sha256.matches");
+            if (validationResult.hasFailureForCurrentLocation()) {
+                return Optional.empty();
+            }
+
+            ValidationResult ignored = ValidationResult.withLocation(validationResult.getCurrentLocation());
+            candidate = CertificateRepositoryObjectFactory.createCertificateRepositoryObject(
+                rpkiObject.getEncoded(),
+                ignored // Ignore any parse errors, as all stored objects must be parsable
+            );
+
+            validationResult.rejectIfNull(candidate, "rpki.object.parsable");
+            if (validationResult.hasFailureForCurrentLocation()) {
+                return Optional.empty();
+            }
+
+            cache.put(key, candidate);
+        }
+
+        validationResult.rejectIfFalse(clazz.isInstance(candidate), "rpki.object.type.matches", clazz.getSimpleName(), candidate.getClass().getSimpleName());
+        if (validationResult.hasFailureForCurrentLocation()) {
+            return Optional.empty();
+        }
+
+        return Optional.of(clazz.cast(candidate));
+    }
+}
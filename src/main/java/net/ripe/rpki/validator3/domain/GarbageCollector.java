@@ -0,0 +1,113 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Removes old validation runs and the RPKI objects that are no longer needed. Objects that lost all their locations
+ * are removed once no remaining validation run refers to them.
+ *
+ * Every batch is removed in a separate transaction, so validation is never blocked for long. This service is
+ * therefore deliberately not transactional itself.
+ */
+@Service
+@Slf4j
+public class GarbageCollector {
+
+    private final ValidationRuns validationRuns;
+
+    private final RpkiObjects rpkiObjects;
+
+    private final int validationRunsToKeep;
+
+    private final int validationRunsBatchSize;
+
+    private final int rpkiObjectsBatchSize;
+
+    private final Counter removedValidationRuns;
+
+    private final Counter removedRpkiObjects;
+
+    private final Timer duration;
+
+    @Autowired
+    public GarbageCollector(
+        ValidationRuns validationRuns,
+        RpkiObjects rpkiObjects,
+        @Value("${rpki.validator.gc.validation.runs.keep}") int validationRunsToKeep,
+        @Value("${rpki.validator.gc.validation.runs.batch.size}") int validationRunsBatchSize,
+        @Value("${rpki.validator.gc.rpki.objects.batch.size}") int rpkiObjectsBatchSize,
+        MeterRegistry meterRegistry
+    ) {
+        if (validationRunsToKeep < 1) {
+            throw new IllegalArgumentException("at least one validation run must be kept, got " + validationRunsToKeep);
+        }
+        this.validationRuns = validationRuns;
+        this.rpkiObjects = rpkiObjects;
+        this.validationRunsToKeep = validationRunsToKeep;
+        this.validationRunsBatchSize = validationRunsBatchSize;
+        this.rpkiObjectsBatchSize = rpkiObjectsBatchSize;
+        this.removedValidationRuns = meterRegistry.counter("rpki.gc.removed", "table", "validation_run");
+        this.removedRpkiObjects = meterRegistry.counter("rpki.gc.removed", "table", "rpki_object");
+        this.duration = meterRegistry.timer("rpki.gc.duration");
+    }
+
+    @Scheduled(initialDelay = 300_000, fixedDelay = 600_000)
+    public void collect() {
+        duration.record(() -> {
+            final long startedAt = System.currentTimeMillis();
+            // Old validation runs go first, as removing them makes the objects they refer to collectable
+            final int runs = removeInBatches(() -> validationRuns.removeOldValidationRuns(validationRunsToKeep, validationRunsBatchSize), removedValidationRuns);
+            final int objects = removeInBatches(() -> rpkiObjects.removeUnreferenced(rpkiObjectsBatchSize), removedRpkiObjects);
+            log.info("removed {} old validation runs and {} unreferenced RPKI objects in {} ms", runs, objects, System.currentTimeMillis() - startedAt);
+        });
+    }
+
+    private static int removeInBatches(IntSupplier batch, Counter counter) {
+        int total = 0;
+        int removed;
+        do {
+            removed = batch.getAsInt();
+            counter.increment(removed);
+            total += removed;
+        } while (removed > 0);
+        return total;
+    }
+}
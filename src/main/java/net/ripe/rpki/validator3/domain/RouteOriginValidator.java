@@ -0,0 +1,83 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import lombok.extern.slf4j.Slf4j;
+import net.ripe.ipresource.IpRange;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Validates route origins against the current validated ROA prefixes, using a trie that is updated with the changes
+ * whenever the validated ROA prefixes are replaced.
+ */
+@Component
+@Slf4j
+public class RouteOriginValidator {
+
+    private final ValidatedRoaPrefixes validatedRoaPrefixes;
+
+    private ValidatedRoaPrefixSet prefixes;
+    private volatile ValidatedRoaPrefixTrie trie;
+
+    @Autowired
+    public RouteOriginValidator(ValidatedRoaPrefixes validatedRoaPrefixes) {
+        this.validatedRoaPrefixes = validatedRoaPrefixes;
+        validatedRoaPrefixes.addListener(this::update);
+    }
+
+    public RouteValidity validate(long asn, IpRange route) {
+        return getTrie().validate(asn, route);
+    }
+
+    private ValidatedRoaPrefixTrie getTrie() {
+        ValidatedRoaPrefixTrie result = trie;
+        if (result != null) {
+            return result;
+        }
+
+        // Retrieve the prefixes without holding our lock, updates are made while holding the lock of the prefixes
+        ValidatedRoaPrefixSet current = validatedRoaPrefixes.getCurrent();
+        synchronized (this) {
+            if (trie == null) {
+                prefixes = current;
+                trie = ValidatedRoaPrefixTrie.of(current);
+            }
+            return trie;
+        }
+    }
+
+    private synchronized void update(ValidatedRoaPrefixSet current) {
+        long started = System.currentTimeMillis();
+        trie = trie == null ? ValidatedRoaPrefixTrie.of(current) : trie.update(prefixes, current);
+        prefixes = current;
+        log.debug("Updated route origin validation trie with {} validated ROA prefixes in {}ms", current.size(), System.currentTimeMillis() - started);
+    }
+}
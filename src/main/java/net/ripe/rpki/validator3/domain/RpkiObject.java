@@ -66,6 +66,7 @@ import java.util.Optional;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 @Entity
 public class RpkiObject extends AbstractEntity {
@@ -86,7 +87,6 @@ public class RpkiObject extends AbstractEntity {
     @OrderBy("locations")
     @Getter
     @NotNull
-    @Size(max = 1)
     @Valid
     private SortedSet<@NotNull @ValidLocationURI String> locations = new TreeSet<>();
 
@@ -114,6 +114,43 @@ public class RpkiObject extends AbstractEntity {
     @Size(max = MAX_SIZE)
     private byte[] encoded;
 
+    /*
+     * Summary of the object for display, extracted when the object is constructed so it does not need to be decoded
+     * again. The certificate fields describe the certificate itself or the EE certificate of a signed object.
+     * Objects stored before these fields were introduced do not have a summary.
+     */
+
+    @Basic
+    @Getter
+    private byte[] subjectKeyIdentifier;
+
+    @Basic
+    @Getter
+    private String subject;
+
+    @Basic
+    @Getter
+    private Instant notValidBefore;
+
+    @Basic
+    @Getter
+    private Instant notValidAfter;
+
+    /**
+     * The IP and AS resources of the certificate, separated by commas.
+     */
+    @Basic
+    @Getter
+    private String resources;
+
+    /**
+     * The subject information access descriptors of a resource certificate, each on its own line as the access
+     * method and location separated by a space.
+     */
+    @Basic
+    @Getter
+    private String subjectInformationAccess;
+
     @ElementCollection(fetch = FetchType.LAZY)
     @OrderColumn
     @NotNull
@@ -130,23 +167,38 @@ public class RpkiObject extends AbstractEntity {
     }
 
     public RpkiObject(String location, CertificateRepositoryObject object) {
+        this(location, object, Sha256.hash(object.getEncoded()));
+    }
+
+    /**
+     * @param sha256 the SHA-256 hash of the encoded object, for callers that already hashed the content
+     */
+    public RpkiObject(String location, CertificateRepositoryObject object, byte[] sha256) {
         this.locations.add(location);
         this.encoded = object.getEncoded();
-        this.sha256 = Sha256.hash(this.encoded);
+        this.sha256 = sha256;
         if (object instanceof X509ResourceCertificate) {
-            this.serialNumber = ((X509ResourceCertificate) object).getSerialNumber();
+            X509ResourceCertificate certificate = (X509ResourceCertificate) object;
+            this.serialNumber = certificate.getSerialNumber();
             this.signingTime = null; // Use not valid before instead?
-            this.authorityKeyIdentifier = ((X509ResourceCertificate) object).getAuthorityKeyIdentifier();
+            this.authorityKeyIdentifier = certificate.getAuthorityKeyIdentifier();
             this.type = Type.CER; // FIXME separate certificate types? CA, EE, Router, ?
+            this.subjectKeyIdentifier = certificate.getSubjectKeyIdentifier();
+            this.subjectInformationAccess = Arrays.stream(certificate.getSubjectInformationAccess())
+                .map(sia -> sia.getMethod() + " " + sia.getLocation().toASCIIString())
+                .collect(Collectors.joining("\n"));
+            summarizeCertificate(certificate);
         } else if (object instanceof X509Crl) {
-            this.serialNumber = ((X509Crl) object).getNumber();
-            this.signingTime = Instant.ofEpochMilli(((X509Crl) object).getThisUpdateTime().getMillis());
-            this.authorityKeyIdentifier = ((X509Crl) object).getAuthorityKeyIdentifier();
+            X509Crl crl = (X509Crl) object;
+            this.serialNumber = crl.getNumber();
+            this.signingTime = Instant.ofEpochMilli(crl.getThisUpdateTime().getMillis());
+            this.authorityKeyIdentifier = crl.getAuthorityKeyIdentifier();
             this.type = Type.CRL;
         } else if (object instanceof RpkiSignedObject) {
             this.serialNumber = ((RpkiSignedObject) object).getCertificate().getSerialNumber();
             this.signingTime = Instant.ofEpochMilli(((RpkiSignedObject) object).getSigningTime().getMillis());
             this.authorityKeyIdentifier = ((RpkiSignedObject) object).getCertificate().getAuthorityKeyIdentifier();
+            summarizeCertificate(((RpkiSignedObject) object).getCertificate());
             if (object instanceof ManifestCms) {
                 this.type = Type.MFT;
             } else if (object instanceof RoaCms) {
@@ -168,6 +220,23 @@ public class RpkiObject extends AbstractEntity {
         }
     }
 
+    private void summarizeCertificate(X509ResourceCertificate certificate) {
+        this.subject = certificate.getSubject().getName();
+        this.notValidBefore = Instant.ofEpochMilli(certificate.getValidityPeriod().getNotValidBefore().getMillis());
+        this.notValidAfter = Instant.ofEpochMilli(certificate.getValidityPeriod().getNotValidAfter().getMillis());
+        this.resources = StreamSupport.stream(certificate.getResources().spliterator(), false)
+            .map(Object::toString)
+            .collect(Collectors.joining(","));
+    }
+
+    /**
+     * @return true if the summary of this object is available. CRLs have no summary, as the API needs their
+     * revocations anyway.
+     */
+    public boolean hasSummary() {
+        return type != Type.CRL && notValidAfter != null;
+    }
+
     public <T extends CertificateRepositoryObject> Optional<T> get(Class<T> clazz, ValidationResult validationResult) {
         ValidationResult temporary = ValidationResult.withLocation(validationResult.getCurrentLocation());
         try {
@@ -204,8 +273,8 @@ public class RpkiObject extends AbstractEntity {
         return Optional.of(clazz.cast(candidate));
     }
 
-    public void addLocation(String location) {
-        this.locations.add(location);
+    public boolean addLocation(String location) {
+        return this.locations.add(location);
     }
 
     public void removeLocation(String location) {
@@ -29,10 +29,14 @@
  */
 package net.ripe.rpki.validator3.domain;
 
+import net.ripe.rpki.validator3.util.Sha256Key;
 import org.apache.commons.lang3.tuple.Pair;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 public interface RpkiObjects {
@@ -43,14 +47,61 @@ public interface RpkiObjects {
     Stream<Pair<CertificateTreeValidationRun, RpkiObject>> findCurrentlyValidated();
 
     void merge(RpkiObject object);
+
+    /**
+     * Writes all pending changes to the database and removes the given objects from the persistence context, so
+     * large imports do not keep every imported object in memory until the transaction commits. The detached
+     * objects must not be modified afterwards, use {@link #get(long)} to obtain a managed instance instead.
+     */
+    void flushAndDetach(Collection<RpkiObject> objects);
     
     RpkiObject get(long id);
 
     Optional<RpkiObject> findBySha256(byte[] sha256);
 
+    /**
+     * @return the objects found for the given hashes, keyed by their SHA-256
+     */
+    Map<Sha256Key, RpkiObject> findBySha256In(Collection<byte[]> sha256s);
+
+    /**
+     * @return the identifiers of the objects found for the given hashes, keyed by their SHA-256. The objects
+     * themselves are not loaded
+     */
+    Map<Sha256Key, Long> findIdsBySha256In(Collection<byte[]> sha256s);
+
+    /**
+     * @return a predicate that tells whether an object with the given SHA-256 is stored. The predicate does not
+     * access the database, so it can be used on other threads. It may still match objects whose removal is not
+     * committed yet
+     */
+    Predicate<byte[]> isStoredSha256();
+
+    /**
+     * Removes and adds locations of the objects with the given identifiers in bulk, without loading the objects.
+     * Removals are applied before additions.
+     */
+    void updateLocations(Collection<Pair<Long, String>> removed, Collection<Pair<Long, String>> added);
+
+    /**
+     * Removes objects that have no locations and are not referenced by any validation run.
+     *
+     * @param limit the maximum number of objects to remove
+     * @return the number of removed objects
+     */
+    int removeUnreferenced(int limit);
+
     Stream<RpkiObject> all();
 
     Optional<RpkiObject> findLatestByTypeAndAuthorityKeyIdentifier(RpkiObject.Type type, byte[] authorityKeyIdentifier);
 
     Stream<Pair<CertificateTreeValidationRun, RpkiObject>> findCurrentlyValidated(RpkiObject.Type type);
+
+    /**
+     * @return the currently validated objects selected by the filter, together with their location. Objects without
+     * a location are included with an empty location, so they come first. The objects are detached from the
+     * persistence context while the stream is consumed, so the stream can be used to process more objects than fit
+     * in memory.
+     */
+    Stream<Pair<String, RpkiObject>> findCurrentlyValidated(RpkiObjectFilter filter);
 }
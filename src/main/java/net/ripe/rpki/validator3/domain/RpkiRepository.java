@@ -108,6 +108,22 @@ public class RpkiRepository extends AbstractEntity {
     @Setter
     private BigInteger rrdpSerial;
 
+    /**
+     * Value of the ETag header of the last processed notification file, sent back as If-None-Match.
+     */
+    @Basic
+    @Getter
+    @Setter
+    private String rrdpNotificationEtag;
+
+    /**
+     * Value of the Last-Modified header of the last processed notification file, sent back as If-Modified-Since.
+     */
+    @Basic
+    @Getter
+    @Setter
+    private String rrdpNotificationLastModified;
+
     protected RpkiRepository() {
     }
 
@@ -0,0 +1,89 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import lombok.Getter;
+import net.ripe.rpki.validator3.domain.constraints.ValidLocationURI;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.validation.constraints.NotNull;
+import java.time.Instant;
+
+/**
+ * A file in the local rsync storage directory that was stored as an {@link RpkiObject}. The size and last modified
+ * time are used to detect that the file was modified since it was stored.
+ */
+@Entity
+public class RsyncFile extends AbstractEntity {
+
+    @Basic
+    @NotNull
+    @ValidLocationURI
+    @Getter
+    private String location;
+
+    @Basic
+    @Getter
+    private long size;
+
+    @Basic
+    @NotNull
+    @Getter
+    private Instant lastModified;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "rpki_object_id")
+    @NotNull
+    private RpkiObject rpkiObject;
+
+    @Column(name = "rpki_object_id", insertable = false, updatable = false)
+    @Getter
+    private long rpkiObjectId;
+
+    protected RsyncFile() {
+    }
+
+    public RsyncFile(String location, long size, Instant lastModified, RpkiObject rpkiObject) {
+        this.location = location;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.rpkiObject = rpkiObject;
+        this.rpkiObjectId = rpkiObject.getId();
+    }
+
+    public boolean isModified(long size, Instant lastModified) {
+        return this.size != size || !this.lastModified.equals(lastModified);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import lombok.Value;
+import net.ripe.ipresource.IpRange;
+
+import java.util.Comparator;
+
+/**
+ * A validated ROA payload: a prefix and origin AS taken from a validated ROA, together with the trust anchor it was
+ * validated under.
+ */
+@Value
+public class ValidatedRoaPrefix implements Comparable<ValidatedRoaPrefix> {
+    private static final Comparator<ValidatedRoaPrefix> ORDERING = Comparator
+        .comparing(ValidatedRoaPrefix::getTrustAnchor)
+        .thenComparingLong(ValidatedRoaPrefix::getAsn)
+        .thenComparing(ValidatedRoaPrefix::getPrefix)
+        .thenComparing(ValidatedRoaPrefix::getMaximumLength, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    long asn;
+    IpRange prefix;
+    Integer maximumLength;
+    String trustAnchor;
+
+    public static ValidatedRoaPrefix of(RoaPrefix roaPrefix, String trustAnchor) {
+        return new ValidatedRoaPrefix(roaPrefix.getAsn(), IpRange.parse(roaPrefix.getPrefix()), roaPrefix.getMaximumLength(), trustAnchor);
+    }
+
+    public int getEffectiveMaximumLength() {
+        return maximumLength != null ? maximumLength : prefix.getPrefixLength();
+    }
+
+    @Override
+    public int compareTo(ValidatedRoaPrefix that) {
+        return ORDERING.compare(this, that);
+    }
+}
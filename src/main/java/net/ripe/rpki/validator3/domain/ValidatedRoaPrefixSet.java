@@ -0,0 +1,140 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import net.ripe.ipresource.IpAddress;
+import net.ripe.ipresource.IpRange;
+import net.ripe.ipresource.IpResourceType;
+import net.ripe.ipresource.Ipv4Address;
+import net.ripe.ipresource.Ipv6Address;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Immutable, sorted set of validated ROA prefixes. The prefixes are stored in primitive arrays rather than as
+ * objects, so even the complete set of all trust anchors takes little memory and can be replaced as a whole.
+ */
+public final class ValidatedRoaPrefixSet {
+    public static final ValidatedRoaPrefixSet EMPTY = of(new ArrayList<>());
+
+    private static final int NO_MAXIMUM_LENGTH = 0xff;
+    private static final BigInteger LOW_BITS = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+
+    private final String[] trustAnchors;
+    private final short[] trustAnchorIndexes;
+    private final int[] asns;
+    private final long[] addresses;
+    private final BitSet ipv6;
+    private final byte[] prefixLengths;
+    private final byte[] maximumLengths;
+
+    private ValidatedRoaPrefixSet(List<ValidatedRoaPrefix> sorted) {
+        int size = sorted.size();
+        this.trustAnchors = sorted.stream().map(ValidatedRoaPrefix::getTrustAnchor).distinct().toArray(String[]::new);
+        this.trustAnchorIndexes = new short[size];
+        this.asns = new int[size];
+        this.addresses = new long[2 * size];
+        this.ipv6 = new BitSet(size);
+        this.prefixLengths = new byte[size];
+        this.maximumLengths = new byte[size];
+
+        int trustAnchorIndex = 0;
+        for (int i = 0; i < size; ++i) {
+            ValidatedRoaPrefix prefix = sorted.get(i);
+            if (!trustAnchors[trustAnchorIndex].equals(prefix.getTrustAnchor())) {
+                ++trustAnchorIndex;
+            }
+            trustAnchorIndexes[i] = (short) trustAnchorIndex;
+            asns[i] = (int) prefix.getAsn();
+
+            BigInteger address = prefix.getPrefix().getStart().getValue();
+            addresses[2 * i] = address.shiftRight(64).longValue();
+            addresses[2 * i + 1] = address.and(LOW_BITS).longValue();
+            ipv6.set(i, prefix.getPrefix().getType() == IpResourceType.IPv6);
+            prefixLengths[i] = (byte) prefix.getPrefix().getPrefixLength();
+            maximumLengths[i] = (byte) (prefix.getMaximumLength() == null ? NO_MAXIMUM_LENGTH : prefix.getMaximumLength());
+        }
+    }
+
+    /**
+     * @return the set of the given prefixes, without duplicates
+     */
+    public static ValidatedRoaPrefixSet of(Collection<ValidatedRoaPrefix> prefixes) {
+        List<ValidatedRoaPrefix> sorted = new ArrayList<>(prefixes.size());
+        prefixes.stream().sorted().forEachOrdered(prefix -> {
+            if (sorted.isEmpty() || !sorted.get(sorted.size() - 1).equals(prefix)) {
+                sorted.add(prefix);
+            }
+        });
+        return new ValidatedRoaPrefixSet(sorted);
+    }
+
+    /**
+     * @return the union of the given sets
+     */
+    public static ValidatedRoaPrefixSet union(Collection<ValidatedRoaPrefixSet> sets) {
+        List<ValidatedRoaPrefix> all = new ArrayList<>(sets.stream().mapToInt(ValidatedRoaPrefixSet::size).sum());
+        sets.forEach(set -> set.stream().forEach(all::add));
+        return of(all);
+    }
+
+    public int size() {
+        return asns.length;
+    }
+
+    public ValidatedRoaPrefix get(int index) {
+        int maximumLength = maximumLengths[index] & 0xff;
+        return new ValidatedRoaPrefix(
+            Integer.toUnsignedLong(asns[index]),
+            IpRange.prefix(address(index), prefixLengths[index] & 0xff),
+            maximumLength == NO_MAXIMUM_LENGTH ? null : maximumLength,
+            trustAnchors[trustAnchorIndexes[index]]
+        );
+    }
+
+    public Stream<ValidatedRoaPrefix> stream() {
+        return IntStream.range(0, size()).mapToObj(this::get);
+    }
+
+    private IpAddress address(int index) {
+        long high = addresses[2 * index];
+        long low = addresses[2 * index + 1];
+        if (!ipv6.get(index)) {
+            return new Ipv4Address(low);
+        }
+        return new Ipv6Address(BigInteger.valueOf(high).and(LOW_BITS).shiftLeft(64).or(BigInteger.valueOf(low).and(LOW_BITS)));
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import net.ripe.ipresource.IpAddress;
+import net.ripe.ipresource.IpRange;
+import net.ripe.ipresource.IpResourceType;
+import net.ripe.ipresource.Ipv4Address;
+import net.ripe.ipresource.Ipv6Address;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, path compressed binary trie of validated ROA prefixes, with separate roots for IPv4 and IPv6. Finding
+ * the prefixes covering a route takes at most one step per bit of the route's prefix length.
+ * <p>
+ * Updates copy only the nodes on the path to a changed prefix, so the trie of a new set of validated ROA prefixes is
+ * derived from the differences with the previous set, while the previous trie remains usable.
+ */
+public final class ValidatedRoaPrefixTrie {
+    public static final ValidatedRoaPrefixTrie EMPTY = new ValidatedRoaPrefixTrie(new String[0], null, null);
+
+    private static final int ADDRESS_LENGTH = 128;
+    private static final BigInteger LOW_BITS = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+    // Shared by all branch nodes, so lookups do not load a separate empty array for every branch they pass
+    private static final long[] NO_ENTRIES = new long[0];
+
+    private final String[] trustAnchors;
+    private final Node ipv4Root;
+    private final Node ipv6Root;
+
+    private ValidatedRoaPrefixTrie(String[] trustAnchors, Node ipv4Root, Node ipv6Root) {
+        this.trustAnchors = trustAnchors;
+        this.ipv4Root = ipv4Root;
+        this.ipv6Root = ipv6Root;
+    }
+
+    public static ValidatedRoaPrefixTrie of(ValidatedRoaPrefixSet prefixes) {
+        return EMPTY.update(ValidatedRoaPrefixSet.EMPTY, prefixes);
+    }
+
+    /**
+     * @param previous the prefixes this trie contains
+     * @param current the prefixes the resulting trie must contain
+     * @return the trie containing the current prefixes
+     */
+    public ValidatedRoaPrefixTrie update(ValidatedRoaPrefixSet previous, ValidatedRoaPrefixSet current) {
+        List<String> updatedTrustAnchors = new ArrayList<>(Arrays.asList(trustAnchors));
+        Node[] roots = {ipv4Root, ipv6Root};
+
+        int i = 0;
+        int j = 0;
+        while (i < previous.size() || j < current.size()) {
+            ValidatedRoaPrefix removed = i < previous.size() ? previous.get(i) : null;
+            ValidatedRoaPrefix added = j < current.size() ? current.get(j) : null;
+            int comparison = removed == null ? 1 : added == null ? -1 : removed.compareTo(added);
+            if (comparison < 0) {
+                int root = rootIndex(removed);
+                roots[root] = remove(roots[root], key(removed), removed.getPrefix().getPrefixLength(), entry(removed, updatedTrustAnchors));
+                ++i;
+            } else if (comparison > 0) {
+                int root = rootIndex(added);
+                roots[root] = insert(roots[root], key(added), added.getPrefix().getPrefixLength(), entry(added, updatedTrustAnchors));
+                ++j;
+            } else {
+                ++i;
+                ++j;
+            }
+        }
+
+        return new ValidatedRoaPrefixTrie(updatedTrustAnchors.toArray(new String[0]), roots[0], roots[1]);
+    }
+
+    /**
+     * Validates the origin of a route as specified in RFC 6811. Validated ROA prefixes with AS 0 never match.
+     */
+    public RouteValidity validate(long asn, IpRange route) {
+        boolean ipv4 = route.getType() == IpResourceType.IPv4;
+        long[] key = key(route);
+        int length = route.getPrefixLength();
+
+        // Most routes are covered by few validated ROA prefixes, so the lists are only allocated when needed
+        List<ValidatedRoaPrefix> matched = Collections.emptyList();
+        List<ValidatedRoaPrefix> unmatchedAsn = Collections.emptyList();
+        List<ValidatedRoaPrefix> unmatchedLength = Collections.emptyList();
+        Node node = ipv4 ? ipv4Root : ipv6Root;
+        while (node != null && node.length <= length && commonLength(node.high, node.low, key[0], key[1], node.length) == node.length) {
+            IpRange prefix = node.entries.length == 0 ? null : prefix(node, ipv4);
+            for (long entry : node.entries) {
+                ValidatedRoaPrefix validatedRoaPrefix = validatedRoaPrefix(prefix, entry);
+                if (validatedRoaPrefix.getAsn() != asn || asn == 0) {
+                    unmatchedAsn = add(unmatchedAsn, validatedRoaPrefix);
+                } else if (validatedRoaPrefix.getEffectiveMaximumLength() < length) {
+                    unmatchedLength = add(unmatchedLength, validatedRoaPrefix);
+                } else {
+                    matched = add(matched, validatedRoaPrefix);
+                }
+            }
+            node = node.length == length ? null : bit(key[0], key[1], node.length) == 0 ? node.zero : node.one;
+        }
+
+        RouteValidity.Validity validity = !matched.isEmpty() ? RouteValidity.Validity.VALID
+            : !unmatchedAsn.isEmpty() || !unmatchedLength.isEmpty() ? RouteValidity.Validity.INVALID
+            : RouteValidity.Validity.NOT_FOUND;
+        return new RouteValidity(validity, matched, unmatchedAsn, unmatchedLength);
+    }
+
+    private static List<ValidatedRoaPrefix> add(List<ValidatedRoaPrefix> list, ValidatedRoaPrefix prefix) {
+        List<ValidatedRoaPrefix> result = list.isEmpty() ? new ArrayList<>(4) : list;
+        result.add(prefix);
+        return result;
+    }
+
+    private static Node insert(Node node, long[] key, int length, long entry) {
+        if (node == null) {
+            return new Node(key[0], key[1], length, new long[]{entry}, null, null);
+        }
+
+        int common = commonLength(node.high, node.low, key[0], key[1], Math.min(node.length, length));
+        if (common == node.length && common == length) {
+            long[] entries = Arrays.copyOf(node.entries, node.entries.length + 1);
+            entries[entries.length - 1] = entry;
+            Arrays.sort(entries);
+            return new Node(node.high, node.low, node.length, entries, node.zero, node.one);
+        } else if (common == node.length) {
+            return bit(key[0], key[1], node.length) == 0
+                ? new Node(node.high, node.low, node.length, node.entries, insert(node.zero, key, length, entry), node.one)
+                : new Node(node.high, node.low, node.length, node.entries, node.zero, insert(node.one, key, length, entry));
+        } else if (common == length) {
+            return bit(node.high, node.low, length) == 0
+                ? new Node(key[0], key[1], length, new long[]{entry}, node, null)
+                : new Node(key[0], key[1], length, new long[]{entry}, null, node);
+        } else {
+            Node leaf = new Node(key[0], key[1], length, new long[]{entry}, null, null);
+            long[] branch = mask(key, common);
+            return bit(key[0], key[1], common) == 0
+                ? new Node(branch[0], branch[1], common, NO_ENTRIES, leaf, node)
+                : new Node(branch[0], branch[1], common, NO_ENTRIES, node, leaf);
+        }
+    }
+
+    private static Node remove(Node node, long[] key, int length, long entry) {
+        if (node == null || node.length > length || commonLength(node.high, node.low, key[0], key[1], node.length) < node.length) {
+            return node;
+        }
+
+        if (node.length == length) {
+            int index = Arrays.binarySearch(node.entries, entry);
+            if (index < 0) {
+                return node;
+            }
+            long[] entries = node.entries.length == 1 ? NO_ENTRIES : new long[node.entries.length - 1];
+            System.arraycopy(node.entries, 0, entries, 0, index);
+            System.arraycopy(node.entries, index + 1, entries, index, entries.length - index);
+            return compact(new Node(node.high, node.low, node.length, entries, node.zero, node.one));
+        } else if (bit(key[0], key[1], node.length) == 0) {
+            Node zero = remove(node.zero, key, length, entry);
+            return zero == node.zero ? node : compact(new Node(node.high, node.low, node.length, node.entries, zero, node.one));
+        } else {
+            Node one = remove(node.one, key, length, entry);
+            return one == node.one ? node : compact(new Node(node.high, node.low, node.length, node.entries, node.zero, one));
+        }
+    }
+
+    /**
+     * Removes nodes without prefixes that do not branch.
+     */
+    private static Node compact(Node node) {
+        if (node.entries.length > 0 || (node.zero != null && node.one != null)) {
+            return node;
+        }
+        return node.zero != null ? node.zero : node.one;
+    }
+
+    private static int rootIndex(ValidatedRoaPrefix prefix) {
+        return prefix.getPrefix().getType() == IpResourceType.IPv4 ? 0 : 1;
+    }
+
+    /**
+     * Entries are ordered by ASN, which keeps the order of the validated ROA prefixes of a node stable.
+     */
+    private static long entry(ValidatedRoaPrefix prefix, List<String> trustAnchors) {
+        int trustAnchor = trustAnchors.indexOf(prefix.getTrustAnchor());
+        if (trustAnchor < 0) {
+            trustAnchor = trustAnchors.size();
+            trustAnchors.add(prefix.getTrustAnchor());
+        }
+        return (prefix.getAsn() << 24) | ((long) prefix.getEffectiveMaximumLength() << 16) | trustAnchor;
+    }
+
+    private static IpRange prefix(Node node, boolean ipv4) {
+        // Racy but safe, as the prefix is immutable and always computed the same
+        IpRange prefix = node.prefix;
+        if (prefix == null) {
+            prefix = newPrefix(node, ipv4);
+            node.prefix = prefix;
+        }
+        return prefix;
+    }
+
+    private static IpRange newPrefix(Node node, boolean ipv4) {
+        IpAddress address = ipv4
+            ? new Ipv4Address(node.high >>> 32)
+            : new Ipv6Address(BigInteger.valueOf(node.high).and(LOW_BITS).shiftLeft(64).or(BigInteger.valueOf(node.low).and(LOW_BITS)));
+        return IpRange.prefix(address, node.length);
+    }
+
+    private ValidatedRoaPrefix validatedRoaPrefix(IpRange prefix, long entry) {
+        return new ValidatedRoaPrefix(entry >>> 24, prefix, (int) ((entry >>> 16) & 0xff), trustAnchors[(int) (entry & 0xffff)]);
+    }
+
+    private static long[] key(ValidatedRoaPrefix prefix) {
+        return key(prefix.getPrefix());
+    }
+
+    /**
+     * @return the start address of the prefix as 128 bits, IPv4 addresses are aligned to the most significant bit
+     */
+    private static long[] key(IpRange prefix) {
+        if (prefix.getType() == IpResourceType.IPv4) {
+            return new long[]{((Ipv4Address) prefix.getStart()).longValue() << 32, 0};
+        }
+        BigInteger address = prefix.getStart().getValue();
+        return new long[]{address.shiftRight(64).longValue(), address.longValue()};
+    }
+
+    private static long[] mask(long[] key, int length) {
+        return new long[]{
+            length == 0 ? 0 : length >= 64 ? key[0] : key[0] & (-1L << (64 - length)),
+            length <= 64 ? 0 : key[1] & (-1L << (ADDRESS_LENGTH - length))
+        };
+    }
+
+    private static int bit(long high, long low, int index) {
+        return (int) ((index < 64 ? high >>> (63 - index) : low >>> (127 - index)) & 1);
+    }
+
+    /**
+     * @return the number of leading bits the keys have in common, at most the given maximum
+     */
+    private static int commonLength(long high1, long low1, long high2, long low2, int maximum) {
+        int common = high1 != high2 ? Long.numberOfLeadingZeros(high1 ^ high2) : 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+        return Math.min(common, maximum);
+    }
+
+    private static final class Node {
+        private final long high;
+        private final long low;
+        private final int length;
+        private final long[] entries;
+        private final Node zero;
+        private final Node one;
+        // The prefix of the node, created by the first lookup that needs it
+        private IpRange prefix;
+
+        private Node(long high, long low, int length, long[] entries, Node zero, Node one) {
+            this.high = high;
+            this.low = low;
+            this.length = length;
+            this.entries = entries;
+            this.zero = zero;
+            this.one = one;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The validated ROA prefixes of the latest successful certificate tree validation run of every trust anchor.
+ *
+ * The set is loaded from the database on first use and from then on replaced whenever a certificate tree validation
+ * run completes, so readers never need to access the database. Listeners are notified of every replacement.
+ */
+@Component
+@Slf4j
+public class ValidatedRoaPrefixes {
+
+    private final PlatformTransactionManager transactionManager;
+    private final RpkiObjects rpkiObjects;
+
+    private final Map<Long, ValidatedRoaPrefixSet> prefixesByTrustAnchor = new HashMap<>();
+    private final List<Consumer<ValidatedRoaPrefixSet>> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile ValidatedRoaPrefixSet current;
+
+    @Autowired
+    public ValidatedRoaPrefixes(PlatformTransactionManager transactionManager, RpkiObjects rpkiObjects) {
+        this.transactionManager = transactionManager;
+        this.rpkiObjects = rpkiObjects;
+    }
+
+    public ValidatedRoaPrefixSet getCurrent() {
+        ValidatedRoaPrefixSet result = current;
+        return result != null ? result : load();
+    }
+
+    public void addListener(Consumer<ValidatedRoaPrefixSet> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Replaces the prefixes of the trust anchor with the prefixes of the validated ROAs once the current transaction
+     * commits.
+     */
+    public void update(TrustAnchor trustAnchor, Collection<RpkiObject> validatedObjects) {
+        List<ValidatedRoaPrefix> prefixes = new ArrayList<>();
+        validatedObjects.stream()
+            .filter(object -> object.getType() == RpkiObject.Type.ROA)
+            .forEach(roa -> roa.getRoaPrefixes().forEach(prefix -> prefixes.add(ValidatedRoaPrefix.of(prefix, trustAnchor.getName()))));
+
+        ValidatedRoaPrefixSet prefixSet = ValidatedRoaPrefixSet.of(prefixes);
+        long trustAnchorId = trustAnchor.getId();
+        afterCommit(() -> replace(trustAnchorId, prefixSet));
+    }
+
+    /**
+     * Removes the prefixes of the trust anchor once the current transaction commits.
+     */
+    public void remove(TrustAnchor trustAnchor) {
+        long trustAnchorId = trustAnchor.getId();
+        afterCommit(() -> replace(trustAnchorId, null));
+    }
+
+    private synchronized void replace(long trustAnchorId, ValidatedRoaPrefixSet prefixSet) {
+        if (prefixSet == null) {
+            prefixesByTrustAnchor.remove(trustAnchorId);
+        } else {
+            prefixesByTrustAnchor.put(trustAnchorId, prefixSet);
+        }
+        if (current != null) {
+            current = ValidatedRoaPrefixSet.union(prefixesByTrustAnchor.values());
+            listeners.forEach(listener -> listener.accept(current));
+        }
+    }
+
+    private synchronized ValidatedRoaPrefixSet load() {
+        if (current == null) {
+            Map<Long, List<ValidatedRoaPrefix>> loaded = new HashMap<>();
+            new TransactionTemplate(transactionManager).execute((status) -> {
+                try (Stream<Pair<CertificateTreeValidationRun, RpkiObject>> validated = rpkiObjects.findCurrentlyValidated(RpkiObject.Type.ROA)) {
+                    validated.forEach(pair -> {
+                        TrustAnchor trustAnchor = pair.getKey().getTrustAnchor();
+                        List<ValidatedRoaPrefix> prefixes = loaded.computeIfAbsent(trustAnchor.getId(), (id) -> new ArrayList<>());
+                        pair.getValue().getRoaPrefixes().forEach(prefix -> prefixes.add(ValidatedRoaPrefix.of(prefix, trustAnchor.getName())));
+                    });
+                }
+                return null;
+            });
+
+            // Trust anchors validated while loading already have more recent prefixes
+            loaded.forEach((trustAnchorId, prefixes) -> prefixesByTrustAnchor.putIfAbsent(trustAnchorId, ValidatedRoaPrefixSet.of(prefixes)));
+            current = ValidatedRoaPrefixSet.union(prefixesByTrustAnchor.values());
+            log.info("Loaded {} validated ROA prefixes", current.size());
+        }
+        return current;
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+}
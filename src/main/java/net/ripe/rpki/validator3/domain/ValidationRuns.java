@@ -48,4 +48,15 @@ public interface ValidationRuns {
     void runCertificateTreeValidation(TrustAnchor trustAnchor);
 
     void removeAllForRpkiRepository(RpkiRepository repository);
+
+    /**
+     * Removes validation runs that are older than the given number of most recent runs of the same type for the same
+     * trust anchor or repository. Running validation runs and the latest successful validation runs are never
+     * removed.
+     *
+     * @param keep the number of most recent validation runs to keep, at least one
+     * @param limit the maximum number of validation runs to remove
+     * @return the number of removed validation runs
+     */
+    int removeOldValidationRuns(int keep, int limit);
 }
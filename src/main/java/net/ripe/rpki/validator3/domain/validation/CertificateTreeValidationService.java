@@ -41,30 +41,46 @@ import net.ripe.rpki.commons.validation.ValidationOptions;
 import net.ripe.rpki.commons.validation.ValidationResult;
 import net.ripe.rpki.commons.validation.ValidationString;
 import net.ripe.rpki.commons.validation.objectvalidators.CertificateRepositoryObjectValidationContext;
+import net.ripe.rpki.validator3.domain.AuthorityChangeLog;
 import net.ripe.rpki.validator3.domain.CertificateTreeValidationRun;
+import net.ripe.rpki.validator3.domain.DecodedObjectCache;
 import net.ripe.rpki.validator3.domain.RpkiObject;
 import net.ripe.rpki.validator3.domain.RpkiObjects;
 import net.ripe.rpki.validator3.domain.RpkiRepositories;
 import net.ripe.rpki.validator3.domain.RpkiRepository;
 import net.ripe.rpki.validator3.domain.TrustAnchor;
 import net.ripe.rpki.validator3.domain.TrustAnchors;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixes;
 import net.ripe.rpki.validator3.domain.ValidationRuns;
-import net.ripe.rpki.validator3.util.Sha256;
+import net.ripe.rpki.validator3.util.Sha256Key;
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import javax.persistence.EntityManager;
 import javax.persistence.FlushModeType;
 import javax.transaction.Transactional;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import static java.util.stream.Collectors.toList;
 
@@ -77,6 +93,16 @@ public class CertificateTreeValidationService {
     private final RpkiObjects rpkiObjects;
     private final RpkiRepositories rpkiRepositories;
     private final ValidationRuns validationRuns;
+    private final DecodedObjectCache decodedObjectCache;
+    private final AuthorityChangeLog authorityChangeLog;
+    private final ValidatedRoaPrefixes validatedRoaPrefixes;
+    private final ExecutorService validationExecutor;
+
+    /**
+     * The outcome of the latest validation run per trust anchor, used to carry unchanged certificate authorities
+     * forward by {@link #validateIncrementally(long)}.
+     */
+    private final Map<Long, ValidatedTree> validatedTrees = new ConcurrentHashMap<>();
 
     @Autowired
     public CertificateTreeValidationService(
@@ -84,22 +110,70 @@ public class CertificateTreeValidationService {
         TrustAnchors trustAnchors,
         RpkiObjects rpkiObjects,
         RpkiRepositories rpkiRepositories,
-        ValidationRuns validationRuns
+        ValidationRuns validationRuns,
+        DecodedObjectCache decodedObjectCache,
+        AuthorityChangeLog authorityChangeLog,
+        ValidatedRoaPrefixes validatedRoaPrefixes,
+        @Value("${rpki.validator.certificate.tree.validation.threads}") int validationThreads
     ) {
         this.entityManager = entityManager;
         this.trustAnchors = trustAnchors;
         this.rpkiObjects = rpkiObjects;
         this.rpkiRepositories = rpkiRepositories;
         this.validationRuns = validationRuns;
+        this.decodedObjectCache = decodedObjectCache;
+        this.authorityChangeLog = authorityChangeLog;
+        this.validatedRoaPrefixes = validatedRoaPrefixes;
+        this.validationExecutor = Executors.newFixedThreadPool(validationThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "certificate-tree-validation-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
+    @PreDestroy
+    public void shutdown() {
+        validationExecutor.shutdownNow();
+    }
+
+    /**
+     * Validates the complete certificate tree of the trust anchor.
+     */
     @Transactional(Transactional.TxType.REQUIRED)
     public void validate(long trustAnchorId) {
-        Map<URI, RpkiRepository> registeredRepositories = new HashMap<>();
+        validate(trustAnchorId, false);
+    }
+
+    /**
+     * Validates the certificate tree of the trust anchor, but only revalidates the certificate authorities that
+     * published or withdrew objects since the previous run, or whose certificate changed. The validated objects and
+     * checks of the other certificate authorities are carried forward from the previous run. Changes that do not
+     * involve new objects, such as expiring objects, are only noticed by {@link #validate(long)}.
+     */
+    @Transactional(Transactional.TxType.REQUIRED)
+    public void validateIncrementally(long trustAnchorId) {
+        validate(trustAnchorId, true);
+    }
+
+    private void validate(long trustAnchorId, boolean incremental) {
         entityManager.setFlushMode(FlushModeType.COMMIT);
 
+        // Take the change number before reading anything, so changes committed during this run are picked up by the
+        // next run
+        long changeNumber = authorityChangeLog.getLatestChangeNumber();
+        // A run that does not complete leaves no validated tree behind, so the next run validates the full tree
+        ValidatedTree previous = validatedTrees.remove(trustAnchorId);
+        if (!incremental) {
+            previous = null;
+        }
+
         TrustAnchor trustAnchor = trustAnchors.get(trustAnchorId);
-        log.info("starting tree validation for {}", trustAnchor);
+        log.info("starting {} tree validation for {}", previous == null ? "full" : "incremental", trustAnchor);
 
         CertificateTreeValidationRun validationRun = new CertificateTreeValidationRun(trustAnchor);
         validationRuns.add(validationRun);
@@ -130,86 +204,146 @@ public class CertificateTreeValidationService {
                 return;
             }
 
+            ValidatedTree validatedTree = new ValidatedTree(changeNumber);
             validationRun.getValidatedObjects().addAll(
-                validateCertificateAuthority(trustAnchor, registeredRepositories, context, validationResult)
+                validateCertificateAuthorities(trustAnchor, context, validationResult, previous, validatedTree)
             );
+            validatedTrees.put(trustAnchorId, validatedTree);
         } finally {
             validationRun.completeWith(validationResult);
+            if (validationRun.isSucceeded()) {
+                validatedRoaPrefixes.update(trustAnchor, validationRun.getValidatedObjects());
+            }
             log.info("tree validation {} for {}", validationRun.getStatus(), trustAnchor);
         }
     }
 
-    private List<RpkiObject> validateCertificateAuthority(TrustAnchor trustAnchor, Map<URI, RpkiRepository> registeredRepositories, CertificateRepositoryObjectValidationContext context, ValidationResult validationResult) {
+    /**
+     * Validates the certificate authorities below the trust anchor one level of the tree at a time.
+     * Repository registration and object lookups are done on the calling thread, inside the current
+     * transaction. The parsing and signature checks of the certificate authorities of a level run on
+     * the validation executor. The results are merged in tree order, so the outcome does not depend
+     * on the number of validation threads.
+     *
+     * Certificate authorities that did not change since the previous validated tree (if any) are not
+     * validated again, their previous outcome is used instead. All complete outcomes are recorded in
+     * the new validated tree.
+     */
+    private List<RpkiObject> validateCertificateAuthorities(TrustAnchor trustAnchor, CertificateRepositoryObjectValidationContext context, ValidationResult validationResult, ValidatedTree previous, ValidatedTree validatedTree) {
+        Map<URI, RpkiRepository> registeredRepositories = new HashMap<>();
         List<RpkiObject> validatedObjects = new ArrayList<>();
 
-        ValidationLocation certificateLocation = validationResult.getCurrentLocation();
-        ValidationResult temporary = ValidationResult.withLocation(certificateLocation);
+        List<CertificateAuthority> level = Collections.singletonList(new CertificateAuthority(validationResult.getCurrentLocation(), context));
+        while (!level.isEmpty()) {
+            List<Future<CertificateAuthority>> pending = new ArrayList<>(level.size());
+            for (CertificateAuthority ca : level) {
+                ValidatedCertificateAuthority unchanged = findUnchanged(previous, ca);
+                if (unchanged != null) {
+                    ca.carryForward(unchanged, id -> entityManager.getReference(RpkiObject.class, id));
+                    pending.add(CompletableFuture.completedFuture(ca));
+                } else if (retrieveCertificateAuthorityObjects(trustAnchor, registeredRepositories, ca)) {
+                    pending.add(validationExecutor.submit(() -> validateCertificateAuthority(ca)));
+                } else {
+                    pending.add(CompletableFuture.completedFuture(ca));
+                }
+            }
+
+            List<CertificateAuthority> nextLevel = new ArrayList<>();
+            for (Future<CertificateAuthority> future : pending) {
+                CertificateAuthority ca = waitForCertificateAuthority(future);
+                validationResult.addAll(ca.validationResult);
+                validatedObjects.addAll(ca.validatedObjects);
+                nextLevel.addAll(ca.children);
+                if (ca.complete) {
+                    validatedTree.certificateAuthorities.put(ca.certificateLocation, ca.toValidated());
+                }
+            }
+            level = nextLevel;
+        }
+
+        return validatedObjects;
+    }
+
+    private boolean retrieveCertificateAuthorityObjects(TrustAnchor trustAnchor, Map<URI, RpkiRepository> registeredRepositories, CertificateAuthority ca) {
+        ValidationResult temporary = ca.validationResult;
         try {
-            RpkiRepository rpkiRepository = registerRepository(trustAnchor, registeredRepositories, context);
+            RpkiRepository rpkiRepository = registerRepository(trustAnchor, registeredRepositories, ca.context);
 
             temporary.warnIfTrue(rpkiRepository.isPending(), "rpki.repository.pending", rpkiRepository.getLocationUri());
             temporary.rejectIfTrue(rpkiRepository.isFailed(), "rpki.repository.failed", rpkiRepository.getLocationUri());
             if (rpkiRepository.isPending() || temporary.hasFailureForCurrentLocation()) {
-                return validatedObjects;
+                return false;
             }
 
-            X509ResourceCertificate certificate = context.getCertificate();
-            URI manifestUri = certificate.getManifestUri();
+            URI manifestUri = ca.context.getCertificate().getManifestUri();
             temporary.setLocation(new ValidationLocation(manifestUri));
 
-            Optional<RpkiObject> manifestObject = rpkiObjects.findLatestByTypeAndAuthorityKeyIdentifier(RpkiObject.Type.MFT, context.getSubjectKeyIdentifier());
+            Optional<RpkiObject> manifestObject = rpkiObjects.findLatestByTypeAndAuthorityKeyIdentifier(RpkiObject.Type.MFT, ca.context.getSubjectKeyIdentifier());
             temporary.rejectIfFalse(manifestObject.isPresent(), ValidationString.VALIDATOR_CA_SHOULD_HAVE_MANIFEST, manifestUri.toASCIIString());
-            Optional<ManifestCms> maybeManifest = manifestObject.flatMap(x -> x.get(ManifestCms.class, temporary));
+            Optional<ManifestCms> maybeManifest = manifestObject.flatMap(x -> decodedObjectCache.get(x, ManifestCms.class, temporary));
             if (temporary.hasFailureForCurrentLocation()) {
-                return validatedObjects;
+                return false;
             }
 
-            ManifestCms manifest = maybeManifest.get();
+            ca.manifestObject = manifestObject.get();
+            ca.manifest = maybeManifest.get();
+            ca.objectsBySha256 = rpkiObjects.findBySha256In(ca.manifest.getFiles().values());
+            ca.complete = true;
+            return true;
+        } catch (Exception e) {
+            ca.exceptionOccurred(e);
+            return false;
+        }
+    }
+
+    private CertificateAuthority validateCertificateAuthority(CertificateAuthority ca) {
+        ValidationResult temporary = ca.validationResult;
+        try {
+            CertificateRepositoryObjectValidationContext context = ca.context;
+            ManifestCms manifest = ca.manifest;
+            URI manifestUri = context.getCertificate().getManifestUri();
+            temporary.setLocation(new ValidationLocation(manifestUri));
+
             List<Map.Entry<String, byte[]>> crlEntries = manifest.getFiles().entrySet().stream()
                 .filter((entry) -> RepositoryObjectType.parse(entry.getKey()) == RepositoryObjectType.Crl)
                 .collect(toList());
             temporary.rejectIfFalse(crlEntries.size() == 1, "manifest.contains.one.crl.entry", String.valueOf(crlEntries.size()));
             if (temporary.hasFailureForCurrentLocation()) {
-                return validatedObjects;
+                return ca;
             }
 
             Map.Entry<String, byte[]> crlEntry = crlEntries.get(0);
             URI crlUri = manifestUri.resolve(crlEntry.getKey());
 
-            Optional<RpkiObject> crlObject = rpkiObjects.findBySha256(crlEntry.getValue());
+            Optional<RpkiObject> crlObject = Optional.ofNullable(ca.objectsBySha256.get(Sha256Key.of(crlEntry.getValue())));
             temporary.rejectIfFalse(crlObject.isPresent(), "rpki.crl.found", crlUri.toASCIIString());
             if (temporary.hasFailureForCurrentLocation()) {
-                return validatedObjects;
+                return ca;
             }
 
             temporary.setLocation(new ValidationLocation(crlUri));
-            Optional<X509Crl> crl = crlObject.flatMap(x -> x.get(X509Crl.class, temporary));
+            Optional<X509Crl> crl = crlObject.flatMap(x -> decodedObjectCache.get(x, X509Crl.class, temporary));
             if (temporary.hasFailureForCurrentLocation()) {
-                return validatedObjects;
+                return ca;
             }
 
             crl.get().validate(crlUri.toASCIIString(), context, null, VALIDATION_OPTIONS, temporary);
             if (temporary.hasFailureForCurrentLocation()) {
-                return validatedObjects;
+                return ca;
             }
 
             temporary.setLocation(new ValidationLocation(manifestUri));
             manifest.validate(manifestUri.toASCIIString(), context, crl.get(), manifest.getCrlUri(), VALIDATION_OPTIONS, temporary);
             if (temporary.hasFailureForCurrentLocation()) {
-                return validatedObjects;
+                return ca;
             }
-            validatedObjects.add(manifestObject.get());
+            ca.validatedObjects.add(ca.manifestObject);
 
-            Map<URI, RpkiObject> manifestEntries = retrieveManifestEntries(manifest, manifestUri, temporary);
+            Map<URI, RpkiObject> manifestEntries = retrieveManifestEntries(manifest, manifestUri, ca.objectsBySha256, temporary);
 
             manifestEntries.forEach((location, obj) -> {
                 temporary.setLocation(new ValidationLocation(location));
-                temporary.rejectIfFalse(Arrays.equals(Sha256.hash(obj.getEncoded()), obj.getSha256()), "rpki.object.sha256.matches");
-                if (temporary.hasFailureForCurrentLocation()) {
-                    return;
-                }
-
-                Optional<CertificateRepositoryObject> maybeCertificateRepositoryObject = obj.get(CertificateRepositoryObject.class, temporary);
+                Optional<CertificateRepositoryObject> maybeCertificateRepositoryObject = decodedObjectCache.get(obj, CertificateRepositoryObject.class, temporary);
                 if (temporary.hasFailureForCurrentLocation()) {
                     return;
                 }
@@ -218,7 +352,7 @@ public class CertificateTreeValidationService {
                     certificateRepositoryObject.validate(location.toASCIIString(), context, crl.get(), crlUri, VALIDATION_OPTIONS, temporary);
 
                     if (!temporary.hasFailureForCurrentLocation()) {
-                        validatedObjects.add(obj);
+                        ca.validatedObjects.add(obj);
                     }
 
                     if (certificateRepositoryObject instanceof X509ResourceCertificate
@@ -226,17 +360,46 @@ public class CertificateTreeValidationService {
                         && !temporary.hasFailureForCurrentLocation()) {
 
                         CertificateRepositoryObjectValidationContext childContext = context.createChildContext(location, (X509ResourceCertificate) certificateRepositoryObject);
-                        validatedObjects.addAll(validateCertificateAuthority(trustAnchor, registeredRepositories, childContext, temporary));
+                        ca.children.add(new CertificateAuthority(temporary.getCurrentLocation(), childContext));
                     }
                 });
             });
         } catch (Exception e) {
-            validationResult.error("exception.occurred", e.toString(), ExceptionUtils.getStackTrace(e));
-        } finally {
-            validationResult.addAll(temporary);
+            ca.exceptionOccurred(e);
         }
 
-        return validatedObjects;
+        return ca;
+    }
+
+    /**
+     * A certificate authority is unchanged when it was validated completely in the previous run, was reached through
+     * the same validation context, and none of its objects were added or removed since.
+     */
+    private ValidatedCertificateAuthority findUnchanged(ValidatedTree previous, CertificateAuthority ca) {
+        if (previous == null) {
+            return null;
+        }
+        ValidatedCertificateAuthority validated = previous.certificateAuthorities.get(ca.certificateLocation);
+        if (validated == null
+            || !validated.context.equals(ca.context)
+            || authorityChangeLog.isChangedSince(ca.context.getSubjectKeyIdentifier(), previous.changeNumber)) {
+            return null;
+        }
+        return validated;
+    }
+
+    private CertificateAuthority waitForCertificateAuthority(Future<CertificateAuthority> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while validating certificate tree", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("error validating certificate authority: " + e.getCause(), e.getCause());
+        }
     }
 
     private RpkiRepository registerRepository(TrustAnchor trustAnchor, Map<URI, RpkiRepository> registeredRepositories, CertificateRepositoryObjectValidationContext context) {
@@ -255,14 +418,14 @@ public class CertificateTreeValidationService {
         }
     }
 
-    private Map<URI, RpkiObject> retrieveManifestEntries(ManifestCms manifest, URI manifestUri, ValidationResult
+    private Map<URI, RpkiObject> retrieveManifestEntries(ManifestCms manifest, URI manifestUri, Map<Sha256Key, RpkiObject> objectsBySha256, ValidationResult
         validationResult) {
         Map<URI, RpkiObject> result = new LinkedHashMap<>();
         for (Map.Entry<String, byte[]> entry : manifest.getFiles().entrySet()) {
             URI location = manifestUri.resolve(entry.getKey());
             validationResult.setLocation(new ValidationLocation(location));
 
-            Optional<RpkiObject> object = rpkiObjects.findBySha256(entry.getValue());
+            Optional<RpkiObject> object = Optional.ofNullable(objectsBySha256.get(Sha256Key.of(entry.getValue())));
             validationResult.rejectIfFalse(object.isPresent(), "manifest.entry.found", manifestUri.toASCIIString());
 
             object.ifPresent(obj -> {
@@ -277,4 +440,76 @@ public class CertificateTreeValidationService {
         }
         return result;
     }
+
+    /**
+     * State of a single certificate authority during tree validation. The objects are retrieved on the
+     * validating thread, after which the certificate authority is handed to a single validation
+     * thread. Checks are collected in its own validation result, which is merged by the caller.
+     */
+    private static class CertificateAuthority {
+        private final ValidationLocation certificateLocation;
+        private final CertificateRepositoryObjectValidationContext context;
+        private final ValidationResult validationResult;
+        private final List<RpkiObject> validatedObjects = new ArrayList<>();
+        private final List<CertificateAuthority> children = new ArrayList<>();
+
+        private RpkiObject manifestObject;
+        private ManifestCms manifest;
+        private Map<Sha256Key, RpkiObject> objectsBySha256;
+        private boolean complete;
+
+        CertificateAuthority(ValidationLocation certificateLocation, CertificateRepositoryObjectValidationContext context) {
+            this.certificateLocation = certificateLocation;
+            this.context = context;
+            this.validationResult = ValidationResult.withLocation(certificateLocation);
+        }
+
+        void carryForward(ValidatedCertificateAuthority validated, Function<Long, RpkiObject> objectById) {
+            validationResult.addAll(validated.validationResult);
+            validated.validatedObjectIds.forEach(id -> validatedObjects.add(objectById.apply(id)));
+            validated.children.forEach(child -> children.add(new CertificateAuthority(child.getLeft(), child.getRight())));
+            complete = true;
+        }
+
+        ValidatedCertificateAuthority toValidated() {
+            return new ValidatedCertificateAuthority(
+                context,
+                validationResult,
+                validatedObjects.stream().map(RpkiObject::getId).collect(toList()),
+                children.stream().map(child -> Pair.of(child.certificateLocation, child.context)).collect(toList())
+            );
+        }
+
+        void exceptionOccurred(Exception e) {
+            complete = false;
+            validationResult.setLocation(certificateLocation);
+            validationResult.error("exception.occurred", e.toString(), ExceptionUtils.getStackTrace(e));
+        }
+    }
+
+    /**
+     * The outcome of validating a single certificate authority, without its (potentially large) objects.
+     */
+    private static class ValidatedCertificateAuthority {
+        private final CertificateRepositoryObjectValidationContext context;
+        private final ValidationResult validationResult;
+        private final List<Long> validatedObjectIds;
+        private final List<Pair<ValidationLocation, CertificateRepositoryObjectValidationContext>> children;
+
+        ValidatedCertificateAuthority(CertificateRepositoryObjectValidationContext context, ValidationResult validationResult, List<Long> validatedObjectIds, List<Pair<ValidationLocation, CertificateRepositoryObjectValidationContext>> children) {
+            this.context = context;
+            this.validationResult = validationResult;
+            this.validatedObjectIds = validatedObjectIds;
+            this.children = children;
+        }
+    }
+
+    private static class ValidatedTree {
+        private final long changeNumber;
+        private final Map<ValidationLocation, ValidatedCertificateAuthority> certificateAuthorities = new HashMap<>();
+
+        ValidatedTree(long changeNumber) {
+            this.changeNumber = changeNumber;
+        }
+    }
 }
@@ -32,7 +32,6 @@ package net.ripe.rpki.validator3.domain.validation;
 import lombok.extern.slf4j.Slf4j;
 import net.ripe.rpki.commons.crypto.CertificateRepositoryObject;
 import net.ripe.rpki.commons.crypto.util.CertificateRepositoryObjectFactory;
-import net.ripe.rpki.commons.rsync.Rsync;
 import net.ripe.rpki.commons.validation.ValidationLocation;
 import net.ripe.rpki.commons.validation.ValidationResult;
 import net.ripe.rpki.validator3.domain.RpkiObject;
@@ -41,20 +40,23 @@ import net.ripe.rpki.validator3.domain.RpkiRepositories;
 import net.ripe.rpki.validator3.domain.RpkiRepository;
 import net.ripe.rpki.validator3.domain.RpkiRepositoryValidationRun;
 import net.ripe.rpki.validator3.domain.RrdpRepositoryValidationRun;
+import net.ripe.rpki.validator3.domain.RsyncFile;
+import net.ripe.rpki.validator3.domain.RsyncFiles;
 import net.ripe.rpki.validator3.domain.RsyncRepositoryValidationRun;
 import net.ripe.rpki.validator3.domain.TrustAnchor;
 import net.ripe.rpki.validator3.domain.ValidationRuns;
 import net.ripe.rpki.validator3.rrdp.RrdpService;
-import net.ripe.rpki.validator3.util.Hex;
+import net.ripe.rpki.validator3.rsync.RsyncFetcher;
 import net.ripe.rpki.validator3.util.RsyncUtils;
 import net.ripe.rpki.validator3.util.Sha256;
-import org.apache.commons.lang3.ArrayUtils;
+import net.ripe.rpki.validator3.util.Sha256Key;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import javax.persistence.EntityManager;
 import javax.persistence.FlushModeType;
 import javax.transaction.Transactional;
@@ -68,11 +70,26 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Service
@@ -80,12 +97,20 @@ import java.util.stream.Stream;
 @Transactional(Transactional.TxType.REQUIRED)
 public class RpkiRepositoryValidationService {
 
+    /**
+     * Number of files that are looked up in the database with a single query.
+     */
+    private static final int STORE_OBJECTS_BATCH_SIZE = 1000;
+
     private final EntityManager entityManager;
     private final ValidationRuns validationRunRepository;
     private final RpkiRepositories rpkiRepositories;
     private final RpkiObjects rpkiObjects;
     private final RrdpService rrdpService;
+    private final RsyncFetcher rsyncFetcher;
+    private final RsyncFiles rsyncFiles;
     private final File rsyncLocalStorageDirectory;
+    private final ExecutorService storeExecutor;
     private final String rsyncRepositoryDownloadInterval;
 
     @Autowired
@@ -95,15 +120,35 @@ public class RpkiRepositoryValidationService {
         RpkiRepositories rpkiRepositories,
         RpkiObjects rpkiObjects,
         RrdpService rrdpService,
+        RsyncFetcher rsyncFetcher,
+        RsyncFiles rsyncFiles,
         @Value("${rpki.validator.rsync.local.storage.directory}") File rsyncLocalStorageDirectory,
-        @Value("${rpki.validator.rsync.repository.download.interval}") String rsyncRepositoryDownloadInterval) {
+        @Value("${rpki.validator.rsync.repository.download.interval}") String rsyncRepositoryDownloadInterval,
+        @Value("${rpki.validator.rsync.store.threads}") int storeThreads) {
         this.entityManager = entityManager;
         this.validationRunRepository = validationRunRepository;
         this.rpkiRepositories = rpkiRepositories;
         this.rpkiObjects = rpkiObjects;
         this.rrdpService = rrdpService;
+        this.rsyncFetcher = rsyncFetcher;
+        this.rsyncFiles = rsyncFiles;
         this.rsyncLocalStorageDirectory = rsyncLocalStorageDirectory;
         this.rsyncRepositoryDownloadInterval = rsyncRepositoryDownloadInterval;
+        this.storeExecutor = Executors.newFixedThreadPool(storeThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rsync-store-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        storeExecutor.shutdownNow();
     }
 
     public void validateRpkiRepository(long rpkiRepositoryId) {
@@ -115,11 +160,14 @@ public class RpkiRepositoryValidationService {
         ValidationResult validationResult = ValidationResult.withLocation(rpkiRepository.getRrdpNotifyUri());
 
         final RpkiRepositoryValidationRun validationRun = new RrdpRepositoryValidationRun(rpkiRepository);
-        validationRunRepository.add(validationRun);
 
         final String uri = rpkiRepository.getRrdpNotifyUri();
         if (isRrdpUri(uri)) {
-            rrdpService.storeRepository(rpkiRepository, validationRun);
+            if (!rrdpService.storeRepository(rpkiRepository, validationRun)) {
+                // Nothing changed since the last validation run, so there is no need to record a new one
+                rpkiRepository.setDownloaded();
+                return;
+            }
             if (validationRun.isFailed()) {
                 rpkiRepository.setFailed();
             } else {
@@ -136,6 +184,7 @@ public class RpkiRepositoryValidationService {
         } else {
             validationRun.setSucceeded();
         }
+        validationRunRepository.add(validationRun);
 
         if (validationRun.isSucceeded() && validationRun.getAddedObjectCount() > 0) {
             rpkiRepository.getTrustAnchors().forEach(validationRunRepository::runCertificateTreeValidation);
@@ -154,19 +203,23 @@ public class RpkiRepositoryValidationService {
         final RsyncRepositoryValidationRun validationRun = new RsyncRepositoryValidationRun();
         validationRunRepository.add(validationRun);
 
-        Stream<RpkiRepository> repositories = rpkiRepositories.findRsyncRepositories();
-
-        Map<String, RpkiObject> objectsBySha256 = new HashMap<>();
         Map<URI, RpkiRepository> fetchedLocations = new HashMap<>();
-        ValidationResult results = repositories
-            .filter((repository) -> {
-                boolean needsUpdate = repository.isPending() || repository.getLastDownloadedAt() == null || repository.getLastDownloadedAt().isBefore(cutoffTime);
-                if (!needsUpdate) {
-                    fetchedLocations.put(URI.create(repository.getRsyncRepositoryUri()), repository);
-                }
-                return needsUpdate;
-            })
-            .map((repository) -> processRsyncRepository(affectedTrustAnchors, validationRun, fetchedLocations, objectsBySha256, repository))
+        List<RpkiRepository> repositories;
+        try (Stream<RpkiRepository> rsyncRepositories = rpkiRepositories.findRsyncRepositories()) {
+            repositories = rsyncRepositories
+                .filter((repository) -> {
+                    boolean needsUpdate = repository.isPending() || repository.getLastDownloadedAt() == null || repository.getLastDownloadedAt().isBefore(cutoffTime);
+                    if (!needsUpdate) {
+                        fetchedLocations.put(URI.create(repository.getRsyncRepositoryUri()), repository);
+                    }
+                    return needsUpdate;
+                })
+                .collect(Collectors.toList());
+        }
+
+        Map<URI, CompletableFuture<RsyncFetcher.Result>> fetches = startFetches(repositories, fetchedLocations);
+        ValidationResult results = repositories.stream()
+            .map((repository) -> processRsyncRepository(affectedTrustAnchors, validationRun, fetchedLocations, fetches, repository))
             .collect(
                 () -> ValidationResult.withLocation("placeholder"),
                 ValidationResult::addAll,
@@ -177,7 +230,50 @@ public class RpkiRepositoryValidationService {
         affectedTrustAnchors.forEach(validationRunRepository::runCertificateTreeValidation);
     }
 
-    protected ValidationResult processRsyncRepository(Set<TrustAnchor> affectedTrustAnchors, RsyncRepositoryValidationRun validationRun, Map<URI, RpkiRepository> fetchedLocations, Map<String, RpkiObject> objectsBySha256, RpkiRepository repository) {
+    /**
+     * Starts fetching all repositories that are not fetched as part of a parent repository. The repositories are
+     * ordered by location, so parent repositories come before the repositories they contain. The fetches run
+     * concurrently on the {@link RsyncFetcher} while the fetched repositories are stored in order by the caller.
+     */
+    private Map<URI, CompletableFuture<RsyncFetcher.Result>> startFetches(List<RpkiRepository> repositories, Map<URI, RpkiRepository> fetchedLocations) {
+        Map<URI, CompletableFuture<RsyncFetcher.Result>> fetches = new HashMap<>();
+        for (RpkiRepository repository : repositories) {
+            URI location = URI.create(repository.getRsyncRepositoryUri());
+            if (!hasParentLocation(location, uri -> fetches.containsKey(uri) || (fetchedLocations.containsKey(uri) && fetchedLocations.get(uri).isDownloaded()))) {
+                try {
+                    fetches.put(location, startFetch(repository, RsyncUtils.localFileFromRsyncUri(rsyncLocalStorageDirectory, location)));
+                } catch (IOException e) {
+                    // Reported when the repository is processed
+                    log.debug("cannot determine local storage directory for {}", repository, e);
+                }
+            }
+        }
+        return fetches;
+    }
+
+    private CompletableFuture<RsyncFetcher.Result> startFetch(RpkiRepository repository, File targetDirectory) {
+        return rsyncFetcher.fetch(URI.create(repository.getLocationUri()), targetDirectory, repository.getLastDownloadedAt());
+    }
+
+    /**
+     * Tests the location and its parent locations, up to and including the root of the host. A location without a
+     * path is the root of its host.
+     */
+    static boolean hasParentLocation(URI location, Predicate<URI> predicate) {
+        URI current = location.getRawPath() == null || location.getRawPath().isEmpty() ? location.resolve("/") : location;
+        while (true) {
+            if (predicate.test(current)) {
+                return true;
+            }
+            final URI parent = current.resolve("..").normalize();
+            if (parent.getRawPath().length() >= current.getRawPath().length()) {
+                return false;
+            }
+            current = parent;
+        }
+    }
+
+    protected ValidationResult processRsyncRepository(Set<TrustAnchor> affectedTrustAnchors, RsyncRepositoryValidationRun validationRun, Map<URI, RpkiRepository> fetchedLocations, Map<URI, CompletableFuture<RsyncFetcher.Result>> fetches, RpkiRepository repository) {
         ValidationResult validationResult = ValidationResult.withLocation(URI.create(repository.getRsyncRepositoryUri()));
 
         validationRun.addRpkiRepository(repository);
@@ -190,14 +286,16 @@ public class RpkiRepositoryValidationService {
 
             RpkiRepository parentRepository = findDownloadedParentRepository(fetchedLocations, repository);
             if (parentRepository == null) {
-                fetchRsyncRepository(repository, targetDirectory, validationResult);
+                // Repositories that were expected to be fetched as part of a parent repository that failed are fetched now
+                CompletableFuture<RsyncFetcher.Result> fetch = fetches.get(URI.create(repository.getRsyncRepositoryUri()));
+                completeRsyncFetch(repository, targetDirectory, fetch != null ? fetch : startFetch(repository, targetDirectory), validationResult);
                 if (validationResult.hasFailureForCurrentLocation()) {
                     return validationResult;
                 }
             }
 
             if (repository.getType() == RpkiRepository.Type.RSYNC && (parentRepository == null || parentRepository.getType() == RpkiRepository.Type.RSYNC_PREFETCH)) {
-                storeObjects(targetDirectory, validationRun, validationResult, objectsBySha256, repository);
+                storeObjects(targetDirectory, validationRun, validationResult, repository);
             }
         } catch (IOException e) {
             repository.setFailed();
@@ -225,7 +323,21 @@ public class RpkiRepositoryValidationService {
         return null;
     }
 
-    protected void storeObjects(File targetDirectory, RsyncRepositoryValidationRun validationRun, ValidationResult validationResult, Map<String, RpkiObject> objectsBySha256, RpkiRepository repository) throws IOException {
+    /**
+     * Stores the objects in the local copy of the repository. Files that are unmodified since they were stored
+     * according to the {@link RsyncFiles} index are skipped without reading them. Modified and deleted files are
+     * removed from the index and their location is removed from the object that was stored for them.
+     *
+     * The other files are read, hashed and parsed on the store executor while the directory is still being walked.
+     * Files with content that is already stored are not parsed.
+     * The results are stored on the current thread (and transaction) in the order of the walk, in batches of
+     * {@link #STORE_OBJECTS_BATCH_SIZE}. At most two batches are read ahead, which limits the memory used.
+     */
+    protected void storeObjects(File targetDirectory, RsyncRepositoryValidationRun validationRun, ValidationResult validationResult, RpkiRepository repository) throws IOException {
+        final Map<String, RsyncFile> indexed = rsyncFiles.findByLocationPrefix(repository.getLocationUri());
+        final List<RsyncFile> modified = new ArrayList<>();
+        final Deque<Future<PendingFile>> pending = new ArrayDeque<>();
+        final Predicate<byte[]> isStored = rpkiObjects.isStoredSha256();
         Files.walkFileTree(targetDirectory.toPath(), new SimpleFileVisitor<Path>() {
             private URI currentLocation = URI.create(repository.getLocationUri());
 
@@ -260,38 +372,148 @@ public class RpkiRepositoryValidationService {
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                 super.visitFile(file, attrs);
 
-                validationResult.setLocation(new ValidationLocation(currentLocation.resolve(file.getFileName().toString())));
-
-                byte[] content = Files.readAllBytes(file);
-                byte[] sha256 = Sha256.hash(content);
-
-                objectsBySha256.compute(Hex.format(sha256), (key, existing) -> {
-                    if (existing == null) {
-                        existing = rpkiObjects.findBySha256(sha256).orElse(null);
-                    }
-                    if (existing != null) {
-                        existing.addLocation(validationResult.getCurrentLocation().getName());
-                        return existing;
-                    } else {
-                        CertificateRepositoryObject obj = CertificateRepositoryObjectFactory.createCertificateRepositoryObject(content, validationResult);
-                        validationRun.addChecks(validationResult);
-
-                        if (validationResult.hasFailureForCurrentLocation()) {
-                            log.debug("parsing {} failed: {}", file, validationResult.getFailuresForCurrentLocation());
-                            return null;
-                        }
-
-                        RpkiObject object = new RpkiObject(validationResult.getCurrentLocation().getName(), obj);
-                        rpkiObjects.add(object);
-                        validationRun.addRpkiObject(object);
-                        log.debug("added to database {}", object);
-                        return object;
+                final ValidationLocation location = new ValidationLocation(currentLocation.resolve(file.getFileName().toString()));
+                final Instant lastModified = attrs.lastModifiedTime().toInstant();
+                final RsyncFile existing = indexed.remove(location.getName());
+                if (existing != null) {
+                    if (!existing.isModified(attrs.size(), lastModified)) {
+                        return FileVisitResult.CONTINUE;
                     }
-                });
+                    modified.add(existing);
+                }
+
+                final long size = attrs.size();
+                pending.add(storeExecutor.submit(() -> readFile(file, location, size, lastModified, isStored)));
+                if (pending.size() >= 2 * STORE_OBJECTS_BATCH_SIZE) {
+                    removeRsyncFiles(modified);
+                    storeObjectBatch(nextBatch(pending), validationRun, validationResult);
+                }
 
                 return FileVisitResult.CONTINUE;
             }
         });
+        removeRsyncFiles(modified);
+        while (!pending.isEmpty()) {
+            storeObjectBatch(nextBatch(pending), validationRun, validationResult);
+        }
+
+        // The remaining indexed files no longer exist
+        removeRsyncFiles(new ArrayList<>(indexed.values()));
+    }
+
+    /**
+     * Files with content that is already stored are only hashed, as they just get another location.
+     */
+    private static PendingFile readFile(Path file, ValidationLocation location, long size, Instant lastModified, Predicate<byte[]> isStored) throws IOException {
+        final PendingFile result = new PendingFile(location, size, lastModified, Files.readAllBytes(file));
+        if (!isStored.test(result.sha256)) {
+            result.parse();
+        }
+        return result;
+    }
+
+    private static List<PendingFile> nextBatch(Deque<Future<PendingFile>> pending) throws IOException {
+        final List<PendingFile> batch = new ArrayList<>(STORE_OBJECTS_BATCH_SIZE);
+        try {
+            while (!pending.isEmpty() && batch.size() < STORE_OBJECTS_BATCH_SIZE) {
+                batch.add(pending.remove().get());
+            }
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while reading rsync repository files", e);
+        } catch (ExecutionException e) {
+            pending.forEach(f -> f.cancel(true));
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("error reading rsync repository file: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private void removeRsyncFiles(List<RsyncFile> files) {
+        for (RsyncFile file : files) {
+            rpkiObjects.get(file.getRpkiObjectId()).removeLocation(file.getLocation());
+            log.debug("removed location {}", file.getLocation());
+        }
+        rsyncFiles.removeAll(files);
+        files.clear();
+    }
+
+    /**
+     * Objects are only looked up per batch and detached afterwards, so memory usage stays flat. Objects published
+     * again in later batches or repositories are found in the database.
+     */
+    private void storeObjectBatch(List<PendingFile> files, RsyncRepositoryValidationRun validationRun, ValidationResult validationResult) {
+        final List<byte[]> hashes = files.stream().map(file -> file.sha256).collect(Collectors.toList());
+        final List<Sha256Key> keys = hashes.stream().map(Sha256Key::of).collect(Collectors.toList());
+        final Map<Sha256Key, RpkiObject> objectsBySha256 = rpkiObjects.findBySha256In(hashes);
+
+        final List<RsyncFile> indexed = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); ++i) {
+            final PendingFile file = files.get(i);
+            validationResult.setLocation(file.location);
+
+            final RpkiObject stored = objectsBySha256.compute(keys.get(i), (key, existing) -> {
+                if (existing != null) {
+                    existing.addLocation(validationResult.getCurrentLocation().getName());
+                    return existing;
+                } else {
+                    // Not parsed yet when the object was removed after the file was read
+                    file.parse();
+                    validationResult.addAll(file.validationResult);
+                    validationRun.addChecks(validationResult);
+
+                    if (file.object == null) {
+                        log.debug("parsing {} failed: {}", validationResult.getCurrentLocation().getName(), validationResult.getFailuresForCurrentLocation());
+                        return null;
+                    }
+
+                    RpkiObject object = file.object;
+                    rpkiObjects.add(object);
+                    validationRun.objectAdded();
+                    log.debug("added to database {}", object);
+                    return object;
+                }
+            });
+            if (stored != null) {
+                indexed.add(new RsyncFile(file.location.getName(), file.size, file.lastModified, stored));
+            }
+        }
+        rsyncFiles.addAll(indexed);
+        rpkiObjects.flushAndDetach(objectsBySha256.values());
+    }
+
+    /**
+     * A file that was read and hashed. The object is null when parsing failed or when the file was not parsed yet.
+     */
+    private static class PendingFile {
+        final ValidationLocation location;
+        final long size;
+        final Instant lastModified;
+        final byte[] content;
+        final byte[] sha256;
+        ValidationResult validationResult;
+        RpkiObject object;
+
+        PendingFile(ValidationLocation location, long size, Instant lastModified, byte[] content) {
+            this.location = location;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.content = content;
+            this.sha256 = Sha256.hash(content);
+        }
+
+        void parse() {
+            if (validationResult != null) {
+                return;
+            }
+            validationResult = ValidationResult.withLocation(location);
+            final CertificateRepositoryObject obj = CertificateRepositoryObjectFactory.createCertificateRepositoryObject(content, validationResult);
+            object = validationResult.hasFailureForCurrentLocation() ? null : new RpkiObject(location.getName(), obj, sha256);
+        }
     }
 
     private boolean isRrdpUri(final String uri) {
@@ -302,16 +524,23 @@ public class RpkiRepositoryValidationService {
         return uri.toLowerCase(Locale.ROOT).startsWith("rsync://");
     }
 
-    private void fetchRsyncRepository(RpkiRepository rpkiRepository, File targetDirectory, ValidationResult validationResult) throws IOException {
-        if (targetDirectory.mkdirs()) {
-            log.info("created local rsync storage directory {} for repository {}", targetDirectory, rpkiRepository);
+    private void completeRsyncFetch(RpkiRepository rpkiRepository, File targetDirectory, CompletableFuture<RsyncFetcher.Result> fetch, ValidationResult validationResult) {
+        final RsyncFetcher.Result result;
+        try {
+            result = fetch.join();
+        } catch (CompletionException | CancellationException e) {
+            // Only this repository failed, the other repositories of the run are still processed
+            final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.warn("rsync of {} failed: {}", rpkiRepository.getRsyncRepositoryUri(), cause, cause);
+            validationResult.error("rsync.repository.rsync.error", String.valueOf(cause));
+            rpkiRepository.setFailed();
+            return;
         }
-
-        Rsync rsync = new Rsync(rpkiRepository.getLocationUri(), targetDirectory.getPath());
-        rsync.addOptions("--update", "--times", "--copy-links", "--recursive", "--delete");
-        int exitStatus = rsync.execute();
-        if (exitStatus != 0) {
-            validationResult.error("rsync.repository.rsync.error", String.valueOf(exitStatus), ArrayUtils.toString(rsync.getErrorLines()));
+        if (result.isTimedOut()) {
+            validationResult.error("rsync.repository.rsync.timeout", String.join("\n", result.getErrors()));
+            rpkiRepository.setFailed();
+        } else if (!result.isSucceeded()) {
+            validationResult.error("rsync.repository.rsync.error", String.join("\n", result.getErrors()));
             rpkiRepository.setFailed();
         } else {
             log.info("Downloaded repository {} to {}", rpkiRepository.getRsyncRepositoryUri(), targetDirectory);
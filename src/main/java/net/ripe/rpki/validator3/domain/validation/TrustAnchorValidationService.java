@@ -35,13 +35,11 @@ import net.ripe.rpki.commons.crypto.CertificateRepositoryObject;
 import net.ripe.rpki.commons.crypto.util.CertificateRepositoryObjectFactory;
 import net.ripe.rpki.commons.crypto.x509cert.X509CertificateUtil;
 import net.ripe.rpki.commons.crypto.x509cert.X509ResourceCertificate;
-import net.ripe.rpki.commons.rsync.CommandExecutionException;
-import net.ripe.rpki.commons.rsync.Rsync;
 import net.ripe.rpki.commons.validation.ValidationResult;
 import net.ripe.rpki.validator3.domain.*;
 import net.ripe.rpki.validator3.rrdp.RrdpService;
+import net.ripe.rpki.validator3.rsync.RsyncFetcher;
 import net.ripe.rpki.validator3.util.RsyncUtils;
-import org.apache.commons.lang3.ArrayUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -63,6 +61,7 @@ public class TrustAnchorValidationService {
     private final RpkiRepositories rpkiRepositories;
     private final File localRsyncStorageDirectory;
     private final RrdpService rrdpService;
+    private final RsyncFetcher rsyncFetcher;
 
     @Autowired
     public TrustAnchorValidationService(
@@ -71,7 +70,8 @@ public class TrustAnchorValidationService {
         ValidationRuns validationRunRepository,
         RpkiRepositories rpkiRepositories,
         @Value("${rpki.validator.rsync.local.storage.directory}") File localRsyncStorageDirectory,
-        RrdpService rrdpService
+        RrdpService rrdpService,
+        RsyncFetcher rsyncFetcher
     ) {
         this.entityManager = entityManager;
         this.trustAnchorRepository = trustAnchorRepository;
@@ -79,6 +79,7 @@ public class TrustAnchorValidationService {
         this.rpkiRepositories = rpkiRepositories;
         this.localRsyncStorageDirectory = localRsyncStorageDirectory;
         this.rrdpService = rrdpService;
+        this.rsyncFetcher = rsyncFetcher;
     }
 
     @Transactional(Transactional.TxType.REQUIRED)
@@ -123,7 +124,7 @@ public class TrustAnchorValidationService {
             if (updated) {
                 validationRunRepository.runCertificateTreeValidation(trustAnchor);
             }
-        } catch (CommandExecutionException | IOException e) {
+        } catch (IOException e) {
             log.error("validation run for trust anchor {} failed", trustAnchor, e);
             validationRun.addCheck(new ValidationCheck(validationRun, validationRun.getTrustAnchorCertificateURI(), ValidationCheck.Status.ERROR, "unhandled.exception", e.toString()));
             validationRun.setFailed();
@@ -162,11 +163,10 @@ public class TrustAnchorValidationService {
             log.info("created local rsync storage directory {} for trust anchor {}", targetFile.getParentFile(), trustAnchorCertificateURI);
         }
 
-        Rsync rsync = new Rsync(trustAnchorCertificateURI.toASCIIString(), targetFile.getPath());
-        rsync.addOptions("--update", "--times", "--copy-links");
-        int exitStatus = rsync.execute();
-        if (exitStatus != 0) {
-            validationResult.error("rsync.error", String.valueOf(exitStatus), ArrayUtils.toString(rsync.getErrorLines()));
+        // Not queued behind the repository transfers from the same host, as the validation transaction is open
+        RsyncFetcher.Result result = rsyncFetcher.fetchNow(trustAnchorCertificateURI, targetFile);
+        if (!result.isSucceeded()) {
+            validationResult.error("rsync.error", String.join("\n", result.getErrors()));
             return null;
         } else {
             log.info("Downloaded certificate {} to {}", trustAnchorCertificateURI, targetFile);
@@ -30,20 +30,42 @@
 package net.ripe.rpki.validator3.rrdp;
 
 import lombok.extern.slf4j.Slf4j;
+import net.ripe.rpki.validator3.util.BufferedContent;
+import net.ripe.rpki.validator3.util.SpillingOutputStream;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.MultiplexHttpDestination;
+import org.eclipse.jetty.client.Origin;
+import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.io.ssl.ALPNProcessor;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
-import java.io.ByteArrayOutputStream;
+import javax.annotation.PreDestroy;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import static org.springframework.util.StreamUtils.copy;
@@ -55,34 +77,163 @@ public class HttpRrdpClient implements RrdpClient {
     @Value("${rpki.validator.rrdp.trust.all.tls.certificates}")
     private boolean trustAllTlsCertificates;
 
+    @Value("${rpki.validator.rrdp.download.memory.threshold}")
+    private long downloadMemoryThreshold;
+
+    @Value("${rpki.validator.rrdp.download.directory}")
+    private File downloadDirectory;
+
+    @Value("${rpki.validator.rrdp.http2.enabled}")
+    private boolean http2Enabled;
+
+    @Value("${rpki.validator.rrdp.http2.response.timeout}")
+    private String http2ResponseTimeout;
+
+    @Value("${rpki.validator.rrdp.http2.fallback.duration}")
+    private String http2FallbackDuration;
+
+    @Value("${rpki.validator.rrdp.max.connections.per.destination}")
+    private int maxConnectionsPerDestination;
+
+    @Value("${rpki.validator.rrdp.max.concurrent.streams.per.connection}")
+    private int maxConcurrentStreamsPerConnection;
+
     private HttpClient httpClient;
 
+    /**
+     * Only set when HTTP/2 is enabled and ALPN is available, used for HTTPS URIs only.
+     */
+    private HttpClient http2Client;
+
+    /**
+     * Origins (scheme, host and port) for which an HTTP/2 request failed or timed out, these are only accessed using
+     * HTTP/1.1 until the given time.
+     */
+    private final Map<String, Instant> http1Origins = new ConcurrentHashMap<>();
+
     @PostConstruct
     public void postConstruct() throws Exception {
+        // Files of downloads that were in progress when the validator stopped are never cleaned up otherwise
+        final int removed = SpillingOutputStream.removeTemporaryFiles(downloadDirectory);
+        if (removed > 0) {
+            log.info("Removed {} temporary download files from {}", removed, downloadDirectory);
+        }
+
+        httpClient = new HttpClient(newSslContextFactory());
+        httpClient.setMaxConnectionsPerDestination(maxConnectionsPerDestination);
+        httpClient.start();
+
+        // HTTP/2 is only used over TLS where the protocol is negotiated using ALPN. Using HTTP/2 with prior
+        // knowledge over plain HTTP makes requests hang when the server does not support it.
+        if (http2Enabled) {
+            if (isAlpnAvailable()) {
+                final HttpClientTransportOverHTTP2 transport = new HttpClientTransportOverHTTP2(new HTTP2Client()) {
+                    @Override
+                    public HttpDestination newHttpDestination(Origin origin) {
+                        final HttpDestination destination = super.newHttpDestination(origin);
+                        ((MultiplexHttpDestination) destination).setMaxRequestsPerConnection(maxConcurrentStreamsPerConnection);
+                        return destination;
+                    }
+                };
+                transport.setUseALPN(true);
+                http2Client = new HttpClient(transport, newSslContextFactory());
+                http2Client.setMaxConnectionsPerDestination(maxConnectionsPerDestination);
+                http2Client.start();
+            } else {
+                log.warn("HTTP/2 is enabled, but ALPN is not supported by this JVM, using HTTP/1.1 for RRDP");
+            }
+        }
+    }
+
+    @PreDestroy
+    public void preDestroy() throws Exception {
+        if (http2Client != null) {
+            http2Client.stop();
+        }
+        httpClient.stop();
+    }
+
+    private SslContextFactory newSslContextFactory() {
         final SslContextFactory sslContextFactory = new SslContextFactory();
         sslContextFactory.setTrustAll(trustAllTlsCertificates);
-        // TODO @mpuzanov find out why using HttpClientTransportOverHTTP2 makes GET request hang
-        httpClient = new HttpClient(sslContextFactory);
-        httpClient.start();
+        return sslContextFactory;
+    }
+
+    private static boolean isAlpnAvailable() {
+        for (ALPNProcessor.Client processor : ServiceLoader.load(ALPNProcessor.Client.class)) {
+            try {
+                processor.init();
+                return true;
+            } catch (Throwable e) {
+                log.debug("ALPN processor {} is not available: {}", processor, e.toString());
+            }
+        }
+        return false;
     }
 
     @Override
     public <T> T readStream(final String uri, Function<InputStream, T> reader) {
-        InputStreamResponseListener listener = new InputStreamResponseListener();
-        httpClient.newRequest(uri).send(listener);
+        return execute(uri, request -> {}, (response, inputStream) -> {
+            if (response.getStatus() != HttpStatus.OK_200) {
+                throw new RrdpException("unexpected response status " + response.getStatus() + " for " + uri);
+            }
+            return reader.apply(inputStream);
+        });
+    }
 
+    @Override
+    public <T> Optional<T> readStreamIfModified(final String uri, HttpCacheValidators validators, Function<InputStream, T> reader) {
+        final Consumer<Request> conditional = request -> {
+            if (validators.getEtag() != null) {
+                request.header(HttpHeader.IF_NONE_MATCH, validators.getEtag());
+            }
+            if (validators.getLastModified() != null) {
+                request.header(HttpHeader.IF_MODIFIED_SINCE, validators.getLastModified());
+            }
+        };
+        return execute(uri, conditional, (response, inputStream) -> {
+            if (response.getStatus() == HttpStatus.NOT_MODIFIED_304) {
+                return Optional.empty();
+            }
+            validators.setEtag(response.getHeaders().get(HttpHeader.ETAG));
+            validators.setLastModified(response.getHeaders().get(HttpHeader.LAST_MODIFIED));
+            return Optional.of(reader.apply(inputStream));
+        });
+    }
+
+    private <T> T execute(final String uri, Consumer<Request> requestCustomizer, BiFunction<Response, InputStream, T> reader) {
+        final String origin = origin(uri);
+        InputStreamResponseListener listener = null;
         Response response = null;
         try {
-            response = listener.get(30, TimeUnit.SECONDS);
+            if (isHttp2Enabled(origin)) {
+                final Request request = newRequest(http2Client, uri, requestCustomizer);
+                listener = new InputStreamResponseListener();
+                request.send(listener);
+                try {
+                    response = listener.get(Duration.parse(http2ResponseTimeout).toMillis(), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    // A server that does not speak HTTP/2 properly may also never respond, so retry over HTTP/1.1
+                    request.abort(e);
+                    final Instant until = Instant.now().plus(Duration.parse(http2FallbackDuration));
+                    log.info("HTTP/2 request for {} failed ({}), using HTTP/1.1 for {} until {}", uri, e instanceof ExecutionException ? e.getCause() : e, origin, until);
+                    http1Origins.put(origin, until);
+                }
+            }
+            if (response == null) {
+                listener = new InputStreamResponseListener();
+                newRequest(httpClient, uri, requestCustomizer).send(listener);
+                response = listener.get(30, TimeUnit.SECONDS);
+            }
 
-            if (response.getStatus() != 200) {
+            if (response.getStatus() != HttpStatus.OK_200 && response.getStatus() != HttpStatus.NOT_MODIFIED_304) {
                 RrdpException error = new RrdpException("unexpected response status " + response.getStatus() + " for " + uri);
                 response.abort(error);
                 throw error;
             }
 
             try (InputStream inputStream = listener.getInputStream()) {
-                return reader.apply(inputStream);
+                return reader.apply(response, inputStream);
             }
         } catch (IOException | InterruptedException | TimeoutException | ExecutionException e) {
             RrdpException error = new RrdpException("failed reading response stream for " + uri + ": " + e, e);
@@ -93,16 +244,54 @@ public class HttpRrdpClient implements RrdpClient {
         }
     }
 
+    private boolean isHttp2Enabled(String origin) {
+        if (http2Client == null || !origin.startsWith("https://")) {
+            return false;
+        }
+        final Instant http1Until = http1Origins.get(origin);
+        if (http1Until == null) {
+            return true;
+        }
+        if (Instant.now().isAfter(http1Until)) {
+            http1Origins.remove(origin, http1Until);
+            return true;
+        }
+        return false;
+    }
+
+    private static Request newRequest(HttpClient client, String uri, Consumer<Request> requestCustomizer) {
+        final Request request = client.newRequest(uri);
+        requestCustomizer.accept(request);
+        return request;
+    }
+
+    private static String origin(String uri) {
+        final URI parsed = URI.create(uri);
+        return (parsed.getScheme() + "://" + parsed.getHost() + ":" + parsed.getPort()).toLowerCase(Locale.ROOT);
+    }
+
     @Override
-    public byte[] getBody(String uri) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        readStream(uri, s -> {
-            try {
-                return copy(s, baos);
-            } catch (IOException e) {
-                throw new RrdpException("error reading response body for " + uri + ": " + e, e);
+    public BufferedContent download(String uri) {
+        final SpillingOutputStream out = new SpillingOutputStream(downloadMemoryThreshold, downloadDirectory);
+        try {
+            readStream(uri, s -> {
+                try {
+                    return copy(s, out);
+                } catch (IOException e) {
+                    throw new RrdpException("error reading response body for " + uri + ": " + e, e);
+                }
+            });
+            final BufferedContent content = out.toContent();
+            if (content.isFileBacked()) {
+                log.debug("Downloaded {} bytes from {} into a temporary file", content.getSize(), uri);
             }
-        });
-        return baos.toByteArray();
+            return content;
+        } catch (IOException e) {
+            out.discard();
+            throw new RrdpException("error storing response body for " + uri + ": " + e, e);
+        } catch (RuntimeException e) {
+            out.discard();
+            throw e;
+        }
     }
 }
@@ -29,11 +29,24 @@
  */
 package net.ripe.rpki.validator3.rrdp;
 
+import net.ripe.rpki.validator3.util.BufferedContent;
+
 import java.io.InputStream;
+import java.util.Optional;
 import java.util.function.Function;
 
 public interface RrdpClient {
     <T> T readStream(String uri, Function<InputStream, T> reader);
 
-    byte[] getBody(String uri);
+    /**
+     * Sends a conditional request using the given validators, which are updated from the response headers.
+     *
+     * @return empty when the server responded with 304 Not Modified
+     */
+    <T> Optional<T> readStreamIfModified(String uri, HttpCacheValidators validators, Function<InputStream, T> reader);
+
+    /**
+     * Downloads the content without keeping it on the heap when it is large. The caller must close the result.
+     */
+    BufferedContent download(String uri);
 }
@@ -31,86 +31,88 @@ package net.ripe.rpki.validator3.rrdp;
 
 import net.ripe.rpki.validator3.util.Hex;
 
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.Characters;
-import javax.xml.stream.events.EndElement;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamReader;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 /**
- * TODO We must validate XML against RelaxNG schema and reject the invalid ones.
- * TODO No session or serial number is taken into account for now, but it should be.
+ * Parses RRDP files (RFC 8182) in a single pass, checking their structure against the RELAX NG schema of the RFC as
+ * the elements are read. Invalid files are rejected at the first offending element.
+ * <p>
+ * The session id and serial of the files are returned to the caller, which checks them against the notification.
  */
 public class RrdpParser {
 
+    static final String NAMESPACE = "http://www.ripe.net/rpki/rrdp";
+
+    private static final Pattern SESSION_ID = Pattern.compile("[\\-0-9a-fA-F]+");
+    private static final Pattern HASH = Pattern.compile("[0-9a-fA-F]+");
+
     public Snapshot snapshot(final InputStream inputStream) {
         final Map<String, SnapshotObject> objects = new HashMap<>();
+        final SnapshotHeader header = snapshot(inputStream, object -> objects.put(object.getUri(), object));
+        return new Snapshot(objects, header.getSessionId(), header.getSerial());
+    }
+
+    /**
+     * Parses the snapshot and passes every published object to <code>processObject</code> as soon as it is
+     * decoded, so the complete snapshot never needs to be kept in memory.
+     */
+    public SnapshotHeader snapshot(final InputStream inputStream, final Consumer<SnapshotObject> processObject) {
         try {
             final XMLInputFactory factory = XMLInputFactory.newInstance();
-            final XMLEventReader eventReader = factory.createXMLEventReader(inputStream);
+            final XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+            final Structure structure = new Structure(reader, "snapshot", "publish");
 
-            String sessionId = null;
-            BigInteger serial = null;
             String uri = null;
-            StringBuilder base64 = new StringBuilder();
             boolean inPublishElement = false;
 
-            final Base64.Decoder decoder = Base64.getDecoder();
-
-            while (eventReader.hasNext()) {
-                final XMLEvent event = eventReader.nextEvent();
+            final Base64Content content = new Base64Content();
 
-                switch (event.getEventType()) {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
                     case XMLStreamConstants.START_ELEMENT:
-                        final StartElement startElement = event.asStartElement();
-                        final String qName = startElement.getName().getLocalPart().toLowerCase(Locale.ROOT);
-
-                        switch (qName) {
-                            case "publish":
-                                uri = getAttr(startElement, "uri", "Uri is not present in 'publish' element");
-                                inPublishElement = true;
-                                break;
-                            case "snapshot":
-                                serial = new BigInteger(getAttr(startElement, "serial", "Notification serial is not present"));
-                                sessionId = getAttr(startElement, "session_id", "Session id is not present");
-                                break;
+                        if ("publish".equals(structure.startElement())) {
+                            structure.checkAttributes("uri");
+                            uri = structure.uri("uri");
+                            content.reset();
+                            inPublishElement = true;
                         }
                         break;
 
                     case XMLStreamConstants.CHARACTERS:
-                        final Characters characters = event.asCharacters();
+                    case XMLStreamConstants.CDATA:
                         if (inPublishElement) {
-                            final String thisBase64 = characters.getData();
-                            base64.append(thisBase64.replaceAll("\\s", ""));
+                            content.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        } else {
+                            structure.checkWhitespace();
                         }
                         break;
 
                     case XMLStreamConstants.END_ELEMENT:
-                        final EndElement endElement = event.asEndElement();
-                        final String qqName = endElement.getName().getLocalPart().toLowerCase(Locale.ROOT);
-                        if ("publish".equals(qqName)) {
-                            final byte[] decoded = decoder.decode(base64.toString());
-                            objects.put(uri, new SnapshotObject(decoded, uri));
+                        if ("publish".equals(structure.endElement())) {
+                            processObject.accept(new SnapshotObject(structure.decode(content, uri), uri));
                             inPublishElement = false;
-                            base64 = new StringBuilder();
                         }
                         break;
                 }
             }
-            return new Snapshot(objects, sessionId, serial);
+            reader.close();
+            return new SnapshotHeader(structure.sessionId, structure.serial);
         } catch (XMLStreamException e) {
             throw new RrdpException("Couldn't parse snapshot: ", e);
         }
@@ -120,70 +122,65 @@ public class RrdpParser {
         final Map<String, DeltaElement> objects = new HashMap<>();
         try {
             final XMLInputFactory factory = XMLInputFactory.newInstance();
-            final XMLEventReader eventReader = factory.createXMLEventReader(inputStream);
+            final XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+            final Structure structure = new Structure(reader, "delta", "publish", "withdraw");
 
-            String sessionId = null;
-            BigInteger serial = null;
             String uri = null;
             String hash = null;
-            StringBuilder base64 = new StringBuilder();
             boolean inPublishElement = false;
 
-            final Base64.Decoder decoder = Base64.getDecoder();
-
-            while (eventReader.hasNext()) {
-                final XMLEvent event = eventReader.nextEvent();
+            final Base64Content content = new Base64Content();
 
-                switch (event.getEventType()) {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
                     case XMLStreamConstants.START_ELEMENT:
-                        final StartElement startElement = event.asStartElement();
-                        final String qName = startElement.getName().getLocalPart();
-
-                        switch (qName) {
+                        switch (structure.startElement()) {
                             case "publish":
-                                uri = getAttr(startElement, "uri", "Uri is not present in 'publish' element");
-                                hash = getAttr(startElement, "hash");
+                                structure.checkAttributes("uri", "hash");
+                                uri = structure.uri("uri");
+                                hash = structure.optionalHash("hash");
+                                content.reset();
                                 inPublishElement = true;
                                 break;
                             case "withdraw":
-                                uri = getAttr(startElement, "uri", "Uri is not present in 'publish' element");
-                                hash = getAttr(startElement, "hash", "Hash is not present in 'withdraw' element");
-                                break;
-                            case "delta":
-                                serial = new BigInteger(getAttr(startElement, "serial", "Notification serial is not present"));
-                                sessionId = getAttr(startElement, "session_id", "Session id is not present");
+                                structure.checkAttributes("uri", "hash");
+                                uri = structure.uri("uri");
+                                hash = structure.hash("hash");
                                 break;
                         }
                         break;
 
                     case XMLStreamConstants.CHARACTERS:
-                        final Characters characters = event.asCharacters();
+                    case XMLStreamConstants.CDATA:
                         if (inPublishElement) {
-                            final String thisBase64 = characters.getData();
-                            base64.append(thisBase64.replaceAll("\\s", ""));
+                            content.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        } else {
+                            structure.checkWhitespace();
                         }
                         break;
 
                     case XMLStreamConstants.END_ELEMENT:
-                        final EndElement endElement = event.asEndElement();
-                        final String qqName = endElement.getName().getLocalPart();
-
-                        switch (qqName) {
+                        switch (structure.endElement()) {
                             case "publish":
-                                final byte[] decoded = decoder.decode(base64.toString());
-                                objects.put(uri, new DeltaPublish(decoded, uri, Hex.parse(hash)));
-                                base64 = new StringBuilder();
+                                objects.put(uri, new DeltaPublish(structure.decode(content, uri), uri, Hex.parse(hash)));
+                                inPublishElement = false;
                                 break;
                             case "withdraw":
                                 objects.put(uri, new DeltaWithdraw(uri, Hex.parse(hash)));
                                 break;
+                            case "delta":
+                                if (structure.children == 0) {
+                                    throw structure.invalid("'delta' element has no 'publish' or 'withdraw' elements");
+                                }
+                                break;
                         }
                         break;
                 }
             }
-            return new Delta(objects, sessionId, serial);
+            reader.close();
+            return new Delta(objects, structure.sessionId, structure.serial);
         } catch (XMLStreamException e) {
-            throw new RrdpException("Couldn't parse snapshot: ", e);
+            throw new RrdpException("Couldn't parse delta: ", e);
         }
     }
 
@@ -191,63 +188,275 @@ public class RrdpParser {
     public Notification notification(final InputStream inputStream) {
         try {
             final XMLInputFactory factory = XMLInputFactory.newInstance();
-            final XMLEventReader eventReader = factory.createXMLEventReader(inputStream);
+            final XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
+            final Structure structure = new Structure(reader, "notification", "snapshot", "delta");
 
-            String sessionId = null;
-            BigInteger serial = null;
             String snapshotUri = null;
             String snapshotHash = null;
             final List<DeltaInfo> deltas = new ArrayList<>();
 
-            while (eventReader.hasNext()) {
-                final XMLEvent event = eventReader.nextEvent();
-
-                switch (event.getEventType()) {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
                     case XMLStreamConstants.START_ELEMENT:
-                        final StartElement startElement = event.asStartElement();
-                        final String qName = startElement.getName().getLocalPart();
-
-                        switch (qName) {
-                            case "notification":
-                                serial = new BigInteger(getAttr(startElement, "serial", "Notification serial is not present"));
-                                sessionId = getAttr(startElement, "session_id", "Session id is not present");
-                                break;
+                        switch (structure.startElement()) {
                             case "snapshot":
-                                snapshotUri = getAttr(startElement, "uri", "Snapshot URI is not present");
-                                snapshotHash = getAttr(startElement, "hash", "Snapshot hash is not present");
+                                if (snapshotUri != null || !deltas.isEmpty()) {
+                                    throw structure.invalid("'snapshot' element must be the first element of 'notification'");
+                                }
+                                structure.checkAttributes("uri", "hash");
+                                snapshotUri = structure.uri("uri");
+                                snapshotHash = structure.hash("hash");
                                 break;
                             case "delta":
-                                final String deltaUri = getAttr(startElement, "uri", "Delta URI is not present");
-                                final String deltaHash = getAttr(startElement, "hash", "Delta hash is not present");
-                                final String deltaSerial = getAttr(startElement, "serial", "Delta serial is not present");
-                                deltas.add(new DeltaInfo(deltaUri, deltaHash, new BigInteger(deltaSerial)));
+                                if (snapshotUri == null) {
+                                    throw structure.invalid("'snapshot' element must be the first element of 'notification'");
+                                }
+                                structure.checkAttributes("uri", "hash", "serial");
+                                final String deltaUri = structure.uri("uri");
+                                final String deltaHash = structure.hash("hash");
+                                final BigInteger deltaSerial = structure.serial("serial");
+                                deltas.add(new DeltaInfo(deltaUri, deltaHash, deltaSerial));
                                 break;
                         }
                         break;
+
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        structure.checkWhitespace();
+                        break;
+
+                    case XMLStreamConstants.END_ELEMENT:
+                        if ("notification".equals(structure.endElement()) && snapshotUri == null) {
+                            throw structure.invalid("'notification' element has no 'snapshot' element");
+                        }
+                        break;
                 }
             }
-            return new Notification(sessionId, serial, snapshotUri, snapshotHash, deltas);
+            reader.close();
+            return new Notification(structure.sessionId, structure.serial, snapshotUri, snapshotHash, deltas);
         } catch (XMLStreamException e) {
-            throw new RrdpException("Couldn't parse snapshot: ", e);
+            throw new RrdpException("Couldn't parse notification: ", e);
         }
     }
 
-    private String getAttr(final StartElement startElement, final String attrName, final String absentMessage) {
-        final String attr = getAttr(startElement, attrName);
-        if (attr == null)
-            throw new RrdpException(absentMessage);
-        return attr;
+    /**
+     * Checks the elements, attributes and text of an RRDP file as the parser reads them. The document element must
+     * be in the RRDP namespace, have version 1, a session id and a serial, and may only contain the given child
+     * elements, which may not contain other elements.
+     */
+    private static class Structure {
+        private final XMLStreamReader reader;
+        private final String documentElement;
+        private final Set<String> childElements;
+
+        private int depth;
+        private int children;
+        private String child;
+        private String sessionId;
+        private BigInteger serial;
+
+        Structure(final XMLStreamReader reader, final String documentElement, final String... childElements) {
+            this.reader = reader;
+            this.documentElement = documentElement;
+            this.childElements = new HashSet<>(Arrays.asList(childElements));
+        }
+
+        /**
+         * @return the name of the element that was started
+         */
+        String startElement() {
+            final String name = reader.getLocalName();
+            depth++;
+            if (!NAMESPACE.equals(reader.getNamespaceURI())) {
+                throw invalid("'" + name + "' element is not in the " + NAMESPACE + " namespace");
+            }
+            if (depth == 1) {
+                if (!documentElement.equals(name)) {
+                    throw invalid("expected '" + documentElement + "' element but found '" + name + "'");
+                }
+                checkAttributes("version", "session_id", "serial");
+                if (!BigInteger.ONE.equals(integer("version"))) {
+                    throw invalid("unsupported version " + reader.getAttributeValue(null, "version"));
+                }
+                sessionId = attribute("session_id");
+                if (!SESSION_ID.matcher(sessionId).matches()) {
+                    throw invalid("invalid session_id '" + sessionId + "'");
+                }
+                serial = serial("serial");
+            } else if (depth == 2 && childElements.contains(name)) {
+                children++;
+                child = name;
+            } else {
+                throw invalid("'" + name + "' element is not allowed in '" + (depth == 2 ? documentElement : child) + "' element");
+            }
+            return name;
+        }
+
+        /**
+         * @return the name of the element that was ended
+         */
+        String endElement() {
+            depth--;
+            return reader.getLocalName();
+        }
+
+        void checkWhitespace() {
+            if (!reader.isWhiteSpace()) {
+                throw invalid("unexpected text in '" + (depth == 1 ? documentElement : child) + "' element");
+            }
+        }
+
+        void checkAttributes(final String... allowed) {
+            final List<String> names = Arrays.asList(allowed);
+            for (int i = 0; i < reader.getAttributeCount(); ++i) {
+                if (!names.contains(reader.getAttributeLocalName(i))) {
+                    throw invalid("attribute '" + reader.getAttributeLocalName(i) + "' is not allowed in '" + reader.getLocalName() + "' element");
+                }
+            }
+        }
+
+        String attribute(final String name) {
+            final String value = reader.getAttributeValue(null, name);
+            if (value == null) {
+                throw invalid("attribute '" + name + "' is not present in '" + reader.getLocalName() + "' element");
+            }
+            return value;
+        }
+
+        String uri(final String name) {
+            final String value = attribute(name);
+            try {
+                new URI(value);
+            } catch (URISyntaxException e) {
+                throw invalid("invalid " + name + " '" + value + "'");
+            }
+            return value;
+        }
+
+        String hash(final String name) {
+            final String value = attribute(name);
+            if (!HASH.matcher(value).matches() || value.length() % 2 != 0) {
+                throw invalid("invalid " + name + " '" + value + "'");
+            }
+            return value;
+        }
+
+        String optionalHash(final String name) {
+            return reader.getAttributeValue(null, name) == null ? null : hash(name);
+        }
+
+        /**
+         * Serials are of the schema type positiveInteger, so start at 1.
+         */
+        BigInteger serial(final String name) {
+            final BigInteger value = integer(name);
+            if (value.signum() <= 0) {
+                throw invalid("invalid " + name + " '" + value + "'");
+            }
+            return value;
+        }
+
+        byte[] decode(final Base64Content content, final String uri) {
+            try {
+                return content.decode(uri);
+            } catch (RrdpException e) {
+                throw invalid("invalid base64 content of '" + child + "' element for " + uri);
+            }
+        }
+
+        private BigInteger integer(final String name) {
+            final String value = attribute(name);
+            try {
+                return new BigInteger(value);
+            } catch (NumberFormatException e) {
+                throw invalid("invalid " + name + " '" + value + "'");
+            }
+        }
+
+        RrdpException invalid(final String message) {
+            return new RrdpException("Invalid RRDP file, " + message + " at line " + reader.getLocation().getLineNumber());
+        }
     }
 
-    private String getAttr(final StartElement startElement, final String attrName) {
-        final Iterator<Attribute> attributes = startElement.getAttributes();
-        while (attributes.hasNext()) {
-            final Attribute next = attributes.next();
-            final String name = next.getName().getLocalPart();
-            if (attrName.equals(name)) {
-                return next.getValue();
+    /**
+     * Decodes the base64 content of an element while the XML parser reports it in pieces, directly from the parser's
+     * character buffer and skipping whitespace. The decoded bytes are collected in a buffer that is reused for every
+     * element, so only the final copy of each object is allocated.
+     */
+    static class Base64Content {
+        private static final int[] VALUES = new int[128];
+
+        static {
+            Arrays.fill(VALUES, -1);
+            final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+            for (int i = 0; i < alphabet.length(); ++i) {
+                VALUES[alphabet.charAt(i)] = i;
+            }
+        }
+
+        private byte[] bytes = new byte[8192];
+        private int length;
+        private int bits;
+        private int sextets;
+        private int padding;
+        private boolean invalid;
+
+        void reset() {
+            length = 0;
+            bits = 0;
+            sextets = 0;
+            padding = 0;
+            invalid = false;
+        }
+
+        void append(final char[] chars, final int start, final int count) {
+            for (int i = start; i < start + count; ++i) {
+                final char c = chars[i];
+                if (c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f' || c == 0x0B) {
+                    continue;
+                }
+                if (c == '=') {
+                    padding++;
+                    continue;
+                }
+                final int value = c < VALUES.length ? VALUES[c] : -1;
+                if (value < 0 || padding > 0) {
+                    invalid = true;
+                    return;
+                }
+                bits = bits << 6 | value;
+                if (++sextets % 4 == 0) {
+                    ensureCapacity(3);
+                    bytes[length++] = (byte) (bits >> 16);
+                    bytes[length++] = (byte) (bits >> 8);
+                    bytes[length++] = (byte) bits;
+                    bits = 0;
+                }
+            }
+        }
+
+        /**
+         * @return the decoded content, padding is optional like for {@link java.util.Base64.Decoder}
+         */
+        byte[] decode(final String uri) {
+            final int remaining = sextets % 4;
+            if (invalid || remaining == 1 || padding > 2 || (padding > 0 && remaining + padding != 4)) {
+                throw new RrdpException("Invalid base64 content for " + uri);
+            }
+            ensureCapacity(2);
+            if (remaining == 2) {
+                bytes[length++] = (byte) (bits >> 4);
+            } else if (remaining == 3) {
+                bytes[length++] = (byte) (bits >> 10);
+                bytes[length++] = (byte) (bits >> 2);
+            }
+            return Arrays.copyOf(bytes, length);
+        }
+
+        private void ensureCapacity(final int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
             }
         }
-        return null;
     }
 }
@@ -29,6 +29,7 @@
  */
 package net.ripe.rpki.validator3.rrdp;
 
+import com.google.common.collect.Iterables;
 import fj.data.Either;
 import lombok.extern.slf4j.Slf4j;
 import net.ripe.rpki.commons.crypto.CertificateRepositoryObject;
@@ -39,18 +40,37 @@ import net.ripe.rpki.validator3.domain.RpkiObjects;
 import net.ripe.rpki.validator3.domain.RpkiRepository;
 import net.ripe.rpki.validator3.domain.RpkiRepositoryValidationRun;
 import net.ripe.rpki.validator3.domain.ValidationCheck;
+import net.ripe.rpki.validator3.util.BufferedContent;
 import net.ripe.rpki.validator3.util.Hex;
 import net.ripe.rpki.validator3.util.Sha256;
+import net.ripe.rpki.validator3.util.Sha256Key;
+import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
 import javax.transaction.Transactional;
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 
@@ -58,52 +78,81 @@ import java.util.stream.Collectors;
 @Slf4j
 public class RrdpService {
 
+    /**
+     * Number of snapshot objects that are looked up in the database with a single query.
+     */
+    private static final int SNAPSHOT_BATCH_SIZE = 1000;
+
     private final RrdpParser rrdpParser = new RrdpParser();
 
     private final RrdpClient rrdpClient;
 
     private final RpkiObjects rpkiObjectRepository;
 
+    private final ExecutorService deltaDownloadExecutor;
+
+    private final int deltaDownloadsPerRepository;
+
     @Autowired
-    public RrdpService(final RrdpClient rrdpClient, final RpkiObjects rpkiObjectRepository) {
+    public RrdpService(
+        final RrdpClient rrdpClient,
+        final RpkiObjects rpkiObjectRepository,
+        @Value("${rpki.validator.rrdp.delta.download.threads}") final int deltaDownloadThreads,
+        @Value("${rpki.validator.rrdp.delta.download.per.repository}") final int deltaDownloadsPerRepository
+    ) {
         this.rrdpClient = rrdpClient;
         this.rpkiObjectRepository = rpkiObjectRepository;
+        this.deltaDownloadExecutor = Executors.newFixedThreadPool(deltaDownloadThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "rrdp-delta-download-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.deltaDownloadsPerRepository = deltaDownloadsPerRepository;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        deltaDownloadExecutor.shutdownNow();
     }
 
+    /**
+     * @return false when the notification file was not modified since it was last processed successfully, in
+     * which case nothing was done and the validation run was left untouched
+     */
     @Transactional(Transactional.TxType.REQUIRED)
-    public void storeRepository(final RpkiRepository rpkiRepository, final RpkiRepositoryValidationRun validationRun) {
+    public boolean storeRepository(final RpkiRepository rpkiRepository, final RpkiRepositoryValidationRun validationRun) {
         try {
-            doStoreRepository(rpkiRepository, validationRun);
+            return doStoreRepository(rpkiRepository, validationRun);
         } catch (RrdpException e) {
             log.warn("error retrieving RRDP repository: " + e, e);
             ValidationCheck validationCheck = new ValidationCheck(validationRun, rpkiRepository.getRrdpNotifyUri(),
                     ValidationCheck.Status.ERROR, "rrdp.error", e.getMessage());
             validationRun.addCheck(validationCheck);
             validationRun.setFailed();
+            return true;
         }
     }
 
-    private void doStoreRepository(RpkiRepository rpkiRepository, RpkiRepositoryValidationRun validationRun) {
-        final Notification notification = rrdpClient.readStream(rpkiRepository.getRrdpNotifyUri(), rrdpParser::notification);
+    private boolean doStoreRepository(RpkiRepository rpkiRepository, RpkiRepositoryValidationRun validationRun) {
+        final HttpCacheValidators validators = new HttpCacheValidators(rpkiRepository.getRrdpNotificationEtag(), rpkiRepository.getRrdpNotificationLastModified());
+        final Optional<Notification> maybeNotification = rrdpClient.readStreamIfModified(rpkiRepository.getRrdpNotifyUri(), validators, rrdpParser::notification);
+        if (!maybeNotification.isPresent()) {
+            log.debug("The notification file {} was not modified", rpkiRepository.getRrdpNotifyUri());
+            return false;
+        }
+        final Notification notification = maybeNotification.get();
 
         log.info("The local serial is '{}' and the latest serial is {}", rpkiRepository.getRrdpSerial(), notification.serial);
 
         if (notification.sessionId.equals(rpkiRepository.getRrdpSessionId())) {
             if (rpkiRepository.getRrdpSerial().compareTo(notification.serial) <= 0) {
                 try {
-                    final List<Delta> deltas = notification.deltas.parallelStream().
-                            filter(d -> d.getSerial().compareTo(rpkiRepository.getRrdpSerial()) > 0).
-                            sorted(Comparator.comparing(DeltaInfo::getSerial)).
-                            map(di -> readDelta(notification, di)).
-                            collect(Collectors.toList());
-
-                    verifyDeltaSerials(deltas, notification, rpkiRepository);
-
-                    deltas.forEach(d -> {
-                        storeDelta(d, validationRun);
-                        rpkiRepository.setRrdpSerial(rpkiRepository.getRrdpSerial().add(BigInteger.ONE));
-                    });
-
+                    storeDeltas(rpkiRepository, validationRun, notification);
                 } catch (RrdpException e) {
                     log.info("Processing deltas failed {}, falling back to snapshot processing.", e.getMessage());
                     ValidationCheck validationCheck = new ValidationCheck(validationRun, rpkiRepository.getRrdpNotifyUri(),
@@ -117,39 +166,125 @@ public class RrdpService {
                     rpkiRepository.getRrdpSessionId(), notification.sessionId);
             readSnapshot(rpkiRepository, validationRun, notification);
         }
+
+        // Only remember the validators once the repository is up to date, otherwise a failed run would not be retried
+        rpkiRepository.setRrdpNotificationEtag(validators.getEtag());
+        rpkiRepository.setRrdpNotificationLastModified(validators.getLastModified());
+        return true;
     }
 
-    private void readSnapshot(RpkiRepository rpkiRepository, RpkiRepositoryValidationRun validationRun, Notification notification) {
-        final byte[] snapshotBody = rrdpClient.getBody(notification.snapshotUri);
-        final byte[] snapshotHash = Sha256.hash(snapshotBody);
-        if (!Arrays.equals(Hex.parse(notification.snapshotHash), snapshotHash)) {
-            throw new RrdpException("Hash of the snapshot file " + notification.snapshotUri + " is " + Hex.format(snapshotHash) +
-                    ", but notification file says " + notification.snapshotHash);
+    /**
+     * Downloads and parses the deltas on the delta download executor, while the deltas are applied in order of
+     * their serial on the current thread (and transaction) as soon as all preceding deltas have been applied.
+     * At most {@link #deltaDownloadsPerRepository} deltas are being downloaded or waiting to be applied at the
+     * same time, which also limits the number of parsed deltas kept in memory.
+     */
+    private void storeDeltas(RpkiRepository rpkiRepository, RpkiRepositoryValidationRun validationRun, Notification notification) {
+        final List<DeltaInfo> deltaInfos = notification.deltas.stream().
+                filter(d -> d.getSerial().compareTo(rpkiRepository.getRrdpSerial()) > 0).
+                sorted(Comparator.comparing(DeltaInfo::getSerial)).
+                collect(Collectors.toList());
+
+        verifyDeltaSerials(deltaInfos, notification, rpkiRepository);
+
+        final Deque<Future<Delta>> pending = new ArrayDeque<>();
+        final Iterator<DeltaInfo> remaining = deltaInfos.iterator();
+        try {
+            while (remaining.hasNext() || !pending.isEmpty()) {
+                while (remaining.hasNext() && pending.size() < deltaDownloadsPerRepository) {
+                    final DeltaInfo di = remaining.next();
+                    pending.add(deltaDownloadExecutor.submit(() -> readDelta(notification, di)));
+                }
+                final Delta d = waitForDelta(pending.remove());
+                storeDelta(d, validationRun);
+                rpkiRepository.setRrdpSerial(rpkiRepository.getRrdpSerial().add(BigInteger.ONE));
+            }
+        } finally {
+            pending.forEach(f -> f.cancel(true));
         }
+    }
+
+    private Delta waitForDelta(Future<Delta> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RrdpException("interrupted while downloading deltas", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RrdpException("error downloading delta: " + e.getCause(), e.getCause());
+        }
+    }
+
+    private void readSnapshot(RpkiRepository rpkiRepository, RpkiRepositoryValidationRun validationRun, Notification notification) {
+        final SnapshotHeader snapshotHeader;
+        try (BufferedContent snapshot = rrdpClient.download(notification.snapshotUri)) {
+            final byte[] snapshotHash = snapshot.getSha256();
+            if (!Arrays.equals(Hex.parse(notification.snapshotHash), snapshotHash)) {
+                throw new RrdpException("Hash of the snapshot file " + notification.snapshotUri + " is " + Hex.format(snapshotHash) +
+                        ", but notification file says " + notification.snapshotHash);
+            }
 
-        final Snapshot snapshot = rrdpParser.snapshot(new ByteArrayInputStream(snapshotBody));
-        storeSnapshot(snapshot, validationRun);
+            final SnapshotRollback rollback = new SnapshotRollback();
+            final List<SnapshotObject> batch = new ArrayList<>(SNAPSHOT_BATCH_SIZE);
+            try (InputStream inputStream = snapshot.openStream()) {
+                snapshotHeader = rrdpParser.snapshot(inputStream, object -> {
+                    batch.add(object);
+                    if (batch.size() >= SNAPSHOT_BATCH_SIZE) {
+                        storeSnapshotObjects(batch, validationRun, rollback);
+                        batch.clear();
+                    }
+                });
+                storeSnapshotObjects(batch, validationRun, rollback);
+                if (!snapshotHeader.getSessionId().equals(notification.sessionId)) {
+                    throw new RrdpException("Session id of the snapshot (" + notification.snapshotUri +
+                            ") is " + snapshotHeader.getSessionId() + ", but notification file says " + notification.sessionId);
+                }
+                if (!snapshotHeader.getSerial().equals(notification.serial)) {
+                    throw new RrdpException("Serial of the snapshot (" + notification.snapshotUri +
+                            ") is " + snapshotHeader.getSerial() + ", but notification file says " + notification.serial);
+                }
+            } catch (RuntimeException e) {
+                rollback.apply(validationRun, rpkiObjectRepository);
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new RrdpException("error reading snapshot file " + notification.snapshotUri + ": " + e, e);
+        }
+        log.info("Stored snapshot {} with session id '{}' and serial {}", notification.snapshotUri, snapshotHeader.getSessionId(), snapshotHeader.getSerial());
         rpkiRepository.setRrdpSessionId(notification.sessionId);
         rpkiRepository.setRrdpSerial(notification.serial);
     }
 
     private Delta readDelta(Notification notification, DeltaInfo di) {
-        final byte[] deltaBody = rrdpClient.getBody(di.getUri());
-        final byte[] deltaHash = Sha256.hash(deltaBody);
-        if (!Arrays.equals(Hex.parse(di.getHash()), deltaHash)) {
-            throw new RrdpException("Hash of the delta file " + di + " is " + Hex.format(deltaHash) +
-                    ", but notification file says " + di.getHash());
-        }
+        final Delta d;
+        try (BufferedContent deltaBody = rrdpClient.download(di.getUri())) {
+            final byte[] deltaHash = deltaBody.getSha256();
+            if (!Arrays.equals(Hex.parse(di.getHash()), deltaHash)) {
+                throw new RrdpException("Hash of the delta file " + di + " is " + Hex.format(deltaHash) +
+                        ", but notification file says " + di.getHash());
+            }
 
-        final Delta d = rrdpParser.delta(new ByteArrayInputStream(deltaBody));
+            try (InputStream inputStream = deltaBody.openStream()) {
+                d = rrdpParser.delta(inputStream);
+            }
+        } catch (IOException e) {
+            throw new RrdpException("error reading delta file " + di + ": " + e, e);
+        }
         if (!d.getSessionId().equals(notification.sessionId)) {
             throw new RrdpException("Session id of the delta (" + di +
                     ") is not the same as in the notification file: " + notification.sessionId);
         }
+        if (!d.getSerial().equals(di.getSerial())) {
+            throw new RrdpException("Serial of the delta (" + di +
+                    ") is not the same as in the notification file: " + d.getSerial());
+        }
         return d;
     }
 
-    private void verifyDeltaSerials(final List<Delta> orderedDeltas, final Notification notification, RpkiRepository rpkiRepository) {
+    private void verifyDeltaSerials(final List<DeltaInfo> orderedDeltas, final Notification notification, RpkiRepository rpkiRepository) {
         if (orderedDeltas.isEmpty()) {
             if (!rpkiRepository.getRrdpSerial().equals(notification.serial)) {
                 throw new RrdpException("The current serial is " + rpkiRepository.getRrdpSerial() +
@@ -169,6 +304,7 @@ public class RrdpService {
                             if (!d.getSerial().equals(previous[0].add(BigInteger.ONE))) {
                                 throw new RrdpException(String.format("Serials of the deltas are not contiguous: found %d and %d after it", previous[0], d.getSerial()));
                             }
+                            previous[0] = d.getSerial();
                         }
                     }
             );
@@ -176,78 +312,109 @@ public class RrdpService {
     }
 
     void storeSnapshot(final Snapshot snapshot, final RpkiRepositoryValidationRun validationRun) {
-        snapshot.asMap().forEach((objUri, value) -> {
-            byte[] content = value.content;
-            rpkiObjectRepository.findBySha256(Sha256.hash(content)).map(existing -> {
-                existing.addLocation(objUri);
-                return existing;
-            }).orElseGet(() -> {
+        storeSnapshotObjects(new ArrayList<>(snapshot.asMap().values()), validationRun, new SnapshotRollback());
+    }
+
+    private void storeSnapshotObjects(final List<SnapshotObject> snapshotObjects, final RpkiRepositoryValidationRun validationRun, final SnapshotRollback rollback) {
+        final List<byte[]> hashes = snapshotObjects.stream().map(o -> Sha256.hash(o.content)).collect(Collectors.toList());
+        final Map<Sha256Key, RpkiObject> objectsBySha256 = rpkiObjectRepository.findBySha256In(hashes);
+        for (int i = 0; i < snapshotObjects.size(); ++i) {
+            final String objUri = snapshotObjects.get(i).getUri();
+            final byte[] content = snapshotObjects.get(i).content;
+            final Sha256Key sha256 = Sha256Key.of(hashes.get(i));
+            final RpkiObject existing = objectsBySha256.get(sha256);
+            if (existing != null) {
+                if (existing.addLocation(objUri)) {
+                    rollback.locationAdded(existing, objUri);
+                }
+            } else {
                 final Either<ValidationResult, RpkiObject> maybeRpkiObject = createRpkiObject(objUri, content);
                 if (maybeRpkiObject.isLeft()) {
                     validationRun.addChecks(maybeRpkiObject.left().value());
-                    return null;
                 } else {
                     RpkiObject object = maybeRpkiObject.right().value();
                     rpkiObjectRepository.add(object);
-                    validationRun.addRpkiObject(object);
+                    validationRun.objectAdded();
+                    rollback.objectAdded(object);
+                    objectsBySha256.put(sha256, object);
                     log.debug("added to database {}", object);
-                    return object;
                 }
-            });
-        });
+            }
+        }
+        rpkiObjectRepository.flushAndDetach(objectsBySha256.values());
     }
 
+    /**
+     * Applies all elements of the delta at once: the hashes of withdrawn, replaced and published objects are resolved
+     * together, location changes of stored objects are written in bulk and only objects that are not stored yet are
+     * parsed and inserted.
+     */
     void storeDelta(final Delta delta, final RpkiRepositoryValidationRun validationRun) {
-        delta.asMap().forEach((uri, deltaElement) -> {
+        final List<DeltaPublish> publishes = new ArrayList<>();
+        final List<DeltaWithdraw> withdraws = new ArrayList<>();
+        delta.asMap().values().forEach(deltaElement -> {
             if (deltaElement instanceof DeltaPublish) {
-                applyDeltaPublish(validationRun, uri, (DeltaPublish) deltaElement);
+                publishes.add((DeltaPublish) deltaElement);
             } else if (deltaElement instanceof DeltaWithdraw) {
-                applyDeltaWithdraw(validationRun, uri, (DeltaWithdraw) deltaElement);
+                withdraws.add((DeltaWithdraw) deltaElement);
             }
         });
-    }
 
-    private void applyDeltaWithdraw(RpkiRepositoryValidationRun validationRun, String uri, DeltaWithdraw deltaWithdraw) {
-        final Optional<RpkiObject> maybeObject = rpkiObjectRepository.findBySha256(deltaWithdraw.getHash());
-        if (maybeObject.isPresent()) {
-            maybeObject.get().removeLocation(uri);
-        } else {
-            ValidationCheck validationCheck = new ValidationCheck(validationRun, uri,
-                    ValidationCheck.Status.ERROR, "rrdp.withdraw.nonexistent.object", Hex.format(deltaWithdraw.getHash()));
-            validationRun.addCheck(validationCheck);
-        }
-    }
+        final List<byte[]> contentHashes = publishes.stream().map(p -> Sha256.hash(p.getContent())).collect(Collectors.toList());
+        final List<byte[]> hashes = new ArrayList<>(contentHashes);
+        publishes.forEach(p -> p.getHash().ifPresent(hashes::add));
+        withdraws.forEach(w -> hashes.add(w.getHash()));
+        final Map<Sha256Key, Long> storedIds = rpkiObjectRepository.findIdsBySha256In(hashes);
+
+        final List<Pair<Long, String>> removedLocations = new ArrayList<>();
+        final List<Pair<Long, String>> addedLocations = new ArrayList<>();
+        final Map<Sha256Key, RpkiObject> addedObjects = new HashMap<>();
 
-    private void applyDeltaPublish(RpkiRepositoryValidationRun validationRun, String uri, DeltaPublish deltaPublish) {
-        if (deltaPublish.getHash().isPresent()) {
-            final byte[] sha256 = deltaPublish.getHash().get();
-            final Optional<RpkiObject> existing = rpkiObjectRepository.findBySha256(sha256);
-            if (existing.isPresent()) {
-                addRpkiObject(validationRun, uri, deltaPublish, sha256);
+        for (DeltaWithdraw withdraw : withdraws) {
+            final Long id = storedIds.get(Sha256Key.of(withdraw.getHash()));
+            if (id != null) {
+                removedLocations.add(Pair.of(id, withdraw.getUri()));
             } else {
-                ValidationCheck validationCheck = new ValidationCheck(validationRun, uri,
-                        ValidationCheck.Status.ERROR, "rrdp.replace.nonexistent.object", Hex.format(sha256));
-                validationRun.addCheck(validationCheck);
+                validationRun.addCheck(new ValidationCheck(validationRun, withdraw.getUri(),
+                        ValidationCheck.Status.ERROR, "rrdp.withdraw.nonexistent.object", Hex.format(withdraw.getHash())));
             }
-        } else {
-            addRpkiObject(validationRun, uri, deltaPublish, null);
         }
-    }
 
-    private void addRpkiObject(RpkiRepositoryValidationRun validationRun, String uri, DeltaPublish deltaPublish, final byte[] existingHash) {
-        final Either<ValidationResult, RpkiObject> maybeRpkiObject = createRpkiObject(uri, deltaPublish.getContent());
-        if (maybeRpkiObject.isLeft()) {
-            validationRun.addChecks(maybeRpkiObject.left().value());
-        } else {
-            RpkiObject object = maybeRpkiObject.right().value();
-            if (existingHash == null || !Arrays.equals(object.getSha256(), existingHash)) {
-                validationRun.addRpkiObject(object);
-                rpkiObjectRepository.add(object);
+        for (int i = 0; i < publishes.size(); ++i) {
+            final DeltaPublish publish = publishes.get(i);
+            final String uri = publish.getUri();
+            if (publish.getHash().isPresent()) {
+                final Long replacedId = storedIds.get(Sha256Key.of(publish.getHash().get()));
+                if (replacedId == null) {
+                    validationRun.addCheck(new ValidationCheck(validationRun, uri,
+                            ValidationCheck.Status.ERROR, "rrdp.replace.nonexistent.object", Hex.format(publish.getHash().get())));
+                    continue;
+                }
+                removedLocations.add(Pair.of(replacedId, uri));
+            }
+
+            final Sha256Key sha256 = Sha256Key.of(contentHashes.get(i));
+            final Long storedId = storedIds.get(sha256);
+            if (storedId != null) {
+                addedLocations.add(Pair.of(storedId, uri));
+            } else if (addedObjects.containsKey(sha256)) {
+                addedLocations.add(Pair.of(addedObjects.get(sha256).getId(), uri));
             } else {
-                log.debug("The object added is the same {}", object);
+                final Either<ValidationResult, RpkiObject> maybeRpkiObject = createRpkiObject(uri, publish.getContent());
+                if (maybeRpkiObject.isLeft()) {
+                    validationRun.addChecks(maybeRpkiObject.left().value());
+                } else {
+                    final RpkiObject object = maybeRpkiObject.right().value();
+                    rpkiObjectRepository.add(object);
+                    validationRun.objectAdded();
+                    addedObjects.put(sha256, object);
+                    log.debug("added to database {}", object);
+                }
             }
-            log.debug("Added to database {}", object);
         }
+
+        rpkiObjectRepository.updateLocations(removedLocations, addedLocations);
+        rpkiObjectRepository.flushAndDetach(addedObjects.values());
     }
 
     private Either<ValidationResult, RpkiObject> createRpkiObject(final String uri, final byte[] content) {
@@ -259,4 +426,38 @@ public class RrdpService {
             return Either.right(new RpkiObject(uri, repositoryObject));
         }
     }
+
+    /**
+     * Keeps track of the changes made while streaming a snapshot into the database, so they can be undone
+     * when the snapshot turns out to be broken halfway through. Only identifiers are kept, so the memory used
+     * does not depend on the size of the objects in the snapshot.
+     */
+    private static class SnapshotRollback {
+        private final List<Long> addedObjectIds = new ArrayList<>();
+        private final List<Pair<Long, String>> addedLocations = new ArrayList<>();
+
+        void objectAdded(RpkiObject object) {
+            addedObjectIds.add(object.getId());
+        }
+
+        void locationAdded(RpkiObject object, String location) {
+            addedLocations.add(Pair.of(object.getId(), location));
+        }
+
+        void apply(RpkiRepositoryValidationRun validationRun, RpkiObjects rpkiObjects) {
+            rpkiObjects.updateLocations(addedLocations, Collections.emptyList());
+            // The objects of earlier batches have been detached, so they are loaded again a batch at a time
+            for (List<Long> ids : Iterables.partition(addedObjectIds, SNAPSHOT_BATCH_SIZE)) {
+                final List<RpkiObject> removed = ids.stream().map(rpkiObjects::get).collect(Collectors.toList());
+                removed.forEach(o -> {
+                    validationRun.objectRemoved();
+                    rpkiObjects.remove(o);
+                });
+                rpkiObjects.flushAndDetach(removed);
+            }
+            log.info("Rolled back {} added objects and {} added locations of the snapshot", addedObjectIds.size(), addedLocations.size());
+            addedObjectIds.clear();
+            addedLocations.clear();
+        }
+    }
 }
@@ -0,0 +1,732 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rsync;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client for the rsync daemon protocol, implementing the part of rsync that is needed to mirror RPKI repositories:
+ * the equivalent of <code>rsync --recursive --times --copy-links --delete rsync://host/module/path target</code>.
+ *
+ * Protocol version 29 is used, which is supported by every daemon since rsync 2.6.4 and does not need the incremental
+ * recursion, variable length integers and multiplexed client output of later versions. Files that differ in size or
+ * modification time are transferred whole without the rolling checksum algorithm, as RPKI objects are small and are
+ * replaced rather than modified.
+ */
+@Slf4j
+class RsyncClient {
+    static final int PROTOCOL_VERSION = 29;
+    static final int DEFAULT_PORT = 873;
+
+    static final int XMIT_EXTENDED_FLAGS = 1 << 2;
+    static final int XMIT_SAME_MODE = 1 << 1;
+    static final int XMIT_SAME_NAME = 1 << 5;
+    static final int XMIT_LONG_NAME = 1 << 6;
+    static final int XMIT_SAME_TIME = 1 << 7;
+
+    static final int ITEM_BASIS_TYPE_FOLLOWS = 1 << 11;
+    static final int ITEM_XNAME_FOLLOWS = 1 << 12;
+    static final int ITEM_TRANSFER = 1 << 15;
+
+    static final int NDX_DONE = -1;
+
+    static final int MPLEX_BASE = 7;
+    static final int MSG_DATA = 0;
+    static final int MSG_ERROR_XFER = 1;
+    static final int MSG_INFO = 2;
+    static final int MSG_ERROR = 3;
+    static final int MSG_WARNING = 4;
+    static final int MSG_ERROR_SOCKET = 5;
+    static final int MSG_LOG = 6;
+    static final int MSG_ERROR_UTF8 = 8;
+    static final int MSG_IO_ERROR = 22;
+    static final int MSG_ERROR_EXIT = 86;
+
+    static final int S_IFMT = 0170000;
+    static final int S_IFDIR = 0040000;
+    static final int S_IFREG = 0100000;
+
+    private static final int MAX_PATH = 4096;
+    private static final int MAX_MESSAGE = 64 * 1024;
+    private static final int FILE_CHECKSUM_LENGTH = 16;
+
+    /**
+     * Number of file requests sent ahead of the files being received. The server writes files while it reads requests,
+     * so the requests must be limited to what fits in the socket buffers to avoid both sides blocking on a write.
+     */
+    private static final int REQUEST_WINDOW = 256;
+
+    /**
+     * Order of the file list, the index of a file in this order identifies it in the transfer. Names are compared per
+     * path component, a directory sorts directly before its contents and after all files in the same directory.
+     */
+    static final Comparator<FileEntry> FILE_LIST_ORDER = (a, b) -> {
+        final String[] as = a.components();
+        final String[] bs = b.components();
+        for (int i = 0; i < Math.min(as.length, bs.length); ++i) {
+            final boolean aDirectory = i < as.length - 1 || a.isDirectory();
+            final boolean bDirectory = i < bs.length - 1 || b.isDirectory();
+            if (aDirectory != bDirectory) {
+                return aDirectory ? 1 : -1;
+            }
+            final int c = compareBytes(as[i].getBytes(StandardCharsets.UTF_8), bs[i].getBytes(StandardCharsets.UTF_8));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(as.length, bs.length);
+    };
+
+    private final Duration connectTimeout;
+
+    RsyncClient(Duration connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Fetches the <code>source</code> into the <code>target</code>. When the source is a directory the target is a
+     * directory that is made identical to it, otherwise the target is a file.
+     *
+     * @param deadline the time after which the transfer is aborted
+     * @return the number of files that were transferred
+     * @throws SocketTimeoutException when the transfer did not complete before the deadline
+     * @throws RsyncException when the server reported errors or did not follow the protocol. Files that were
+     * transferred before the error are kept, but local files are not deleted
+     */
+    int fetch(URI source, File target, Instant deadline) throws IOException {
+        final String path = source.getPath() == null ? "" : source.getPath().replaceFirst("^/+", "");
+        final String module = path.split("/", 2)[0];
+        if (source.getHost() == null || module.isEmpty()) {
+            throw new RsyncException("invalid rsync URI " + source);
+        }
+
+        try (Socket socket = new Socket()) {
+            socket.connect(
+                new InetSocketAddress(source.getHost(), source.getPort() < 0 ? DEFAULT_PORT : source.getPort()),
+                (int) Math.max(1, Math.min(connectTimeout.toMillis(), remainingMillis(deadline)))
+            );
+            socket.setSoTimeout((int) Math.max(1, Math.min(Integer.MAX_VALUE, remainingMillis(deadline))));
+
+            final Connection connection = new Connection(socket, source.getHost(), deadline);
+            connection.startSession(module);
+            connection.startSender(path);
+
+            final List<FileEntry> fileList = connection.readFileList();
+            fileList.sort(FILE_LIST_ORDER);
+
+            final Transfer transfer = new Transfer(connection, fileList, target);
+            transfer.createDirectories();
+            final int transferred = transfer.transferFiles();
+            connection.finish();
+
+            if (!connection.errors.isEmpty() || connection.ioError != 0) {
+                throw new RsyncException(connection.errors.isEmpty()
+                    ? "I/O error on the rsync server, not all files were transferred"
+                    : String.join("\n", connection.errors));
+            }
+            if (transfer.isDirectoryTransfer()) {
+                transfer.deleteExtraneousFiles();
+            }
+            return transferred;
+        }
+    }
+
+    private static long remainingMillis(Instant deadline) {
+        return Duration.between(Instant.now(), deadline).toMillis();
+    }
+
+    static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); ++i) {
+            final int c = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    static class FileEntry {
+        final String name;
+        final long length;
+        final long modificationTime;
+        final int mode;
+
+        FileEntry(String name, long length, long modificationTime, int mode) {
+            this.name = name;
+            this.length = length;
+            this.modificationTime = modificationTime;
+            this.mode = mode;
+        }
+
+        boolean isDirectory() {
+            return (mode & S_IFMT) == S_IFDIR;
+        }
+
+        boolean isRegularFile() {
+            return (mode & S_IFMT) == S_IFREG;
+        }
+
+        String[] components() {
+            return ".".equals(name) ? new String[0] : name.split("/");
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Decides which files of the sorted file list are requested and writes the received files to the target.
+     */
+    private static class Transfer {
+        private final Connection connection;
+        private final List<FileEntry> fileList;
+        private final Path target;
+        private final boolean directoryTransfer;
+
+        Transfer(Connection connection, List<FileEntry> fileList, File target) {
+            this.connection = connection;
+            this.fileList = fileList;
+            this.target = target.toPath().toAbsolutePath().normalize();
+            this.directoryTransfer = fileList.stream().anyMatch(entry -> entry.isDirectory() && ".".equals(entry.name));
+        }
+
+        boolean isDirectoryTransfer() {
+            return directoryTransfer;
+        }
+
+        Path localPath(FileEntry entry) {
+            if (!directoryTransfer) {
+                return target;
+            }
+            final Path path = target.resolve(entry.name).normalize();
+            if (!path.startsWith(target) || entry.name.startsWith("/")) {
+                throw new RsyncException("file name " + entry.name + " is outside of the transferred directory");
+            }
+            return path;
+        }
+
+        void createDirectories() throws IOException {
+            if (!directoryTransfer) {
+                if (fileList.size() != 1 || !fileList.get(0).isRegularFile()) {
+                    throw new RsyncException("expected a single file but received " + fileList);
+                }
+                Files.createDirectories(target.getParent());
+                return;
+            }
+            for (FileEntry entry : fileList) {
+                if (entry.isDirectory()) {
+                    final Path directory = localPath(entry);
+                    if (Files.isRegularFile(directory, LinkOption.NOFOLLOW_LINKS)) {
+                        Files.delete(directory);
+                    }
+                    Files.createDirectories(directory);
+                }
+            }
+        }
+
+        int transferFiles() throws IOException {
+            final List<Integer> requests = new ArrayList<>();
+            for (int ndx = 0; ndx < fileList.size(); ++ndx) {
+                final FileEntry entry = fileList.get(ndx);
+                if (entry.isRegularFile() && isModified(entry, localPath(entry))) {
+                    requests.add(ndx);
+                }
+            }
+
+            final Deque<Integer> outstanding = new ArrayDeque<>();
+            int next = 0;
+            int transferred = 0;
+            while (true) {
+                while (next < requests.size() && outstanding.size() < REQUEST_WINDOW) {
+                    final int ndx = requests.get(next++);
+                    connection.writeInt(ndx);
+                    connection.writeShort(ITEM_TRANSFER);
+                    connection.writeSumHead();
+                    outstanding.addLast(ndx);
+                }
+                if (next == requests.size()) {
+                    // Marks the end of the requests, echoed by the server after the last file
+                    connection.writeInt(NDX_DONE);
+                    next++;
+                }
+                connection.flush();
+
+                final int ndx = connection.readInt();
+                if (ndx == NDX_DONE) {
+                    if (next <= requests.size()) {
+                        throw new RsyncException("end of transfer received before all files were requested");
+                    }
+                    // Requested files that are not sent have disappeared from the server
+                    return transferred;
+                }
+                while (!outstanding.isEmpty() && outstanding.peekFirst() != ndx) {
+                    log.debug("file {} was not sent by the server", fileList.get(outstanding.removeFirst()));
+                }
+                if (outstanding.isEmpty()) {
+                    throw new RsyncException("received file index " + ndx + " that was not requested");
+                }
+                outstanding.removeFirst();
+                if (receiveFile(fileList.get(ndx))) {
+                    transferred++;
+                }
+            }
+        }
+
+        private boolean receiveFile(FileEntry entry) throws IOException {
+            final int flags = connection.readUnsignedShort();
+            if ((flags & ITEM_BASIS_TYPE_FOLLOWS) != 0) {
+                connection.readUnsignedByte();
+            }
+            if ((flags & ITEM_XNAME_FOLLOWS) != 0) {
+                connection.skipFully(connection.readVariableLength());
+            }
+            if ((flags & ITEM_TRANSFER) == 0) {
+                return false;
+            }
+            final int blockCount = connection.readInt();
+            connection.readInt(); // block length
+            connection.readInt(); // block checksum length
+            connection.readInt(); // remainder length
+            if (blockCount != 0) {
+                throw new RsyncException("server sent " + blockCount + " block checksums for " + entry);
+            }
+
+            final Path file = localPath(entry);
+            final Path temporary = Files.createTempFile(file.getParent(), "." + file.getFileName(), ".tmp");
+            try {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+                    int token;
+                    while ((token = connection.readInt()) != 0) {
+                        if (token < 0) {
+                            throw new RsyncException("server sent a block reference for " + entry + " while no blocks were requested");
+                        }
+                        connection.copy(token, out);
+                    }
+                }
+                // The whole-file checksum is not verified, objects are verified through their signature and the
+                // hashes on the manifest
+                connection.skipFully(FILE_CHECKSUM_LENGTH);
+
+                Files.setLastModifiedTime(temporary, FileTime.from(entry.modificationTime, TimeUnit.SECONDS));
+                if (Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                    deleteRecursively(file);
+                }
+                try {
+                    Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return true;
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        void deleteExtraneousFiles() throws IOException {
+            final Set<Path> expected = new HashSet<>();
+            for (FileEntry entry : fileList) {
+                expected.add(localPath(entry));
+            }
+            Files.walkFileTree(target, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (expected.contains(dir)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    deleteRecursively(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!expected.contains(file)) {
+                        log.debug("deleting {} as it no longer exists on the server", file);
+                        Files.delete(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        private static boolean isModified(FileEntry entry, Path file) throws IOException {
+            if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                return true;
+            }
+            return Files.size(file) != entry.length
+                || Files.getLastModifiedTime(file).to(TimeUnit.SECONDS) != entry.modificationTime;
+        }
+
+        private static void deleteRecursively(Path path) throws IOException {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    if (e != null) {
+                        throw e;
+                    }
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * A connection to an rsync daemon. Integers are little-endian. After the session is set up everything the server
+     * sends is multiplexed: packets with a four byte header carry either file data or messages for the client.
+     */
+    private static class Connection {
+        private final String host;
+        private final Instant deadline;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+
+        private boolean multiplexed;
+        private int remainingInPacket;
+
+        final List<String> errors = new ArrayList<>();
+        int ioError;
+
+        Connection(Socket socket, String host, Instant deadline) throws IOException {
+            this.host = host;
+            this.deadline = deadline;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void startSession(String module) throws IOException {
+            final String greeting = readLine();
+            if (!greeting.startsWith("@RSYNCD: ")) {
+                throw new RsyncException("unexpected greeting from rsync server " + host + ": " + greeting);
+            }
+            final int serverVersion;
+            try {
+                serverVersion = Integer.parseInt(greeting.substring("@RSYNCD: ".length()).split("[. ]")[0].trim());
+            } catch (NumberFormatException e) {
+                throw new RsyncException("unexpected greeting from rsync server " + host + ": " + greeting);
+            }
+            if (serverVersion < PROTOCOL_VERSION) {
+                throw new RsyncException("rsync server " + host + " uses unsupported protocol version " + serverVersion);
+            }
+            writeLine("@RSYNCD: " + PROTOCOL_VERSION + ".0");
+            writeLine(module);
+            flush();
+
+            while (true) {
+                final String line = readLine();
+                if (line.startsWith("@RSYNCD: OK")) {
+                    return;
+                } else if (line.startsWith("@ERROR")) {
+                    throw new RsyncException(line);
+                } else if (line.startsWith("@RSYNCD: AUTHREQD")) {
+                    throw new RsyncException("rsync module " + module + " on " + host + " requires authentication");
+                } else if (line.startsWith("@RSYNCD: EXIT")) {
+                    throw new RsyncException("rsync server " + host + " closed the session");
+                }
+                log.debug("{}: {}", host, line);
+            }
+        }
+
+        void startSender(String path) throws IOException {
+            for (String argument : new String[]{"--server", "--sender", "-rtL", ".", path}) {
+                writeLine(argument);
+            }
+            writeLine("");
+            flush();
+
+            readInt(); // checksum seed, only used for block checksums
+            multiplexed = true;
+
+            // Empty filter list
+            writeInt(0);
+            flush();
+        }
+
+        List<FileEntry> readFileList() throws IOException {
+            final List<FileEntry> fileList = new ArrayList<>();
+            byte[] lastName = new byte[0];
+            long lastModificationTime = 0;
+            int lastMode = 0;
+            int flags;
+            while ((flags = readUnsignedByte()) != 0) {
+                if ((flags & XMIT_EXTENDED_FLAGS) != 0) {
+                    flags |= readUnsignedByte() << 8;
+                }
+                final int prefixLength = (flags & XMIT_SAME_NAME) != 0 ? readUnsignedByte() : 0;
+                final int suffixLength = (flags & XMIT_LONG_NAME) != 0 ? readInt() : readUnsignedByte();
+                if (prefixLength > lastName.length || suffixLength < 0 || prefixLength + suffixLength > MAX_PATH) {
+                    throw new RsyncException("invalid file name length in file list from " + host);
+                }
+                final byte[] name = new byte[prefixLength + suffixLength];
+                System.arraycopy(lastName, 0, name, 0, prefixLength);
+                readFully(name, prefixLength, suffixLength);
+
+                final long length = readLongInt();
+                final long modificationTime = (flags & XMIT_SAME_TIME) != 0 ? lastModificationTime : readInt();
+                final int mode = (flags & XMIT_SAME_MODE) != 0 ? lastMode : readInt();
+
+                fileList.add(new FileEntry(new String(name, StandardCharsets.UTF_8), length, modificationTime, mode));
+                lastName = name;
+                lastModificationTime = modificationTime;
+                lastMode = mode;
+            }
+            ioError |= readInt();
+            return fileList;
+        }
+
+        /**
+         * Completes the remaining phases of the transfer, in which rsync would resend files that failed verification,
+         * and reads the statistics the server sends at the end.
+         */
+        void finish() throws IOException {
+            for (int phase = 0; phase < 2; ++phase) {
+                writeInt(NDX_DONE);
+                flush();
+                final int ndx = readInt();
+                if (ndx != NDX_DONE) {
+                    throw new RsyncException("received file index " + ndx + " from " + host + " after all files were transferred");
+                }
+            }
+            // Total bytes read, total bytes written, total size, file list build time and file list transfer time
+            for (int i = 0; i < 5; ++i) {
+                readLongInt();
+            }
+            writeInt(NDX_DONE);
+            flush();
+        }
+
+        String readLine() throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = readUnsignedByte()) != '\n') {
+                if (line.length() > MAX_MESSAGE) {
+                    throw new RsyncException("line from rsync server " + host + " is too long");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        int readVariableLength() throws IOException {
+            final int length = readUnsignedByte();
+            return (length & 0x80) != 0 ? (length & 0x7F) * 0x100 + readUnsignedByte() : length;
+        }
+
+        int readUnsignedByte() throws IOException {
+            if (multiplexed) {
+                fillPacket();
+                remainingInPacket--;
+            }
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("connection closed by rsync server " + host);
+            }
+            return b;
+        }
+
+        int readUnsignedShort() throws IOException {
+            return readUnsignedByte() | readUnsignedByte() << 8;
+        }
+
+        int readInt() throws IOException {
+            return readUnsignedByte() | readUnsignedByte() << 8 | readUnsignedByte() << 16 | readUnsignedByte() << 24;
+        }
+
+        long readLongInt() throws IOException {
+            final int value = readInt();
+            if (value != -1) {
+                return value;
+            }
+            return (readInt() & 0xFFFFFFFFL) | (long) readInt() << 32;
+        }
+
+        void readFully(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                final int count = read(bytes, offset, length);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        void skipFully(int length) throws IOException {
+            while (length > 0) {
+                length -= read(buffer, 0, Math.min(length, buffer.length));
+            }
+        }
+
+        void copy(int length, OutputStream target) throws IOException {
+            while (length > 0) {
+                final int count = read(buffer, 0, Math.min(length, buffer.length));
+                target.write(buffer, 0, count);
+                length -= count;
+            }
+        }
+
+        private int read(byte[] bytes, int offset, int length) throws IOException {
+            if (multiplexed) {
+                fillPacket();
+                length = Math.min(length, remainingInPacket);
+            }
+            final int count = in.read(bytes, offset, length);
+            if (count < 0) {
+                throw new EOFException("connection closed by rsync server " + host);
+            }
+            if (multiplexed) {
+                remainingInPacket -= count;
+            }
+            return count;
+        }
+
+        /**
+         * Reads packet headers until a data packet is found, handling the messages in between.
+         */
+        private void fillPacket() throws IOException {
+            while (remainingInPacket == 0) {
+                if (Instant.now().isAfter(deadline)) {
+                    throw new SocketTimeoutException("rsync transfer from " + host + " did not complete in time");
+                }
+                multiplexed = false;
+                final int header = readInt();
+                final int code = (header >>> 24) - MPLEX_BASE;
+                final int length = header & 0xFFFFFF;
+                if (code == MSG_DATA) {
+                    multiplexed = true;
+                    remainingInPacket = length;
+                } else {
+                    handleMessage(code, length);
+                    multiplexed = true;
+                }
+            }
+        }
+
+        private void handleMessage(int code, int length) throws IOException {
+            if (code < 0 || length > MAX_MESSAGE) {
+                throw new RsyncException("invalid message from rsync server " + host);
+            }
+            final byte[] message = new byte[length];
+            readFully(message, 0, length);
+            final String text = new String(message, StandardCharsets.UTF_8).trim();
+            switch (code) {
+                case MSG_ERROR_XFER:
+                case MSG_ERROR:
+                case MSG_ERROR_SOCKET:
+                case MSG_ERROR_UTF8:
+                    log.debug("{}: {}", host, text);
+                    errors.add(text);
+                    break;
+                case MSG_INFO:
+                case MSG_WARNING:
+                case MSG_LOG:
+                    log.debug("{}: {}", host, text);
+                    break;
+                case MSG_IO_ERROR:
+                    if (length == 4) {
+                        ioError |= (message[0] & 0xFF) | (message[1] & 0xFF) << 8 | (message[2] & 0xFF) << 16 | (message[3] & 0xFF) << 24;
+                    }
+                    break;
+                case MSG_ERROR_EXIT:
+                    throw new RsyncException("rsync server " + host + " exited with an error" + (errors.isEmpty() ? "" : ": " + String.join("\n", errors)));
+                default:
+                    log.debug("ignoring message {} from rsync server {}", code, host);
+            }
+        }
+
+        void writeLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeShort(int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+        }
+
+        void writeInt(int value) throws IOException {
+            out.write(value);
+            out.write(value >>> 8);
+            out.write(value >>> 16);
+            out.write(value >>> 24);
+        }
+
+        /**
+         * Writes an empty checksum header, so the server sends the whole file.
+         */
+        void writeSumHead() throws IOException {
+            for (int i = 0; i < 4; ++i) {
+                writeInt(0);
+            }
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rsync;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs rsync transfers on a bounded pool of threads. At most a fixed number of transfers run against the same host
+ * at the same time, other fetches wait until a transfer from their host completes. Waiting fetches are started in
+ * order of the time their target was last fetched, so targets that were never fetched or are the most out of date go
+ * first. Transfers that do not complete within the timeout are aborted.
+ */
+@Component
+@Slf4j
+public class RsyncFetcher {
+
+    private static final Comparator<Fetch> FETCH_ORDER = Comparator
+        .comparing((Fetch fetch) -> fetch.lastFetchedAt, Comparator.nullsFirst(Comparator.naturalOrder()))
+        .thenComparingLong(fetch -> fetch.sequence);
+
+    private final ExecutorService executor;
+
+    private final Transfer transfer;
+
+    private final int threads;
+
+    private final int fetchesPerHost;
+
+    private final Duration timeout;
+
+    // Guarded by this
+    private final NavigableSet<Fetch> waiting = new TreeSet<>(FETCH_ORDER);
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running;
+    private long sequence;
+
+    @Autowired
+    public RsyncFetcher(
+        @Value("${rpki.validator.rsync.fetch.threads}") int threads,
+        @Value("${rpki.validator.rsync.fetch.per.host}") int fetchesPerHost,
+        @Value("${rpki.validator.rsync.fetch.timeout}") String timeout,
+        @Value("${rpki.validator.rsync.connect.timeout}") String connectTimeout
+    ) {
+        this(threads, fetchesPerHost, Duration.parse(timeout), rsyncOrLocalCopy(new RsyncClient(Duration.parse(connectTimeout))));
+    }
+
+    RsyncFetcher(int threads, int fetchesPerHost, Duration timeout, Transfer transfer) {
+        this.transfer = transfer;
+        this.threads = threads;
+        this.fetchesPerHost = fetchesPerHost;
+        this.timeout = timeout;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "rsync-fetch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Fetches that did not start yet are cancelled, including those already handed to the executor.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        for (Runnable task : executor.shutdownNow()) {
+            waiting.add(((FetchTask) task).fetch);
+        }
+        waiting.forEach(fetch -> fetch.result.completeExceptionally(new CancellationException("rsync fetcher was shut down")));
+        waiting.clear();
+    }
+
+    /**
+     * Fetches the <code>source</code> into the <code>target</code>. A source ending with a slash is fetched
+     * recursively into the target directory, deleting local files that no longer exist in the source.
+     *
+     * @param lastFetchedAt the time the target was last fetched, or null if it was never fetched
+     * @return the result of the transfer
+     */
+    public CompletableFuture<Result> fetch(URI source, File target, Instant lastFetchedAt) {
+        final Fetch fetch = new Fetch(source, target, lastFetchedAt);
+        synchronized (this) {
+            if (executor.isShutdown()) {
+                fetch.result.completeExceptionally(new CancellationException("rsync fetcher was shut down"));
+                return fetch.result;
+            }
+            fetch.sequence = sequence++;
+            waiting.add(fetch);
+            startWaitingFetches();
+        }
+        return fetch.result;
+    }
+
+    /**
+     * Fetches the <code>source</code> into the <code>target</code> on the calling thread, without waiting for other
+     * transfers from the same host or for a free thread. Meant for single files that are needed before anything else
+     * can be validated, like trust anchor certificates. The transfer is still aborted after the timeout.
+     *
+     * @return the result of the transfer
+     */
+    public Result fetchNow(URI source, File target) {
+        return execute(new Fetch(source, target, null));
+    }
+
+    private synchronized void startWaitingFetches() {
+        final Iterator<Fetch> iterator = waiting.iterator();
+        while (running < threads && iterator.hasNext()) {
+            final Fetch fetch = iterator.next();
+            final int runningForHost = runningPerHost.getOrDefault(fetch.host, 0);
+            if (runningForHost < fetchesPerHost) {
+                iterator.remove();
+                runningPerHost.put(fetch.host, runningForHost + 1);
+                running++;
+                executor.execute(new FetchTask(fetch));
+            }
+        }
+    }
+
+    private synchronized void completed(Fetch fetch) {
+        running--;
+        runningPerHost.compute(fetch.host, (host, count) -> count == 1 ? null : count - 1);
+        startWaitingFetches();
+    }
+
+    private void run(Fetch fetch) {
+        try {
+            fetch.result.complete(execute(fetch));
+        } catch (Throwable e) {
+            // Whoever waits for the result must not wait forever
+            log.error("rsync of {} failed: {}", fetch.source, e, e);
+            fetch.result.completeExceptionally(e);
+        } finally {
+            completed(fetch);
+        }
+    }
+
+    private Result execute(Fetch fetch) {
+        final Instant deadline = Instant.now().plus(timeout);
+        try {
+            final long startedAt = System.currentTimeMillis();
+            final int transferred = transfer.fetch(fetch.source, fetch.target, deadline);
+            log.debug("rsync of {} transferred {} files in {} ms", fetch.source, transferred, System.currentTimeMillis() - startedAt);
+            return new Result(false, Collections.emptyList());
+        } catch (SocketTimeoutException e) {
+            log.warn("rsync of {} did not complete within {}", fetch.source, timeout);
+            return new Result(true, Collections.singletonList(String.valueOf(e.getMessage())));
+        } catch (RsyncException | IOException e) {
+            return new Result(false, Arrays.asList(String.valueOf(e).split("\n")));
+        }
+    }
+
+    /**
+     * Sources without the rsync scheme are local files, which are copied like rsync does for local paths.
+     */
+    private static Transfer rsyncOrLocalCopy(RsyncClient client) {
+        return (source, target, deadline) -> "rsync".equalsIgnoreCase(source.getScheme())
+            ? client.fetch(source, target, deadline)
+            : copyLocalFile(source, target);
+    }
+
+    private static int copyLocalFile(URI sourceUri, File targetFile) throws IOException {
+        final Path source = Paths.get(sourceUri.getPath());
+        final Path target = targetFile.toPath();
+        if (!Files.isRegularFile(source)) {
+            throw new RsyncException("link_stat \"" + source + "\" failed: No such file");
+        }
+        if (Files.isRegularFile(target)
+            && Files.size(target) == Files.size(source)
+            && Files.getLastModifiedTime(target).equals(Files.getLastModifiedTime(source))) {
+            return 0;
+        }
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        return 1;
+    }
+
+    /**
+     * Transfers the source into the target, giving up with a {@link SocketTimeoutException} at the deadline.
+     *
+     * @return the number of transferred files
+     */
+    @FunctionalInterface
+    interface Transfer {
+        int fetch(URI source, File target, Instant deadline) throws IOException;
+    }
+
+    @lombok.Value
+    public static class Result {
+        boolean timedOut;
+        List<String> errors;
+
+        public boolean isSucceeded() {
+            return !timedOut && errors.isEmpty();
+        }
+    }
+
+    private final class FetchTask implements Runnable {
+        final Fetch fetch;
+
+        FetchTask(Fetch fetch) {
+            this.fetch = fetch;
+        }
+
+        @Override
+        public void run() {
+            RsyncFetcher.this.run(fetch);
+        }
+    }
+
+    private static class Fetch {
+        final URI source;
+        final String host;
+        final File target;
+        final Instant lastFetchedAt;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+        long sequence;
+
+        Fetch(URI source, File target, Instant lastFetchedAt) {
+            this.source = source;
+            this.host = String.valueOf(source.getHost()).toLowerCase(Locale.ROOT);
+            this.target = target;
+            this.lastFetchedAt = lastFetchedAt;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rtr;
+
+import net.ripe.ipresource.IpResourceType;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefix;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encoding of RPKI-to-Router protocol data units (RFC 8210, and RFC 6810 for protocol version 0).
+ * <p>
+ * Prefix PDUs are encoded as protocol version 1 and patched using {@link #withVersion(byte[], int)} for routers
+ * using protocol version 0, the formats are otherwise identical.
+ */
+final class Pdus {
+    static final int VERSION_0 = 0;
+    static final int VERSION_1 = 1;
+    static final int HIGHEST_VERSION = VERSION_1;
+
+    static final int SERIAL_NOTIFY = 0;
+    static final int SERIAL_QUERY = 1;
+    static final int RESET_QUERY = 2;
+    static final int CACHE_RESPONSE = 3;
+    static final int IPV4_PREFIX = 4;
+    static final int IPV6_PREFIX = 6;
+    static final int END_OF_DATA = 7;
+    static final int CACHE_RESET = 8;
+    static final int ROUTER_KEY = 9;
+    static final int ERROR_REPORT = 10;
+
+    static final int CORRUPT_DATA = 0;
+    static final int INTERNAL_ERROR = 1;
+    static final int NO_DATA_AVAILABLE = 2;
+    static final int INVALID_REQUEST = 3;
+    static final int UNSUPPORTED_PROTOCOL_VERSION = 4;
+    static final int UNSUPPORTED_PDU_TYPE = 5;
+    static final int UNEXPECTED_PROTOCOL_VERSION = 8;
+
+    static final int HEADER_LENGTH = 8;
+    static final int SERIAL_QUERY_LENGTH = 12;
+    static final int RESET_QUERY_LENGTH = 8;
+
+    static final byte WITHDRAWAL = 0;
+    static final byte ANNOUNCEMENT = 1;
+    static final int FLAGS_OFFSET = 8;
+
+    // Default timing parameters of RFC 8210 section 6, sent in version 1 End of Data PDUs
+    static final int REFRESH_INTERVAL = 3600;
+    static final int RETRY_INTERVAL = 600;
+    static final int EXPIRE_INTERVAL = 7200;
+
+    private static final int IPV4_PREFIX_LENGTH = 20;
+    private static final int IPV6_PREFIX_LENGTH = 32;
+
+    private Pdus() {
+    }
+
+    static byte[] serialNotify(int version, short sessionId, int serial) {
+        return header(version, SERIAL_NOTIFY, sessionId, 12).putInt(serial).array();
+    }
+
+    static byte[] cacheResponse(int version, short sessionId) {
+        return header(version, CACHE_RESPONSE, sessionId, 8).array();
+    }
+
+    static byte[] endOfData(int version, short sessionId, int serial) {
+        if (version == VERSION_0) {
+            return header(version, END_OF_DATA, sessionId, 12).putInt(serial).array();
+        }
+        return header(version, END_OF_DATA, sessionId, 24)
+            .putInt(serial)
+            .putInt(REFRESH_INTERVAL)
+            .putInt(RETRY_INTERVAL)
+            .putInt(EXPIRE_INTERVAL)
+            .array();
+    }
+
+    static byte[] cacheReset(int version) {
+        return header(version, CACHE_RESET, (short) 0, 8).array();
+    }
+
+    static byte[] errorReport(int version, int errorCode, byte[] erroneousPdu, String text) {
+        byte[] encodedText = text.getBytes(StandardCharsets.UTF_8);
+        return header(version, ERROR_REPORT, (short) errorCode, HEADER_LENGTH + 4 + erroneousPdu.length + 4 + encodedText.length)
+            .putInt(erroneousPdu.length)
+            .put(erroneousPdu)
+            .putInt(encodedText.length)
+            .put(encodedText)
+            .array();
+    }
+
+    /**
+     * @return the version 1 IPv4 or IPv6 Prefix PDU announcing the prefix
+     */
+    static byte[] prefix(ValidatedRoaPrefix prefix) {
+        BigInteger address = prefix.getPrefix().getStart().getValue();
+        boolean ipv4 = prefix.getPrefix().getType() == IpResourceType.IPv4;
+        ByteBuffer pdu = header(VERSION_1, ipv4 ? IPV4_PREFIX : IPV6_PREFIX, (short) 0, ipv4 ? IPV4_PREFIX_LENGTH : IPV6_PREFIX_LENGTH)
+            .put(ANNOUNCEMENT)
+            .put((byte) prefix.getPrefix().getPrefixLength())
+            .put((byte) prefix.getEffectiveMaximumLength())
+            .put((byte) 0);
+        if (ipv4) {
+            pdu.putInt(address.intValue());
+        } else {
+            pdu.putLong(address.shiftRight(64).longValue()).putLong(address.longValue());
+        }
+        return pdu.putInt((int) prefix.getAsn()).array();
+    }
+
+    static int length(byte[] pdus, int offset) {
+        return ByteBuffer.wrap(pdus, offset + 4, 4).getInt();
+    }
+
+    /**
+     * Orders prefix PDUs by type and content, ignoring version and flags, so the PDUs of a set of prefixes can be
+     * compared without decoding them.
+     */
+    static int comparePrefixes(byte[] a, int aOffset, byte[] b, int bOffset) {
+        int result = Integer.compare(a[aOffset + 1], b[bOffset + 1]);
+        int length = length(a, aOffset);
+        for (int i = FLAGS_OFFSET + 1; result == 0 && i < length; ++i) {
+            result = Integer.compare(a[aOffset + i] & 0xff, b[bOffset + i] & 0xff);
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the concatenated PDUs with the version set to the given version, or the PDUs themselves when
+     * they already have this version
+     */
+    static byte[] withVersion(byte[] pdus, int version) {
+        if (version == VERSION_1) {
+            return pdus;
+        }
+        byte[] result = Arrays.copyOf(pdus, pdus.length);
+        for (int offset = 0; offset < result.length; offset += length(result, offset)) {
+            result[offset] = (byte) version;
+        }
+        return result;
+    }
+
+    private static ByteBuffer header(int version, int type, short sessionIdOrErrorCode, int length) {
+        return ByteBuffer.allocate(length)
+            .put((byte) version)
+            .put((byte) type)
+            .putShort(sessionIdOrErrorCode)
+            .putInt(length);
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rtr;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixSet;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The validated ROA prefixes served to routers, as pre-encoded RPKI-to-Router PDUs.
+ * <p>
+ * Every change to the validated ROA prefixes increments the serial number. The differences between the most
+ * recent serial numbers are retained, so routers that are not too far behind only receive the changes.
+ */
+@Component
+@Slf4j
+public class RtrCache {
+
+    private final Supplier<ValidatedRoaPrefixSet> initialPrefixes;
+    private final int retainedDiffs;
+    private final short sessionId = (short) ThreadLocalRandom.current().nextInt();
+    private final List<Consumer<State>> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile State state;
+
+    @Autowired
+    public RtrCache(ValidatedRoaPrefixes validatedRoaPrefixes, @Value("${rpki.validator.rtr.retained.diffs}") int retainedDiffs) {
+        this(validatedRoaPrefixes::getCurrent, retainedDiffs);
+        validatedRoaPrefixes.addListener(this::update);
+    }
+
+    RtrCache(Supplier<ValidatedRoaPrefixSet> initialPrefixes, int retainedDiffs) {
+        this.initialPrefixes = initialPrefixes;
+        this.retainedDiffs = retainedDiffs;
+    }
+
+    /**
+     * Listeners are notified of every change of the serial number.
+     */
+    void addListener(Consumer<State> listener) {
+        listeners.add(listener);
+    }
+
+    State getState() {
+        State result = state;
+        if (result != null) {
+            return result;
+        }
+
+        // Retrieve the prefixes without holding our lock, updates are made while holding the lock of the prefixes
+        byte[] prefixes = encode(initialPrefixes.get());
+        synchronized (this) {
+            if (state == null) {
+                state = new State(sessionId, 0, prefixes, Collections.emptyList());
+            }
+            return state;
+        }
+    }
+
+    void update(ValidatedRoaPrefixSet validatedRoaPrefixes) {
+        byte[] prefixes = encode(validatedRoaPrefixes);
+        State updated;
+        synchronized (this) {
+            if (state == null) {
+                state = new State(sessionId, 0, prefixes, Collections.emptyList());
+                return;
+            }
+
+            byte[] diff = diff(state.prefixes, prefixes);
+            if (diff.length == 0) {
+                return;
+            }
+
+            List<Diff> diffs = new ArrayList<>(state.diffs);
+            diffs.add(new Diff(state.serial, diff));
+            if (diffs.size() > retainedDiffs) {
+                diffs = diffs.subList(diffs.size() - retainedDiffs, diffs.size());
+            }
+            updated = new State(sessionId, state.serial + 1, prefixes, new ArrayList<>(diffs));
+            state = updated;
+        }
+
+        log.info("Updated RTR cache to serial {} with {} validated ROA prefixes", Integer.toUnsignedLong(updated.serial), validatedRoaPrefixes.size());
+        listeners.forEach(listener -> listener.accept(updated));
+    }
+
+    /**
+     * @return the sorted, distinct prefix PDUs announcing the prefixes
+     */
+    private static byte[] encode(ValidatedRoaPrefixSet validatedRoaPrefixes) {
+        List<byte[]> pdus = new ArrayList<>(validatedRoaPrefixes.size());
+        validatedRoaPrefixes.stream().map(Pdus::prefix).forEach(pdus::add);
+        pdus.sort((a, b) -> Pdus.comparePrefixes(a, 0, b, 0));
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(pdus.size() * 24);
+        byte[] previous = null;
+        for (byte[] pdu : pdus) {
+            if (previous == null || Pdus.comparePrefixes(previous, 0, pdu, 0) != 0) {
+                result.write(pdu, 0, pdu.length);
+            }
+            previous = pdu;
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * @return the withdrawals of the prefixes only in the previous PDUs followed by the announcements of the prefixes
+     * only in the current PDUs
+     */
+    private static byte[] diff(byte[] previous, byte[] current) {
+        ByteArrayOutputStream withdrawals = new ByteArrayOutputStream();
+        ByteArrayOutputStream announcements = new ByteArrayOutputStream();
+        int i = 0;
+        int j = 0;
+        while (i < previous.length || j < current.length) {
+            int comparison = i == previous.length ? 1 : j == current.length ? -1 : Pdus.comparePrefixes(previous, i, current, j);
+            if (comparison < 0) {
+                writeWithFlags(withdrawals, previous, i, Pdus.WITHDRAWAL);
+                i += Pdus.length(previous, i);
+            } else if (comparison > 0) {
+                writeWithFlags(announcements, current, j, Pdus.ANNOUNCEMENT);
+                j += Pdus.length(current, j);
+            } else {
+                i += Pdus.length(previous, i);
+                j += Pdus.length(current, j);
+            }
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream(withdrawals.size() + announcements.size());
+        result.write(withdrawals.toByteArray(), 0, withdrawals.size());
+        result.write(announcements.toByteArray(), 0, announcements.size());
+        return result.toByteArray();
+    }
+
+    private static void writeWithFlags(ByteArrayOutputStream out, byte[] pdus, int offset, byte flags) {
+        byte[] pdu = new byte[Pdus.length(pdus, offset)];
+        System.arraycopy(pdus, offset, pdu, 0, pdu.length);
+        pdu[Pdus.FLAGS_OFFSET] = flags;
+        out.write(pdu, 0, pdu.length);
+    }
+
+    private static final class Diff {
+        private final int fromSerial;
+        private final byte[] pdus;
+
+        private Diff(int fromSerial, byte[] pdus) {
+            this.fromSerial = fromSerial;
+            this.pdus = pdus;
+        }
+    }
+
+    /**
+     * The validated ROA prefixes of a single serial number. Responses are encoded on first use and shared by all
+     * router sessions.
+     */
+    static final class State {
+        @Getter
+        private final short sessionId;
+        @Getter
+        private final int serial;
+        private final byte[] prefixes;
+        private final List<Diff> diffs;
+
+        private final AtomicReferenceArray<byte[]> serialNotifies = new AtomicReferenceArray<>(Pdus.HIGHEST_VERSION + 1);
+        private final AtomicReferenceArray<byte[]> resetResponses = new AtomicReferenceArray<>(Pdus.HIGHEST_VERSION + 1);
+        private final ConcurrentMap<Long, byte[]> serialResponses = new ConcurrentHashMap<>();
+
+        private State(short sessionId, int serial, byte[] prefixes, List<Diff> diffs) {
+            this.sessionId = sessionId;
+            this.serial = serial;
+            this.prefixes = prefixes;
+            this.diffs = diffs;
+        }
+
+        byte[] serialNotify(int version) {
+            return serialNotifies.updateAndGet(version, pdu -> pdu != null ? pdu : Pdus.serialNotify(version, sessionId, serial));
+        }
+
+        /**
+         * @return the response to a Reset Query: all prefixes
+         */
+        byte[] resetResponse(int version) {
+            return resetResponses.updateAndGet(version, pdus -> pdus != null ? pdus : response(version, prefixes));
+        }
+
+        /**
+         * @return the response to a Serial Query: the changes since the given serial number, or empty when these
+         * changes are no longer known. Only responses for known serial numbers are cached, so a router cannot grow
+         * the cache by asking for arbitrary serial numbers.
+         */
+        Optional<byte[]> serialResponse(int version, int fromSerial) {
+            int first = firstDiff(fromSerial);
+            if (first < 0) {
+                return Optional.empty();
+            }
+            long key = ((long) version << 32) | Integer.toUnsignedLong(fromSerial);
+            return Optional.of(serialResponses.computeIfAbsent(key, (k) -> response(version, changesSince(first))));
+        }
+
+        /**
+         * @return the index of the first difference since the given serial number, the number of differences when
+         * the serial number is the current one, or -1 when the serial number is not known
+         */
+        private int firstDiff(int fromSerial) {
+            if (fromSerial == serial) {
+                return diffs.size();
+            }
+            for (int i = 0; i < diffs.size(); ++i) {
+                if (diffs.get(i).fromSerial == fromSerial) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private byte[] changesSince(int first) {
+            if (first == diffs.size()) {
+                return new byte[0];
+            }
+            if (first == diffs.size() - 1) {
+                return diffs.get(first).pdus;
+            }
+
+            // Combine the differences, prefixes announced and withdrawn again in later differences cancel out
+            Map<ByteBuffer, byte[]> changes = new HashMap<>();
+            for (Diff diff : diffs.subList(first, diffs.size())) {
+                for (int offset = 0; offset < diff.pdus.length; offset += Pdus.length(diff.pdus, offset)) {
+                    byte[] pdu = new byte[Pdus.length(diff.pdus, offset)];
+                    System.arraycopy(diff.pdus, offset, pdu, 0, pdu.length);
+                    byte[] prefix = pdu.clone();
+                    prefix[Pdus.FLAGS_OFFSET] = 0;
+
+                    ByteBuffer key = ByteBuffer.wrap(prefix);
+                    byte[] previous = changes.get(key);
+                    if (previous != null && previous[Pdus.FLAGS_OFFSET] != pdu[Pdus.FLAGS_OFFSET]) {
+                        changes.remove(key);
+                    } else {
+                        changes.put(key, pdu);
+                    }
+                }
+            }
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            for (byte flags : new byte[]{Pdus.WITHDRAWAL, Pdus.ANNOUNCEMENT}) {
+                changes.values().stream()
+                    .filter(pdu -> pdu[Pdus.FLAGS_OFFSET] == flags)
+                    .forEach(pdu -> result.write(pdu, 0, pdu.length));
+            }
+            return result.toByteArray();
+        }
+
+        private byte[] response(int version, byte[] pdus) {
+            byte[] cacheResponse = Pdus.cacheResponse(version, sessionId);
+            byte[] endOfData = Pdus.endOfData(version, sessionId, serial);
+            return ByteBuffer.allocate(cacheResponse.length + pdus.length + endOfData.length)
+                .put(cacheResponse)
+                .put(Pdus.withVersion(pdus, version))
+                .put(endOfData)
+                .array();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rtr;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Non-blocking RPKI-to-Router (RFC 8210) server. All router sessions are handled by a single thread, which writes
+ * the responses pre-encoded by the {@link RtrCache} and sends a Serial Notify to all routers when the serial number
+ * changes.
+ */
+@Component
+@Slf4j
+public class RtrServer {
+
+    private final RtrCache rtrCache;
+    private final boolean enabled;
+    private final String address;
+    private final int port;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+
+    private volatile RtrCache.State notifyState;
+    private volatile boolean running;
+
+    @Autowired
+    public RtrServer(
+        RtrCache rtrCache,
+        @Value("${rpki.validator.rtr.server.enabled}") boolean enabled,
+        @Value("${rpki.validator.rtr.server.address}") String address,
+        @Value("${rpki.validator.rtr.server.port}") int port
+    ) {
+        this.rtrCache = rtrCache;
+        this.enabled = enabled;
+        this.address = address;
+        this.port = port;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(address, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        rtrCache.addListener(state -> {
+            notifyState = state;
+            selector.wakeup();
+        });
+
+        running = true;
+        thread = new Thread(this::run, "rtr-server");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("RTR server listening on {} port {}", address, getLocalPort());
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (thread != null) {
+            running = false;
+            selector.wakeup();
+            thread.join();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                RtrCache.State state = notifyState;
+                if (state != null) {
+                    notifyState = null;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid() && key.attachment() != null) {
+                            process(key, () -> ((RtrSession) key.attachment()).serialNotify(state));
+                        }
+                    }
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        RtrSession session = (RtrSession) key.attachment();
+                        if (key.isWritable()) {
+                            process(key, session::flush);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            process(key, session::read);
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("RTR server stopped", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((RtrSession) key.attachment()).close();
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Failed to close RTR server", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new RtrSession(key, rtrCache));
+        log.debug("Accepted RTR session with {}", channel.getRemoteAddress());
+    }
+
+    private void process(SelectionKey key, SessionAction action) {
+        try {
+            action.run();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Closing RTR session with {}: {}", ((SocketChannel) key.channel()).socket().getRemoteSocketAddress(), e.toString());
+            ((RtrSession) key.attachment()).close();
+        }
+    }
+
+    @FunctionalInterface
+    private interface SessionAction {
+        void run() throws IOException;
+    }
+}
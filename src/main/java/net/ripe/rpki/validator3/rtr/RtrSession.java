@@ -0,0 +1,203 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rtr;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+
+/**
+ * The connection of a single router. Sessions are only used by the thread of the {@link RtrServer}.
+ */
+@Slf4j
+class RtrSession {
+    private static final int MAX_PDU_LENGTH = 4096;
+
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final SocketAddress remoteAddress;
+    private final RtrCache rtrCache;
+
+    private final ByteBuffer input = ByteBuffer.allocate(MAX_PDU_LENGTH);
+    private final Deque<ByteBuffer> output = new ArrayDeque<>();
+
+    /**
+     * The protocol version used by the router, negotiated by its first query.
+     */
+    private int version = -1;
+    private boolean closing;
+
+    RtrSession(SelectionKey key, RtrCache rtrCache) throws IOException {
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.remoteAddress = channel.getRemoteAddress();
+        this.rtrCache = rtrCache;
+    }
+
+    void read() throws IOException {
+        if (channel.read(input) < 0) {
+            close();
+            return;
+        }
+
+        input.flip();
+        while (!closing && input.remaining() >= Pdus.HEADER_LENGTH) {
+            int type = input.get(input.position() + 1) & 0xff;
+            int length = input.getInt(input.position() + 4);
+            if (length < Pdus.HEADER_LENGTH || length > MAX_PDU_LENGTH) {
+                byte[] header = new byte[Pdus.HEADER_LENGTH];
+                input.get(header);
+                if (type == Pdus.ERROR_REPORT) {
+                    log.warn("Closing RTR session with {} after oversized error report", remoteAddress);
+                    close();
+                } else {
+                    error(Pdus.CORRUPT_DATA, header, "Invalid PDU length " + Integer.toUnsignedLong(length));
+                }
+                break;
+            }
+            if (input.remaining() < length) {
+                break;
+            }
+
+            byte[] pdu = new byte[length];
+            input.get(pdu);
+            handle(pdu);
+        }
+        input.compact();
+        flush();
+    }
+
+    void serialNotify(RtrCache.State state) throws IOException {
+        if (version >= 0 && !closing) {
+            send(state.serialNotify(version));
+            flush();
+        }
+    }
+
+    void flush() throws IOException {
+        while (!output.isEmpty()) {
+            ByteBuffer buffer = output.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                key.interestOps(closing ? SelectionKey.OP_WRITE : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            output.remove();
+        }
+
+        if (closing) {
+            close();
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    void close() {
+        try {
+            key.cancel();
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close RTR session with {}", remoteAddress, e);
+        }
+    }
+
+    private void handle(byte[] pdu) {
+        ByteBuffer buffer = ByteBuffer.wrap(pdu);
+        int pduVersion = pdu[0] & 0xff;
+        int type = pdu[1] & 0xff;
+
+        if (type == Pdus.ERROR_REPORT) {
+            log.warn("Closing RTR session with {} after error report with code {}", remoteAddress, buffer.getShort(2));
+            closing = true;
+            return;
+        }
+        if (version < 0 && pduVersion > Pdus.HIGHEST_VERSION) {
+            version = Pdus.HIGHEST_VERSION;
+            error(Pdus.UNSUPPORTED_PROTOCOL_VERSION, pdu, "Unsupported protocol version " + pduVersion);
+            return;
+        }
+        if (version >= 0 && pduVersion != version) {
+            error(Pdus.UNEXPECTED_PROTOCOL_VERSION, pdu, "Unexpected protocol version " + pduVersion + ", negotiated " + version);
+            return;
+        }
+
+        switch (type) {
+            case Pdus.SERIAL_QUERY:
+                if (pdu.length != Pdus.SERIAL_QUERY_LENGTH) {
+                    error(Pdus.CORRUPT_DATA, pdu, "Invalid Serial Query length");
+                    return;
+                }
+                version = pduVersion;
+                RtrCache.State state = rtrCache.getState();
+                Optional<byte[]> response = buffer.getShort(2) == state.getSessionId()
+                    ? state.serialResponse(version, buffer.getInt(8))
+                    : Optional.empty();
+                send(response.orElseGet(() -> Pdus.cacheReset(version)));
+                break;
+            case Pdus.RESET_QUERY:
+                if (pdu.length != Pdus.RESET_QUERY_LENGTH) {
+                    error(Pdus.CORRUPT_DATA, pdu, "Invalid Reset Query length");
+                    return;
+                }
+                version = pduVersion;
+                send(rtrCache.getState().resetResponse(version));
+                break;
+            case Pdus.SERIAL_NOTIFY:
+            case Pdus.CACHE_RESPONSE:
+            case Pdus.IPV4_PREFIX:
+            case Pdus.IPV6_PREFIX:
+            case Pdus.END_OF_DATA:
+            case Pdus.CACHE_RESET:
+            case Pdus.ROUTER_KEY:
+                error(Pdus.INVALID_REQUEST, pdu, "Unexpected PDU type " + type);
+                break;
+            default:
+                error(Pdus.UNSUPPORTED_PDU_TYPE, pdu, "Unsupported PDU type " + type);
+        }
+    }
+
+    private void error(int errorCode, byte[] pdu, String text) {
+        log.warn("Closing RTR session with {}: {}", remoteAddress, text);
+        send(Pdus.errorReport(version < 0 ? Pdus.HIGHEST_VERSION : version, errorCode, pdu, text));
+        closing = true;
+    }
+
+    private void send(byte[] pdus) {
+        output.add(ByteBuffer.wrap(pdus));
+    }
+}
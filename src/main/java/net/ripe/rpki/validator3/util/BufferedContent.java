@@ -0,0 +1,110 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Downloaded content that is kept either on the heap or, when it is too large, in a temporary file.
+ * The content can be re-read any number of times until the buffer is closed, which removes the temporary file.
+ */
+public class BufferedContent implements Closeable {
+
+    private final byte[] bytes;
+    private final File file;
+    private final long size;
+    private final byte[] sha256;
+
+    private BufferedContent(byte[] bytes, File file, long size, byte[] sha256) {
+        this.bytes = bytes;
+        this.file = file;
+        this.size = size;
+        this.sha256 = sha256;
+    }
+
+    public static BufferedContent of(byte[] bytes) {
+        return new BufferedContent(bytes, null, bytes.length, Sha256.hash(bytes));
+    }
+
+    static BufferedContent inMemory(byte[] bytes, byte[] sha256) {
+        return new BufferedContent(bytes, null, bytes.length, sha256);
+    }
+
+    static BufferedContent inFile(File file, long size, byte[] sha256) {
+        return new BufferedContent(null, file, size, sha256);
+    }
+
+    public boolean isFileBacked() {
+        return file != null;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public byte[] getSha256() {
+        return sha256.clone();
+    }
+
+    public InputStream openStream() throws IOException {
+        if (file != null) {
+            return new BufferedInputStream(new FileInputStream(file));
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * Read-only view of the content, memory mapped when the content is stored in a file.
+     */
+    public ByteBuffer asByteBuffer() throws IOException {
+        if (file != null) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null && file.exists() && !file.delete()) {
+            throw new IOException("could not delete temporary file " + file);
+        }
+    }
+}
@@ -29,20 +29,21 @@
  */
 package net.ripe.rpki.validator3.util;
 
-import org.bouncycastle.crypto.Digest;
-import org.bouncycastle.crypto.digests.SHA256Digest;
-
-import java.io.*;
-import java.util.Arrays;
-import java.util.List;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
+/**
+ * Uses the SHA-256 implementation of the JDK, which HotSpot accelerates with the SHA instructions of the CPU where
+ * available.
+ */
 public class Sha256 {
     public static byte[] hash(byte[] data) {
-        try (ByteArrayInputStream in = new ByteArrayInputStream(data)) {
-            return hash(in);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return newDigest().digest(data);
     }
 
     public static byte[] hash(File targetFile) throws IOException {
@@ -52,7 +53,7 @@ public class Sha256 {
     }
 
     public static byte[] hash(InputStream in) throws IOException {
-        Digest digest = new SHA256Digest();
+        MessageDigest digest = newDigest();
         byte[] data = new byte[8192];
 
         int len;
@@ -60,10 +61,14 @@ public class Sha256 {
             digest.update(data, 0, len);
         }
 
-        byte[] result = new byte[digest.getDigestSize()];
-        digest.doFinal(result, 0);
-
-        return result;
+        return digest.digest();
     }
 
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required to be supported by every Java platform", e);
+        }
+    }
 }
@@ -0,0 +1,171 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps SHA-256 hashes to entity identifiers using open addressing with linear probing. Keys and values are
+ * stored in primitive arrays, so an entry costs five longs instead of the several objects a {@link java.util.HashMap}
+ * entry with a boxed value needs. All methods are synchronized.
+ */
+public class Sha256IdIndex {
+
+    public static final long NOT_FOUND = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    // Four longs of the hash per slot, an unused slot has an id of NOT_FOUND
+    private long[] keys;
+    private long[] ids;
+    private int size;
+
+    public Sha256IdIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long get(Sha256Key key) {
+        final int slot = find(key);
+        return slot < 0 ? NOT_FOUND : ids[slot];
+    }
+
+    public synchronized void put(Sha256Key key, long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("id must not be negative: " + id);
+        }
+        if (size + 1 > ids.length * MAX_LOAD_FACTOR) {
+            resize(ids.length * 2);
+        }
+        int slot = slot(key);
+        while (ids[slot] != NOT_FOUND) {
+            if (matches(slot, key)) {
+                ids[slot] = id;
+                return;
+            }
+            slot = next(slot);
+        }
+        store(slot, key, id);
+        ++size;
+    }
+
+    /**
+     * Removes the entry for the key, but only when it still maps to the given id.
+     */
+    public synchronized void remove(Sha256Key key, long id) {
+        int slot = find(key);
+        if (slot < 0 || ids[slot] != id) {
+            return;
+        }
+        ids[slot] = NOT_FOUND;
+        --size;
+
+        // Move later entries of the same probe sequence into the freed slot, so lookups do not stop early
+        int free = slot;
+        int current = next(slot);
+        while (ids[current] != NOT_FOUND) {
+            final int home = slot(keys, current);
+            if ((current > free && (home <= free || home > current)) || (current < free && home <= free && home > current)) {
+                System.arraycopy(keys, current * 4, keys, free * 4, 4);
+                ids[free] = ids[current];
+                ids[current] = NOT_FOUND;
+                free = current;
+            }
+            current = next(current);
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(ids, NOT_FOUND);
+        size = 0;
+    }
+
+    private int find(Sha256Key key) {
+        int slot = slot(key);
+        while (ids[slot] != NOT_FOUND) {
+            if (matches(slot, key)) {
+                return slot;
+            }
+            slot = next(slot);
+        }
+        return -1;
+    }
+
+    private boolean matches(int slot, Sha256Key key) {
+        final int offset = slot * 4;
+        return keys[offset] == key.word(0) && keys[offset + 1] == key.word(1) && keys[offset + 2] == key.word(2) && keys[offset + 3] == key.word(3);
+    }
+
+    private void store(int slot, Sha256Key key, long id) {
+        final int offset = slot * 4;
+        for (int i = 0; i < 4; ++i) {
+            keys[offset + i] = key.word(i);
+        }
+        ids[slot] = id;
+    }
+
+    private int slot(Sha256Key key) {
+        return (key.hashCode() & Integer.MAX_VALUE) & (ids.length - 1);
+    }
+
+    private int slot(long[] keys, int slot) {
+        return slot(new Sha256Key(keys[slot * 4], keys[slot * 4 + 1], keys[slot * 4 + 2], keys[slot * 4 + 3]));
+    }
+
+    private int next(int slot) {
+        return (slot + 1) & (ids.length - 1);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 4];
+        ids = new long[capacity];
+        Arrays.fill(ids, NOT_FOUND);
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = keys;
+        final long[] oldIds = ids;
+        allocate(capacity);
+        for (int i = 0; i < oldIds.length; ++i) {
+            if (oldIds[i] != NOT_FOUND) {
+                final Sha256Key key = new Sha256Key(oldKeys[i * 4], oldKeys[i * 4 + 1], oldKeys[i * 4 + 2], oldKeys[i * 4 + 3]);
+                int slot = slot(key);
+                while (ids[slot] != NOT_FOUND) {
+                    slot = next(slot);
+                }
+                store(slot, key, oldIds[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable SHA-256 hash stored as four longs, for use as a key in maps and sets. Unlike a {@code byte[]} it has
+ * value based equality, and unlike the hex formatted hash it does not need an extra allocation for the characters.
+ * Keys are ordered the same way as the unsigned bytes of the hash.
+ */
+public final class Sha256Key implements Comparable<Sha256Key> {
+
+    public static final int LENGTH = 32;
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    Sha256Key(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    public static Sha256Key of(byte[] sha256) {
+        if (sha256 == null || sha256.length != LENGTH) {
+            throw new IllegalArgumentException("SHA-256 hash must be " + LENGTH + " bytes");
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(sha256);
+        return new Sha256Key(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    public static Sha256Key hash(byte[] content) {
+        return of(Sha256.hash(content));
+    }
+
+    long word(int i) {
+        switch (i) {
+            case 0: return w0;
+            case 1: return w1;
+            case 2: return w2;
+            case 3: return w3;
+            default: throw new IndexOutOfBoundsException(String.valueOf(i));
+        }
+    }
+
+    public byte[] toByteArray() {
+        return ByteBuffer.allocate(LENGTH).putLong(w0).putLong(w1).putLong(w2).putLong(w3).array();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Sha256Key)) return false;
+        final Sha256Key that = (Sha256Key) o;
+        return w0 == that.w0 && w1 == that.w1 && w2 == that.w2 && w3 == that.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        // The bits of a cryptographic hash are already uniformly distributed
+        return (int) (w0 ^ (w0 >>> 32));
+    }
+
+    @Override
+    public int compareTo(Sha256Key that) {
+        int result = Long.compareUnsigned(w0, that.w0);
+        if (result == 0) result = Long.compareUnsigned(w1, that.w1);
+        if (result == 0) result = Long.compareUnsigned(w2, that.w2);
+        if (result == 0) result = Long.compareUnsigned(w3, that.w3);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return Hex.format(toByteArray());
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Collects content on the heap until it grows beyond the threshold, after which everything is moved to a
+ * temporary file in the given directory. The SHA-256 of the content is computed while it is written.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    private static final String TEMPORARY_FILE_PREFIX = "download-";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    private final long threshold;
+    private final File directory;
+    private final MessageDigest digest = Sha256.newDigest();
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    private File file;
+    private OutputStream out = memory;
+    private long size;
+    private boolean closed;
+
+    public SpillingOutputStream(long threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        if (file == null && size + len > threshold) {
+            spill();
+        }
+        out.write(b, off, len);
+        digest.update(b, off, len);
+        size += len;
+    }
+
+    private void spill() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create directory " + directory);
+        }
+        file = File.createTempFile(TEMPORARY_FILE_PREFIX, TEMPORARY_FILE_SUFFIX, directory);
+        out = new BufferedOutputStream(new FileOutputStream(file));
+        memory.writeTo(out);
+        memory = null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Closes the stream and hands over the written content. The caller becomes responsible for closing the
+     * returned content, which removes the temporary file if the content did not fit in memory.
+     */
+    public BufferedContent toContent() throws IOException {
+        close();
+        final byte[] hash = digest.digest();
+        return file == null ? BufferedContent.inMemory(memory.toByteArray(), hash) : BufferedContent.inFile(file, size, hash);
+    }
+
+    /**
+     * Closes the stream and removes the temporary file, if any, without handing over the content.
+     */
+    public void discard() {
+        try {
+            close();
+        } catch (IOException ignored) {
+            // We are throwing the content away anyway
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Removes the temporary files that were left in the directory, for example when the process was killed
+     * during a download. Must only be called when no streams are writing to the directory.
+     *
+     * @return the number of removed files
+     */
+    public static int removeTemporaryFiles(File directory) {
+        final File[] files = directory.listFiles((dir, name) -> name.startsWith(TEMPORARY_FILE_PREFIX) && name.endsWith(TEMPORARY_FILE_SUFFIX));
+        if (files == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (File file : files) {
+            if (file.delete()) {
+                ++removed;
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,36 @@
+--
+-- The BSD License
+--
+-- Copyright (c) 2010-2018 RIPE NCC
+-- All rights reserved.
+--
+-- Redistribution and use in source and binary forms, with or without
+-- modification, are permitted provided that the following conditions are met:
+--   - Redistributions of source code must retain the above copyright notice,
+--     this list of conditions and the following disclaimer.
+--   - Redistributions in binary form must reproduce the above copyright notice,
+--     this list of conditions and the following disclaimer in the documentation
+--     and/or other materials provided with the distribution.
+--   - Neither the name of the RIPE NCC nor the names of its contributors may be
+--     used to endorse or promote products derived from this software without
+--     specific prior written permission.
+--
+-- THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+-- AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+-- IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+-- ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+-- LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+-- CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+-- SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+-- INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+-- CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+-- ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+-- POSSIBILITY OF SUCH DAMAGE.
+--
+-- Summary of the decoded object, so the API does not need to decode objects again
+ALTER TABLE rpki_object ADD COLUMN subject_key_identifier BINARY(32);
+ALTER TABLE rpki_object ADD COLUMN subject VARCHAR;
+ALTER TABLE rpki_object ADD COLUMN not_valid_before TIMESTAMP;
+ALTER TABLE rpki_object ADD COLUMN not_valid_after TIMESTAMP;
+ALTER TABLE rpki_object ADD COLUMN resources VARCHAR;
+ALTER TABLE rpki_object ADD COLUMN subject_information_access VARCHAR;
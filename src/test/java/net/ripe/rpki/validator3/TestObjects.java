@@ -29,9 +29,39 @@
  */
 package net.ripe.rpki.validator3;
 
+import net.ripe.ipresource.Asn;
+import net.ripe.ipresource.IpRange;
+import net.ripe.ipresource.IpResourceSet;
+import net.ripe.ipresource.IpResourceType;
+import net.ripe.rpki.commons.crypto.ValidityPeriod;
+import net.ripe.rpki.commons.crypto.cms.ghostbuster.GhostbustersCms;
+import net.ripe.rpki.commons.crypto.cms.ghostbuster.GhostbustersCmsBuilder;
+import net.ripe.rpki.commons.crypto.cms.roa.RoaCms;
+import net.ripe.rpki.commons.crypto.cms.roa.RoaCmsBuilder;
+import net.ripe.rpki.commons.crypto.cms.roa.RoaPrefix;
+import net.ripe.rpki.commons.crypto.crl.X509Crl;
+import net.ripe.rpki.commons.crypto.crl.X509CrlBuilder;
+import net.ripe.rpki.commons.crypto.util.KeyPairFactory;
+import net.ripe.rpki.commons.crypto.x509cert.X509ResourceCertificate;
+import net.ripe.rpki.commons.crypto.x509cert.X509ResourceCertificateBuilder;
 import net.ripe.rpki.validator3.domain.TrustAnchor;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
 
+import javax.security.auth.x500.X500Principal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class TestObjects {
 
@@ -44,4 +74,71 @@ public class TestObjects {
         trustAnchor.setSubjectPublicKeyInfo(RIPE_NCC_TRUST_ANCHOR_SUBJECT_PUBLIC_KEY_INFO);
         return trustAnchor;
     }
+
+    /**
+     * @return a self-signed ROA for the given prefixes, which is parseable but does not validate
+     */
+    public static RoaCms newRoa(long asn, String... prefixes) {
+        KeyPair keyPair = newKeyPair();
+        IpResourceSet resources = new IpResourceSet();
+        Arrays.stream(prefixes).forEach(prefix -> resources.add(IpRange.parse(prefix)));
+        return new RoaCmsBuilder()
+            .withAsn(new Asn(asn))
+            .withPrefixes(Arrays.stream(prefixes).map(prefix -> new RoaPrefix(IpRange.parse(prefix))).collect(Collectors.toList()))
+            .withCertificate(newEeCertificate(keyPair, "CN=AS" + asn + ", CN=roa", builder -> builder.withResources(resources)))
+            .withSignatureProvider(BouncyCastleProvider.PROVIDER_NAME)
+            .build(keyPair.getPrivate());
+    }
+
+    /**
+     * @return a self-signed Ghostbusters record, which is parseable but does not validate
+     */
+    public static GhostbustersCms newGhostbustersRecord(String vCard) {
+        KeyPair keyPair = newKeyPair();
+        return new GhostbustersCmsBuilder()
+            .withVCardPayload(vCard)
+            .withCertificate(newEeCertificate(keyPair, "CN=gbr", builder -> builder.withInheritedResourceTypes(EnumSet.allOf(IpResourceType.class))))
+            .withSignatureProvider(BouncyCastleProvider.PROVIDER_NAME)
+            .build(keyPair.getPrivate());
+    }
+
+    /**
+     * @return the given number of different CRLs, which are parseable but do not validate
+     */
+    public static List<X509Crl> newCrls(int count) {
+        KeyPair keyPair = newKeyPair();
+        DateTime now = DateTime.now();
+        List<X509Crl> result = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            result.add(new X509CrlBuilder()
+                .withIssuerDN(new X500Principal("CN=test"))
+                .withAuthorityKeyIdentifier(keyPair.getPublic())
+                .withThisUpdateTime(now)
+                .withNextUpdateTime(now.plusDays(1))
+                .withNumber(BigInteger.valueOf(i + 1))
+                .withSignatureProvider(BouncyCastleProvider.PROVIDER_NAME)
+                .build(keyPair.getPrivate()));
+        }
+        return result;
+    }
+
+    private static KeyPair newKeyPair() {
+        Security.addProvider(new BouncyCastleProvider());
+        return new KeyPairFactory(BouncyCastleProvider.PROVIDER_NAME).generate();
+    }
+
+    private static X509ResourceCertificate newEeCertificate(KeyPair keyPair, String subject, Consumer<X509ResourceCertificateBuilder> resources) {
+        X509ResourceCertificateBuilder builder = new X509ResourceCertificateBuilder()
+            .withIssuerDN(new X500Principal("CN=test"))
+            .withSubjectDN(new X500Principal(subject))
+            .withValidityPeriod(new ValidityPeriod(Instant.now(), Instant.now().plus(Duration.standardDays(1))))
+            .withPublicKey(keyPair.getPublic())
+            .withSigningKeyPair(keyPair)
+            .withCa(false)
+            .withKeyUsage(KeyUsage.digitalSignature)
+            .withSerial(BigInteger.ONE)
+            .withCrlDistributionPoints(URI.create("rsync://rpki.test/test.crl"));
+        resources.accept(builder);
+        return builder.build();
+    }
 }
@@ -0,0 +1,199 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.adapter.jpa;
+
+import net.ripe.rpki.validator3.Validator3Application;
+import net.ripe.rpki.validator3.domain.RpkiObject;
+import net.ripe.rpki.validator3.domain.RpkiObjects;
+import net.ripe.rpki.validator3.util.Sha256Key;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Compares looking up all objects of a snapshot of a large publication point with
+ * {@link RpkiObjects#findBySha256In(java.util.Collection)} to looking up every object with
+ * {@link RpkiObjects#findBySha256(byte[])}. Half of the hashes are of stored objects, the other half are new.
+ * <p>
+ * Every operation is the lookup of the complete snapshot, so the score is the wall time of one lookup. The main
+ * method also reports the number of SQL statements executed per lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JPARpkiObjectsLookupBenchmark {
+
+    static final int OBJECTS = 100_000;
+
+    /**
+     * Well above the identifiers Hibernate generates, so the application can still store objects.
+     */
+    private static final long FIRST_ID = 1_000_000_000L;
+
+    private ConfigurableApplicationContext context;
+    private TransactionTemplate transactionTemplate;
+    private RpkiObjects rpkiObjects;
+    private Statistics statistics;
+    private List<byte[]> hashes;
+
+    @Setup
+    public void setUp() throws SQLException {
+        context = new SpringApplicationBuilder(Validator3Application.class)
+            .profiles("test")
+            .properties("server.port=0", "spring.jpa.properties.hibernate.generate_statistics=true")
+            .run();
+        rpkiObjects = context.getBean(RpkiObjects.class);
+        statistics = context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class).getStatistics();
+        transactionTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        // Read-only, so Hibernate does not dirty check the loaded objects before every query
+        transactionTemplate.setReadOnly(true);
+
+        final Random random = new Random(42);
+        hashes = new ArrayList<>(OBJECTS);
+        for (int i = 0; i < OBJECTS; ++i) {
+            final byte[] sha256 = new byte[32];
+            random.nextBytes(sha256);
+            hashes.add(sha256);
+        }
+        store(context.getBean(DataSource.class), hashes.subList(0, OBJECTS / 2), random);
+    }
+
+    /**
+     * The objects are inserted directly, before anything loads the SHA-256 index.
+     */
+    private static void store(DataSource dataSource, List<byte[]> sha256s, Random random) throws SQLException {
+        final Timestamp now = new Timestamp(System.currentTimeMillis());
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                 "INSERT INTO rpki_object (id, version, created_at, updated_at, type, sha256, encoded) VALUES (?, 0, ?, ?, 'ROA', ?, ?)"
+             )) {
+            connection.setAutoCommit(false);
+            for (int i = 0; i < sha256s.size(); ++i) {
+                final byte[] encoded = new byte[2048];
+                random.nextBytes(encoded);
+                statement.setLong(1, FIRST_ID + i);
+                statement.setTimestamp(2, now);
+                statement.setTimestamp(3, now);
+                statement.setBytes(4, sha256s.get(i));
+                statement.setBytes(5, encoded);
+                statement.addBatch();
+                if (i % 1000 == 999) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+            connection.commit();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int findBySha256In() {
+        return inTransaction(() -> {
+            final Map<Sha256Key, RpkiObject> objects = rpkiObjects.findBySha256In(hashes);
+            return objects.size();
+        });
+    }
+
+    @Benchmark
+    public int findBySha256() {
+        return inTransaction(() -> {
+            int found = 0;
+            for (byte[] sha256 : hashes) {
+                if (rpkiObjects.findBySha256(sha256).isPresent()) {
+                    ++found;
+                }
+            }
+            return found;
+        });
+    }
+
+    private int inTransaction(Supplier<Integer> lookup) {
+        return transactionTemplate.execute(status -> lookup.get());
+    }
+
+    private long countStatements(Supplier<Integer> lookup) {
+        final long before = statistics.getPrepareStatementCount();
+        lookup.get();
+        return statistics.getPrepareStatementCount() - before;
+    }
+
+    public static void main(String[] args) throws RunnerException, SQLException {
+        final JPARpkiObjectsLookupBenchmark benchmark = new JPARpkiObjectsLookupBenchmark();
+        benchmark.setUp();
+        try {
+            // The first lookup loads the SHA-256 index, so it is not counted
+            benchmark.findBySha256In();
+            System.out.printf("findBySha256In: %d statements per lookup of %d hashes%n", benchmark.countStatements(benchmark::findBySha256In), OBJECTS);
+            System.out.printf("findBySha256: %d statements per lookup of %d hashes%n", benchmark.countStatements(benchmark::findBySha256), OBJECTS);
+        } finally {
+            benchmark.tearDown();
+        }
+
+        new Runner(new OptionsBuilder().include(JPARpkiObjectsLookupBenchmark.class.getSimpleName()).build()).run();
+    }
+}
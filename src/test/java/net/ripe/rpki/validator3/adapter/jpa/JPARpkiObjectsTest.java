@@ -0,0 +1,238 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.adapter.jpa;
+
+import net.ripe.rpki.commons.crypto.util.CertificateRepositoryObjectFactory;
+import net.ripe.rpki.commons.validation.ValidationResult;
+import net.ripe.rpki.validator3.IntegrationTest;
+import net.ripe.rpki.validator3.TestObjects;
+import net.ripe.rpki.validator3.domain.CertificateTreeValidationRun;
+import net.ripe.rpki.validator3.domain.RoaPrefix;
+import net.ripe.rpki.validator3.domain.RpkiObject;
+import net.ripe.rpki.validator3.domain.RpkiObjectFilter;
+import net.ripe.rpki.validator3.domain.RpkiObjects;
+import net.ripe.rpki.validator3.domain.TrustAnchor;
+import net.ripe.rpki.validator3.domain.TrustAnchors;
+import net.ripe.rpki.validator3.domain.ValidationRuns;
+import net.ripe.rpki.validator3.rrdp.Objects;
+import net.ripe.rpki.validator3.util.Sha256;
+import net.ripe.rpki.validator3.util.Sha256Key;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Transactional;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringRunner.class)
+@IntegrationTest
+@Transactional
+public class JPARpkiObjectsTest {
+
+    @Autowired
+    private RpkiObjects subject;
+
+    @Autowired
+    private TrustAnchors trustAnchors;
+
+    @Autowired
+    private ValidationRuns validationRuns;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Test
+    public void should_find_objects_by_sha256_in_multiple_chunks() {
+        final RpkiObject crl = newRpkiObject("rsync://host/path/crl.crl", Objects.aParseableCrl());
+        final RpkiObject certificate = newRpkiObject("rsync://host/path/cert.cer", Objects.aParseableCertificate());
+        subject.add(crl);
+        subject.add(certificate);
+
+        final List<byte[]> hashes = new ArrayList<>();
+        hashes.add(crl.getSha256());
+        for (int i = 0; i < 1200; ++i) {
+            hashes.add(Sha256.hash(ByteBuffer.allocate(4).putInt(i).array()));
+        }
+        hashes.add(certificate.getSha256());
+
+        final Map<Sha256Key, RpkiObject> found = subject.findBySha256In(hashes);
+
+        assertThat(found).hasSize(2);
+        assertThat(found.get(Sha256Key.of(crl.getSha256()))).isEqualTo(crl);
+        assertThat(found.get(Sha256Key.of(certificate.getSha256()))).isEqualTo(certificate);
+    }
+
+    @Test
+    public void should_find_currently_validated_objects_ordered_by_location() {
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        trustAnchors.add(trustAnchor);
+        final RpkiObject certificate = newRpkiObject("rsync://host/a/cert.cer", Objects.aParseableCertificate());
+        final RpkiObject crl = newRpkiObject("rsync://host/b/crl.crl", Objects.aParseableCrl());
+        final RpkiObject manifest = newRpkiObject("rsync://other/manifest.mft", Objects.aValidManifest());
+        subject.add(certificate);
+        subject.add(crl);
+        subject.add(manifest);
+
+        final CertificateTreeValidationRun validationRun = new CertificateTreeValidationRun(trustAnchor);
+        validationRun.getValidatedObjects().addAll(Arrays.asList(manifest, crl, certificate));
+        validationRun.setSucceeded();
+        validationRuns.add(validationRun);
+        entityManager.flush();
+
+        final List<Pair<String, RpkiObject>> firstPage = find(RpkiObjectFilter.builder().limit(2));
+        assertThat(firstPage).extracting(Pair::getLeft).containsExactly("rsync://host/a/cert.cer", "rsync://host/b/crl.crl");
+
+        final Pair<String, RpkiObject> last = firstPage.get(1);
+        assertThat(find(RpkiObjectFilter.builder().afterLocation(last.getLeft()).afterId(last.getRight().getId()).limit(2)))
+            .extracting(pair -> pair.getRight().getId()).containsExactly(manifest.getId());
+
+        assertThat(find(RpkiObjectFilter.builder().locationPrefix("rsync://host/").type(RpkiObject.Type.CRL).limit(10)))
+            .extracting(pair -> pair.getRight().getId()).containsExactly(crl.getId());
+        assertThat(find(RpkiObjectFilter.builder().trustAnchorId(trustAnchor.getId() + 1).limit(10))).isEmpty();
+    }
+
+    @Test
+    public void should_load_roa_prefixes_of_detached_currently_validated_objects() {
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        trustAnchors.add(trustAnchor);
+        final RpkiObject roa = new RpkiObject("rsync://host/path/AS3333.roa", TestObjects.newRoa(3333, "10.0.0.0/8", "2001:db8::/32"));
+        subject.add(roa);
+
+        final CertificateTreeValidationRun validationRun = new CertificateTreeValidationRun(trustAnchor);
+        validationRun.getValidatedObjects().add(roa);
+        validationRun.setSucceeded();
+        validationRuns.add(validationRun);
+        entityManager.flush();
+        entityManager.clear();
+
+        final List<Pair<String, RpkiObject>> found = find(RpkiObjectFilter.builder().type(RpkiObject.Type.ROA).limit(10));
+
+        assertThat(found).hasSize(1);
+        assertThat(entityManager.contains(found.get(0).getRight())).isFalse();
+        assertThat(found.get(0).getRight().getRoaPrefixes()).extracting(RoaPrefix::getPrefix)
+            .containsExactly("10.0.0.0/8", "2001:db8::/32");
+    }
+
+    @Test
+    public void should_store_object_summary() {
+        final RpkiObject certificate = newRpkiObject("rsync://host/path/cert.cer", Objects.aParseableCertificate());
+        final RpkiObject manifest = newRpkiObject("rsync://host/path/manifest.mft", Objects.aValidManifest());
+        subject.add(certificate);
+        subject.add(manifest);
+        entityManager.flush();
+        entityManager.clear();
+
+        final RpkiObject storedCertificate = subject.get(certificate.getId());
+        assertThat(storedCertificate.hasSummary()).isTrue();
+        assertThat(storedCertificate.getSubject()).isEqualTo(certificate.getSubject());
+        assertThat(storedCertificate.getSubjectKeyIdentifier()).isEqualTo(certificate.getSubjectKeyIdentifier());
+        assertThat(storedCertificate.getNotValidAfter()).isEqualTo(certificate.getNotValidAfter());
+        assertThat(storedCertificate.getResources()).isEqualTo(certificate.getResources()).isNotEmpty();
+        assertThat(storedCertificate.getSubjectInformationAccess()).isEqualTo(certificate.getSubjectInformationAccess());
+
+        final RpkiObject storedManifest = subject.get(manifest.getId());
+        assertThat(storedManifest.hasSummary()).isTrue();
+        assertThat(storedManifest.getSubject()).isEqualTo(manifest.getSubject()).isNotEmpty();
+        assertThat(storedManifest.getNotValidAfter()).isEqualTo(manifest.getNotValidAfter());
+    }
+
+    @Test
+    public void should_remove_unreferenced_objects_without_locations() {
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        trustAnchors.add(trustAnchor);
+        final RpkiObject withdrawn = newRpkiObject("rsync://host/path/crl.crl", Objects.aParseableCrl());
+        final RpkiObject validated = newRpkiObject("rsync://host/path/cert.cer", Objects.aParseableCertificate());
+        final RpkiObject published = newRpkiObject("rsync://host/path/manifest.mft", Objects.aValidManifest());
+        subject.add(withdrawn);
+        subject.add(validated);
+        subject.add(published);
+
+        final CertificateTreeValidationRun validationRun = new CertificateTreeValidationRun(trustAnchor);
+        validationRun.getValidatedObjects().add(validated);
+        validationRun.setSucceeded();
+        validationRuns.add(validationRun);
+        subject.updateLocations(
+            Arrays.asList(Pair.of(withdrawn.getId(), "rsync://host/path/crl.crl"), Pair.of(validated.getId(), "rsync://host/path/cert.cer")),
+            Collections.emptyList()
+        );
+
+        assertThat(subject.removeUnreferenced(10)).isEqualTo(1);
+        assertThat(subject.removeUnreferenced(10)).isEqualTo(0);
+
+        entityManager.clear();
+        assertThat(subject.findIdsBySha256In(Arrays.asList(withdrawn.getSha256(), validated.getSha256(), published.getSha256())).values())
+            .containsExactlyInAnyOrder(validated.getId(), published.getId());
+    }
+
+    @Test
+    public void should_add_each_location_only_once() {
+        final RpkiObject crl = newRpkiObject("rsync://host/a/crl.crl", Objects.aParseableCrl());
+        subject.add(crl);
+
+        subject.updateLocations(Collections.emptyList(), Arrays.asList(
+            Pair.of(crl.getId(), "rsync://host/a/crl.crl"),
+            Pair.of(crl.getId(), "rsync://host/b/crl.crl"),
+            Pair.of(crl.getId(), "rsync://host/b/crl.crl")
+        ));
+        entityManager.clear();
+
+        final RpkiObject stored = subject.get(crl.getId());
+        assertThat(stored.getLocations()).containsExactly("rsync://host/a/crl.crl", "rsync://host/b/crl.crl");
+
+        // Objects published in multiple repositories have multiple locations, they must still validate when updated
+        stored.getLocations().add("rsync://host/c/crl.crl");
+        entityManager.flush();
+        entityManager.clear();
+        assertThat(subject.get(crl.getId()).getLocations()).hasSize(3);
+    }
+
+    private List<Pair<String, RpkiObject>> find(RpkiObjectFilter.RpkiObjectFilterBuilder filter) {
+        try (Stream<Pair<String, RpkiObject>> objects = subject.findCurrentlyValidated(filter.build())) {
+            return objects.collect(Collectors.toList());
+        }
+    }
+
+    private static RpkiObject newRpkiObject(String uri, byte[] content) {
+        final ValidationResult validationResult = ValidationResult.withLocation(uri);
+        return new RpkiObject(uri, CertificateRepositoryObjectFactory.createCertificateRepositoryObject(content, validationResult));
+    }
+}
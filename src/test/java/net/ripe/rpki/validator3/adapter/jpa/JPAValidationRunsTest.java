@@ -0,0 +1,109 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.adapter.jpa;
+
+import net.ripe.rpki.validator3.IntegrationTest;
+import net.ripe.rpki.validator3.TestObjects;
+import net.ripe.rpki.validator3.domain.CertificateTreeValidationRun;
+import net.ripe.rpki.validator3.domain.RsyncRepositoryValidationRun;
+import net.ripe.rpki.validator3.domain.TrustAnchor;
+import net.ripe.rpki.validator3.domain.TrustAnchors;
+import net.ripe.rpki.validator3.domain.ValidationRun;
+import net.ripe.rpki.validator3.domain.ValidationRuns;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Transactional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringRunner.class)
+@IntegrationTest
+@Transactional
+public class JPAValidationRunsTest {
+
+    @Autowired
+    private ValidationRuns subject;
+
+    @Autowired
+    private TrustAnchors trustAnchors;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Test
+    public void should_remove_old_validation_runs_per_type() {
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        trustAnchors.add(trustAnchor);
+
+        final ValidationRun latestSuccessful = addCertificateTreeValidationRun(trustAnchor, true);
+        final ValidationRun old = addCertificateTreeValidationRun(trustAnchor, false);
+        final ValidationRun kept1 = addCertificateTreeValidationRun(trustAnchor, false);
+        final ValidationRun kept2 = addCertificateTreeValidationRun(trustAnchor, false);
+
+        final RsyncRepositoryValidationRun oldRsync = new RsyncRepositoryValidationRun();
+        oldRsync.setSucceeded();
+        subject.add(oldRsync);
+        final RsyncRepositoryValidationRun keptRsync1 = new RsyncRepositoryValidationRun();
+        keptRsync1.setSucceeded();
+        subject.add(keptRsync1);
+        final RsyncRepositoryValidationRun keptRsync2 = new RsyncRepositoryValidationRun();
+        subject.add(keptRsync2);
+        entityManager.flush();
+
+        // Other tests may have left validation runs behind, so only the runs of this test are checked exactly
+        assertThat(subject.removeOldValidationRuns(2, 1)).isEqualTo(1);
+        while (subject.removeOldValidationRuns(2, 10) > 0) {
+            // Remove all remaining old validation runs
+        }
+
+        entityManager.clear();
+        assertThat(subject.findAll(CertificateTreeValidationRun.class)).extracting(ValidationRun::getId)
+            .contains(latestSuccessful.getId(), kept1.getId(), kept2.getId())
+            .doesNotContain(old.getId());
+        assertThat(subject.findAll(RsyncRepositoryValidationRun.class)).extracting(ValidationRun::getId)
+            .contains(keptRsync1.getId(), keptRsync2.getId())
+            .doesNotContain(oldRsync.getId());
+    }
+
+    private ValidationRun addCertificateTreeValidationRun(TrustAnchor trustAnchor, boolean succeeded) {
+        final CertificateTreeValidationRun validationRun = new CertificateTreeValidationRun(trustAnchor);
+        if (succeeded) {
+            validationRun.setSucceeded();
+        } else {
+            validationRun.setFailed();
+        }
+        subject.add(validationRun);
+        return validationRun;
+    }
+}
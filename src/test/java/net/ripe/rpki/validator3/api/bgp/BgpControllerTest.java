@@ -0,0 +1,100 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.api.bgp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.ripe.rpki.validator3.IntegrationTest;
+import net.ripe.rpki.validator3.api.Api;
+import net.ripe.rpki.validator3.api.ApiCommand;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.util.Arrays;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@RunWith(SpringRunner.class)
+@IntegrationTest
+public class BgpControllerTest {
+
+    private MockMvc mvc;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        mvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+    }
+
+    @Test
+    public void should_validate_route() throws Exception {
+        mvc.perform(get("/bgp/validity").param("asn", "AS3333").param("prefix", "193.0.0.0/21").accept(Api.API_MIME_TYPE))
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.data.route.originAsn").value(3333))
+            .andExpect(jsonPath("$.data.route.prefix").value("193.0.0.0/21"))
+            .andExpect(jsonPath("$.data.validity").value("NOT_FOUND"));
+    }
+
+    @Test
+    public void should_validate_routes_in_bulk() throws Exception {
+        mvc.perform(
+            post("/bgp/validity")
+                .accept(Api.API_MIME_TYPE)
+                .contentType(Api.API_MIME_TYPE)
+                .content(objectMapper.writeValueAsString(ApiCommand.of(Arrays.asList(
+                    BgpRoute.builder().asn("3333").prefix("193.0.0.0/21").build(),
+                    BgpRoute.builder().asn("AS64512").prefix("2001:db8::/32").build()
+                ))))
+        )
+            .andExpect(status().isOk())
+            .andExpect(jsonPath("$.data.length()").value(2))
+            .andExpect(jsonPath("$.data[1].route.originAsn").value(64512))
+            .andExpect(jsonPath("$.data[1].validity").value("NOT_FOUND"));
+    }
+
+    @Test
+    public void should_reject_invalid_prefix() throws Exception {
+        mvc.perform(get("/bgp/validity").param("asn", "AS3333").param("prefix", "193.0.0.1/21").accept(Api.API_MIME_TYPE))
+            .andExpect(status().isBadRequest())
+            .andExpect(jsonPath("$.errors[0].detail").value("Invalid prefix: 193.0.0.1/21"));
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.api.roas;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import net.ripe.rpki.validator3.IntegrationTest;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixes;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import java.io.ByteArrayInputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.startsWith;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@RunWith(SpringRunner.class)
+@IntegrationTest
+public class ExportsControllerTest {
+
+    private MockMvc mvc;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private ValidatedRoaPrefixes validatedRoaPrefixes;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Before
+    public void setUp() {
+        mvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+    }
+
+    @Test
+    public void should_not_return_content_when_entity_tag_matches() throws Exception {
+        MvcResult result = mvc.perform(get("/export.csv"))
+            .andExpect(status().isOk())
+            .andExpect(header().exists(HttpHeaders.ETAG))
+            .andExpect(header().exists(ExportsController.EXPORT_SERIAL_HEADER))
+            .andExpect(content().string(startsWith("\"ASN\",\"IP Prefix\",\"Max Length\",\"Trust Anchor\"")))
+            .andReturn();
+
+        String entityTag = result.getResponse().getHeader(HttpHeaders.ETAG);
+        mvc.perform(get("/export.csv").header(HttpHeaders.IF_NONE_MATCH, "\"other\", " + entityTag))
+            .andExpect(status().isNotModified())
+            .andExpect(header().string(HttpHeaders.ETAG, entityTag))
+            .andExpect(content().bytes(new byte[0]));
+    }
+
+    @Test
+    public void should_compress_content_when_accepted() throws Exception {
+        byte[] plain = mvc.perform(get("/export.json"))
+            .andExpect(status().isOk())
+            .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+            .andExpect(jsonPath("$.roa").isArray())
+            .andReturn().getResponse().getContentAsByteArray();
+
+        MvcResult result = mvc.perform(get("/export.json").header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.5"))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+            .andReturn();
+
+        byte[] compressed = result.getResponse().getContentAsByteArray();
+        assertThat(ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed)))).isEqualTo(plain);
+
+        mvc.perform(get("/export.json").header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0"))
+            .andExpect(status().isOk())
+            .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING));
+    }
+
+    @Test
+    public void should_continue_serials_after_restart() throws Exception {
+        long serial = Long.parseLong(mvc.perform(get("/export.json")).andReturn().getResponse().getHeader(ExportsController.EXPORT_SERIAL_HEADER));
+        Thread.sleep(2);
+
+        // A new instance renders the exports like the application after a restart
+        Exports restarted = new Exports(validatedRoaPrefixes, objectMapper);
+        assertThat(restarted.getJson().getSerial()).isGreaterThan(serial);
+    }
+}
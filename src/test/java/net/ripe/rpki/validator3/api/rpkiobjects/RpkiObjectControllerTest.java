@@ -0,0 +1,154 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.api.rpkiobjects;
+
+import com.jayway.jsonpath.JsonPath;
+import net.ripe.rpki.commons.crypto.util.CertificateRepositoryObjectFactory;
+import net.ripe.rpki.commons.validation.ValidationResult;
+import net.ripe.rpki.validator3.IntegrationTest;
+import net.ripe.rpki.validator3.TestObjects;
+import net.ripe.rpki.validator3.domain.CertificateTreeValidationRun;
+import net.ripe.rpki.validator3.domain.RpkiObject;
+import net.ripe.rpki.validator3.domain.RpkiObjects;
+import net.ripe.rpki.validator3.domain.TrustAnchor;
+import net.ripe.rpki.validator3.domain.TrustAnchors;
+import net.ripe.rpki.validator3.domain.ValidationRuns;
+import net.ripe.rpki.validator3.rrdp.Objects;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import javax.persistence.EntityManager;
+import javax.transaction.Transactional;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(SpringRunner.class)
+@IntegrationTest
+@Transactional
+public class RpkiObjectControllerTest {
+
+    private MockMvc mvc;
+
+    @Autowired
+    private WebApplicationContext webApplicationContext;
+
+    @Autowired
+    private RpkiObjects rpkiObjects;
+
+    @Autowired
+    private TrustAnchors trustAnchors;
+
+    @Autowired
+    private ValidationRuns validationRuns;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Before
+    public void setUp() {
+        mvc = MockMvcBuilders.webAppContextSetup(webApplicationContext).build();
+    }
+
+    @Test
+    public void should_list_validated_objects_of_every_type_page_by_page() throws Exception {
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        trustAnchors.add(trustAnchor);
+        final RpkiObject certificate = newRpkiObject("rsync://host/a/cert.cer", Objects.aParseableCertificate());
+        final RpkiObject crl = newRpkiObject("rsync://host/a/crl.crl", Objects.aParseableCrl());
+        final RpkiObject manifest = newRpkiObject("rsync://host/b/manifest.mft", Objects.aValidManifest());
+        final RpkiObject roa = new RpkiObject("rsync://host/b/AS3333.roa", TestObjects.newRoa(3333, "10.0.0.0/8", "2001:db8::/32"));
+        final RpkiObject gbr = new RpkiObject("rsync://host/c/contact.gbr", TestObjects.newGhostbustersRecord("BEGIN:VCARD\r\nVERSION:4.0\r\nFN:Test\r\nEND:VCARD\r\n"));
+        final List<RpkiObject> objects = Arrays.asList(certificate, crl, manifest, roa, gbr);
+        objects.forEach(rpkiObjects::add);
+
+        final CertificateTreeValidationRun validationRun = new CertificateTreeValidationRun(trustAnchor);
+        validationRun.getValidatedObjects().addAll(objects);
+        validationRun.setSucceeded();
+        validationRuns.add(validationRun);
+        // Withdrawn objects are still listed while they are validated
+        rpkiObjects.updateLocations(Collections.singletonList(Pair.of(crl.getId(), "rsync://host/a/crl.crl")), Collections.emptyList());
+        entityManager.flush();
+        entityManager.clear();
+
+        final List<String> uris = new ArrayList<>();
+        final List<String> types = new ArrayList<>();
+        final List<String> asns = new ArrayList<>();
+        String page = "/rpki-objects/?limit=2";
+        int pages = 0;
+        while (page != null) {
+            final String content = mvc.perform(get(page))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.data").isArray())
+                .andReturn().getResponse().getContentAsString();
+            uris.addAll(JsonPath.read(content, "$.data[*].uri"));
+            types.addAll(JsonPath.read(content, "$.data[*].type"));
+            asns.addAll(JsonPath.read(content, "$.data[*].asn"));
+            final List<String> next = JsonPath.read(content, "$..links.next");
+            page = next.isEmpty() ? null : next.get(0);
+            ++pages;
+        }
+
+        assertThat(pages).isEqualTo(3);
+        assertThat(uris).containsExactly(
+            "unknown.crl",
+            "rsync://host/a/cert.cer",
+            "rsync://host/b/AS3333.roa",
+            "rsync://host/b/manifest.mft",
+            "rsync://host/c/contact.gbr"
+        );
+        assertThat(types).hasSize(5);
+        assertThat(asns).containsExactly("AS3333");
+    }
+
+    @Test
+    public void should_reject_invalid_cursor() throws Exception {
+        mvc.perform(get("/rpki-objects/?after=invalid"))
+            .andExpect(status().isBadRequest());
+    }
+
+    private static RpkiObject newRpkiObject(String uri, byte[] content) {
+        final ValidationResult validationResult = ValidationResult.withLocation(uri);
+        return new RpkiObject(uri, CertificateRepositoryObjectFactory.createCertificateRepositoryObject(content, validationResult));
+    }
+}
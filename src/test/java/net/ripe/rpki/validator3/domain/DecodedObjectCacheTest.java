@@ -0,0 +1,78 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.ripe.rpki.commons.crypto.CertificateRepositoryObject;
+import net.ripe.rpki.commons.crypto.crl.X509Crl;
+import net.ripe.rpki.commons.crypto.util.CertificateRepositoryObjectFactory;
+import net.ripe.rpki.commons.crypto.x509cert.X509ResourceCertificate;
+import net.ripe.rpki.commons.validation.ValidationResult;
+import net.ripe.rpki.validator3.rrdp.Objects;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DecodedObjectCacheTest {
+
+    private final DecodedObjectCache subject = new DecodedObjectCache(1024 * 1024, new SimpleMeterRegistry());
+
+    @Test
+    public void should_parse_object_once() {
+        RpkiObject crl = newRpkiObject("rsync://host/path/crl.crl", Objects.aParseableCrl());
+
+        ValidationResult validationResult = ValidationResult.withLocation("rsync://host/path/crl.crl");
+        Optional<X509Crl> first = subject.get(crl, X509Crl.class, validationResult);
+        Optional<X509Crl> second = subject.get(crl, X509Crl.class, validationResult);
+
+        assertThat(validationResult.hasFailures()).isFalse();
+        assertThat(first).isPresent();
+        assertThat(second.get()).isSameAs(first.get());
+    }
+
+    @Test
+    public void should_reject_object_of_unexpected_type() {
+        RpkiObject crl = newRpkiObject("rsync://host/path/crl.crl", Objects.aParseableCrl());
+
+        ValidationResult validationResult = ValidationResult.withLocation("rsync://host/path/crl.crl");
+        Optional<X509ResourceCertificate> certificate = subject.get(crl, X509ResourceCertificate.class, validationResult);
+
+        assertThat(certificate).isEmpty();
+        assertThat(validationResult.getFailuresForCurrentLocation()).extracting("key").containsExactly("rpki.object.type.matches");
+    }
+
+    private static RpkiObject newRpkiObject(String uri, byte[] content) {
+        ValidationResult validationResult = ValidationResult.withLocation(uri);
+        CertificateRepositoryObject object = CertificateRepositoryObjectFactory.createCertificateRepositoryObject(content, validationResult);
+        return new RpkiObject(uri, object);
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import net.ripe.ipresource.IpRange;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ValidatedRoaPrefixSetTest {
+
+    private static final ValidatedRoaPrefix IPV4 = new ValidatedRoaPrefix(64512, IpRange.parse("10.0.0.0/8"), 24, "ta-1");
+    private static final ValidatedRoaPrefix IPV4_WITHOUT_MAXIMUM_LENGTH = new ValidatedRoaPrefix(64512, IpRange.parse("10.0.0.0/8"), null, "ta-1");
+    private static final ValidatedRoaPrefix IPV6 = new ValidatedRoaPrefix(4294967295L, IpRange.parse("ffff:8000::/17"), 128, "ta-1");
+    private static final ValidatedRoaPrefix IPV4_OTHER_TRUST_ANCHOR = new ValidatedRoaPrefix(64512, IpRange.parse("255.255.255.0/24"), 32, "ta-2");
+
+    @Test
+    public void should_store_prefixes_without_loss() {
+        List<ValidatedRoaPrefix> prefixes = Arrays.asList(IPV4_OTHER_TRUST_ANCHOR, IPV6, IPV4, IPV4_WITHOUT_MAXIMUM_LENGTH);
+
+        ValidatedRoaPrefixSet subject = ValidatedRoaPrefixSet.of(prefixes);
+
+        assertThat(subject.stream().collect(toList())).containsExactly(IPV4_WITHOUT_MAXIMUM_LENGTH, IPV4, IPV6, IPV4_OTHER_TRUST_ANCHOR);
+        assertThat(subject.get(0).getEffectiveMaximumLength()).isEqualTo(8);
+    }
+
+    @Test
+    public void should_remove_duplicates() {
+        ValidatedRoaPrefixSet first = ValidatedRoaPrefixSet.of(Arrays.asList(IPV4, IPV6, IPV4));
+        ValidatedRoaPrefixSet second = ValidatedRoaPrefixSet.of(Arrays.asList(IPV6, IPV4_OTHER_TRUST_ANCHOR));
+
+        assertThat(first.size()).isEqualTo(2);
+        assertThat(ValidatedRoaPrefixSet.union(Arrays.asList(first, second)).stream().collect(toList()))
+            .containsExactly(IPV4, IPV6, IPV4_OTHER_TRUST_ANCHOR);
+    }
+}
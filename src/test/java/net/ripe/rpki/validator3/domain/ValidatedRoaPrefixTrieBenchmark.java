@@ -0,0 +1,127 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import net.ripe.ipresource.IpRange;
+import net.ripe.ipresource.Ipv4Address;
+import net.ripe.ipresource.Ipv6Address;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures route origin validation lookups per second against a trie with about as many validated ROA prefixes as
+ * the global RPKI. Half of the routes are covered by a validated ROA prefix, the other half are random.
+ * <p>
+ * Run using {@code mvn test-compile exec:java -Dexec.mainClass=net.ripe.rpki.validator3.domain.ValidatedRoaPrefixTrieBenchmark -Dexec.classpathScope=test}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidatedRoaPrefixTrieBenchmark {
+
+    private static final int ROUTES = 1 << 16;
+
+    @Param({"50000"})
+    public int prefixCount;
+
+    private ValidatedRoaPrefixTrie trie;
+    private long[] asns;
+    private IpRange[] routes;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        List<ValidatedRoaPrefix> prefixes = new ArrayList<>();
+        for (int i = 0; i < prefixCount; ++i) {
+            IpRange prefix = i % 4 == 0 ? randomIpv6Prefix(random) : randomIpv4Prefix(random);
+            prefixes.add(new ValidatedRoaPrefix(1 + random.nextInt(60000), prefix, random.nextBoolean() ? null : prefix.getPrefixLength() + random.nextInt(4), "ta"));
+        }
+        trie = ValidatedRoaPrefixTrie.of(ValidatedRoaPrefixSet.of(prefixes));
+
+        asns = new long[ROUTES];
+        routes = new IpRange[ROUTES];
+        for (int i = 0; i < ROUTES; ++i) {
+            if (random.nextBoolean()) {
+                ValidatedRoaPrefix prefix = prefixes.get(random.nextInt(prefixes.size()));
+                asns[i] = random.nextBoolean() ? prefix.getAsn() : 1 + random.nextInt(60000);
+                routes[i] = prefix.getPrefix();
+            } else {
+                asns[i] = 1 + random.nextInt(60000);
+                routes[i] = random.nextInt(4) == 0 ? randomIpv6Prefix(random) : randomIpv4Prefix(random);
+            }
+        }
+    }
+
+    @Benchmark
+    public RouteValidity validate() {
+        int i = next++ & (ROUTES - 1);
+        return trie.validate(asns[i], routes[i]);
+    }
+
+    /**
+     * Like in the global RPKI most prefixes are long, and only a few short prefixes cover many others.
+     */
+    private static IpRange randomIpv4Prefix(Random random) {
+        int length = 24 - Math.min(random.nextInt(17), random.nextInt(17));
+        return IpRange.prefix(new Ipv4Address(random.nextInt() & 0xffffffffL & (0xffffffffL << (32 - length))), length);
+    }
+
+    private static IpRange randomIpv6Prefix(Random random) {
+        int length = 48 - Math.min(random.nextInt(30), random.nextInt(30));
+        long high = 0x2000000000000000L | (random.nextLong() & 0x0fffffffffffffffL & (-1L << (64 - length)));
+        return IpRange.prefix(new Ipv6Address(BigInteger.valueOf(high).shiftLeft(64)), length);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ValidatedRoaPrefixTrieBenchmark.class.getSimpleName()).build()).run();
+    }
+}
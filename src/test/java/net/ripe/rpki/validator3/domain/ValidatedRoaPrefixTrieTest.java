@@ -0,0 +1,161 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain;
+
+import net.ripe.ipresource.IpRange;
+import net.ripe.ipresource.Ipv4Address;
+import net.ripe.ipresource.Ipv6Address;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ValidatedRoaPrefixTrieTest {
+
+    private static final ValidatedRoaPrefix COVERING = new ValidatedRoaPrefix(64512, IpRange.parse("10.0.0.0/8"), 16, "ta");
+    private static final ValidatedRoaPrefix MORE_SPECIFIC = new ValidatedRoaPrefix(64513, IpRange.parse("10.1.0.0/16"), null, "ta");
+    private static final ValidatedRoaPrefix AS0 = new ValidatedRoaPrefix(0, IpRange.parse("192.168.0.0/16"), 24, "ta");
+    private static final ValidatedRoaPrefix IPV6 = new ValidatedRoaPrefix(64512, IpRange.parse("2001:db8::/32"), 48, "other-ta");
+
+    private final ValidatedRoaPrefixTrie subject = ValidatedRoaPrefixTrie.of(ValidatedRoaPrefixSet.of(Arrays.asList(COVERING, MORE_SPECIFIC, AS0, IPV6)));
+
+    @Test
+    public void should_validate_route_origins() {
+        RouteValidity valid = subject.validate(64513, IpRange.parse("10.1.0.0/16"));
+        assertThat(valid.getValidity()).isEqualTo(RouteValidity.Validity.VALID);
+        assertThat(valid.getMatched()).containsExactly(new ValidatedRoaPrefix(64513, IpRange.parse("10.1.0.0/16"), 16, "ta"));
+        assertThat(valid.getUnmatchedAsn()).containsExactly(COVERING);
+
+        RouteValidity tooSpecific = subject.validate(64512, IpRange.parse("10.1.2.0/24"));
+        assertThat(tooSpecific.getValidity()).isEqualTo(RouteValidity.Validity.INVALID);
+        assertThat(tooSpecific.getUnmatchedLength()).containsExactly(COVERING);
+
+        assertThat(subject.validate(0, IpRange.parse("192.168.1.0/24")).getValidity()).isEqualTo(RouteValidity.Validity.INVALID);
+        assertThat(subject.validate(64512, IpRange.parse("2001:db8:1::/48")).getValidity()).isEqualTo(RouteValidity.Validity.VALID);
+        assertThat(subject.validate(64512, IpRange.parse("0.0.0.0/0")).getValidity()).isEqualTo(RouteValidity.Validity.NOT_FOUND);
+        assertThat(subject.validate(64512, IpRange.parse("11.0.0.0/8")).getValidity()).isEqualTo(RouteValidity.Validity.NOT_FOUND);
+        assertThat(subject.validate(64512, IpRange.parse("2001:db9::/32")).getValidity()).isEqualTo(RouteValidity.Validity.NOT_FOUND);
+    }
+
+    @Test
+    public void should_update_to_same_result_as_rebuilding() {
+        Random random = new Random(42);
+        ValidatedRoaPrefixSet previous = randomPrefixes(random);
+        ValidatedRoaPrefixTrie trie = ValidatedRoaPrefixTrie.of(previous);
+
+        for (int i = 0; i < 10; ++i) {
+            ValidatedRoaPrefixSet current = randomPrefixes(random);
+            trie = trie.update(previous, current);
+            ValidatedRoaPrefixTrie rebuilt = ValidatedRoaPrefixTrie.of(current);
+
+            for (int j = 0; j < 1000; ++j) {
+                long asn = randomAsn(random);
+                IpRange route = random.nextBoolean() ? randomIpv4Prefix(random) : randomIpv6Prefix(random);
+                RouteValidity expected = validate(current, asn, route);
+                assertSameValidity(trie.validate(asn, route), expected);
+                assertSameValidity(rebuilt.validate(asn, route), expected);
+            }
+            previous = current;
+        }
+
+        assertThat(trie.update(previous, ValidatedRoaPrefixSet.EMPTY).validate(64512, IpRange.parse("10.0.0.0/8")).getValidity())
+            .isEqualTo(RouteValidity.Validity.NOT_FOUND);
+    }
+
+    /**
+     * Reference implementation of RFC 6811 section 2 that checks every validated ROA prefix.
+     */
+    private static RouteValidity validate(ValidatedRoaPrefixSet prefixes, long asn, IpRange route) {
+        List<ValidatedRoaPrefix> matched = new ArrayList<>();
+        List<ValidatedRoaPrefix> unmatchedAsn = new ArrayList<>();
+        List<ValidatedRoaPrefix> unmatchedLength = new ArrayList<>();
+        prefixes.stream()
+            .filter(prefix -> prefix.getPrefix().getType() == route.getType() && prefix.getPrefix().contains(route))
+            // The trie returns the effective maximum length of prefixes without a maximum length
+            .map(prefix -> new ValidatedRoaPrefix(prefix.getAsn(), prefix.getPrefix(), prefix.getEffectiveMaximumLength(), prefix.getTrustAnchor()))
+            .forEach(prefix -> {
+                if (prefix.getAsn() != asn || asn == 0) {
+                    unmatchedAsn.add(prefix);
+                } else if (prefix.getEffectiveMaximumLength() < route.getPrefixLength()) {
+                    unmatchedLength.add(prefix);
+                } else {
+                    matched.add(prefix);
+                }
+            });
+
+        RouteValidity.Validity validity = !matched.isEmpty() ? RouteValidity.Validity.VALID
+            : !unmatchedAsn.isEmpty() || !unmatchedLength.isEmpty() ? RouteValidity.Validity.INVALID
+            : RouteValidity.Validity.NOT_FOUND;
+        return new RouteValidity(validity, matched, unmatchedAsn, unmatchedLength);
+    }
+
+    private static void assertSameValidity(RouteValidity actual, RouteValidity expected) {
+        assertThat(actual.getValidity()).isEqualTo(expected.getValidity());
+        assertThat(actual.getMatched()).containsExactlyInAnyOrderElementsOf(expected.getMatched());
+        assertThat(actual.getUnmatchedAsn()).containsExactlyInAnyOrderElementsOf(expected.getUnmatchedAsn());
+        assertThat(actual.getUnmatchedLength()).containsExactlyInAnyOrderElementsOf(expected.getUnmatchedLength());
+    }
+
+    private static ValidatedRoaPrefixSet randomPrefixes(Random random) {
+        List<ValidatedRoaPrefix> prefixes = new ArrayList<>();
+        for (int i = 0; i < 400; ++i) {
+            IpRange prefix = i % 2 == 0 ? randomIpv4Prefix(random) : randomIpv6Prefix(random);
+            int maximumLength = Math.min(prefix.getPrefixLength() + random.nextInt(4), prefix.getType().getBitSize());
+            prefixes.add(new ValidatedRoaPrefix(randomAsn(random), prefix, random.nextBoolean() ? null : maximumLength, random.nextBoolean() ? "ta" : "other-ta"));
+        }
+        return ValidatedRoaPrefixSet.of(prefixes);
+    }
+
+    private static long randomAsn(Random random) {
+        // AS 0 never matches, but its prefixes still make routes invalid
+        return random.nextInt(8) == 0 ? 0 : 64512 + random.nextInt(4);
+    }
+
+    private static IpRange randomIpv4Prefix(Random random) {
+        // Few distinct high order bits, so prefixes nest and share branches
+        int length = 8 + random.nextInt(25);
+        long address = (10L << 24 | random.nextInt(4) << 16 | random.nextInt(4) << 8 | random.nextInt(2)) & (0xffffffffL << (32 - length));
+        return IpRange.prefix(new Ipv4Address(address), length);
+    }
+
+    private static IpRange randomIpv6Prefix(Random random) {
+        // Prefixes longer than 64 bits use both halves of the trie keys
+        int length = 24 + random.nextInt(105);
+        BigInteger address = BigInteger.valueOf(0x20010db8L << 32 | (long) random.nextInt(4) << 24 | random.nextInt(4) << 8).shiftLeft(64)
+            .or(BigInteger.valueOf((long) random.nextInt(4) << 56 | random.nextInt(2)));
+        BigInteger mask = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE.shiftLeft(128 - length));
+        return IpRange.prefix(new Ipv6Address(address.and(mask)), length);
+    }
+}
@@ -52,7 +52,9 @@ import net.ripe.rpki.commons.crypto.x509cert.X509ResourceCertificate;
 import net.ripe.rpki.commons.crypto.x509cert.X509ResourceCertificateBuilder;
 import net.ripe.rpki.commons.validation.ValidationResult;
 import net.ripe.rpki.validator3.IntegrationTest;
+import net.ripe.rpki.validator3.domain.AuthorityChangeLog;
 import net.ripe.rpki.validator3.domain.CertificateTreeValidationRun;
+import net.ripe.rpki.validator3.domain.DecodedObjectCache;
 import net.ripe.rpki.validator3.domain.RoaPrefix;
 import net.ripe.rpki.validator3.domain.RpkiObject;
 import net.ripe.rpki.validator3.domain.RpkiObjects;
@@ -60,8 +62,11 @@ import net.ripe.rpki.validator3.domain.RpkiRepositories;
 import net.ripe.rpki.validator3.domain.RpkiRepository;
 import net.ripe.rpki.validator3.domain.TrustAnchor;
 import net.ripe.rpki.validator3.domain.TrustAnchors;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixes;
+import net.ripe.rpki.validator3.domain.ValidationCheck;
 import net.ripe.rpki.validator3.domain.ValidationRuns;
 import org.apache.commons.lang3.tuple.Pair;
+import org.assertj.core.groups.Tuple;
 import org.bouncycastle.asn1.x509.KeyUsage;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.joda.time.DateTime;
@@ -84,6 +89,7 @@ import java.security.PublicKey;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.function.Consumer;
@@ -92,6 +98,7 @@ import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
 import static net.ripe.rpki.validator3.domain.ValidationRun.Status.SUCCEEDED;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 
 @RunWith(SpringRunner.class)
 @IntegrationTest
@@ -135,6 +142,15 @@ public class CertificateTreeValidationServiceTest {
     @Autowired
     private RpkiObjects rpkiObjects;
 
+    @Autowired
+    private DecodedObjectCache decodedObjectCache;
+
+    @Autowired
+    private AuthorityChangeLog authorityChangeLog;
+
+    @Autowired
+    private ValidatedRoaPrefixes validatedRoaPrefixes;
+
     @BeforeClass
     public static void add_security_provider() {
         Security.addProvider(new BouncyCastleProvider());
@@ -276,6 +292,135 @@ public class CertificateTreeValidationServiceTest {
         assertThat(validatedRoas.get(0).getRight().getRoaPrefixes()).hasSize(1);
     }
 
+    @Test
+    public void should_produce_same_result_as_sequential_validation() {
+        List<CertificateAuthority> children = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            String name = "child-ca-" + i;
+            CertificateAuthority grandchild = CertificateAuthority.builder()
+                .dn("CN=grandchild-ca-" + i)
+                .keyPair(KEY_PAIR_FACTORY.generate())
+                .certificateLocation("rsync://rpki.test/CN=" + name + "/CN=grandchild-ca-" + i + ".cer")
+                .resources(IpResourceSet.parse("10." + i + ".0.0/24"))
+                .notifyURI(TA_RRDP_NOTIFY_URI)
+                .manifestURI("rsync://rpki.test/CN=grandchild-ca-" + i + "/grandchild-ca.mft")
+                .repositoryURI("rsync://rpki.test/CN=grandchild-ca-" + i + "/")
+                .crlDistributionPoint("rsync://rpki.test/CN=grandchild-ca-" + i + "/grandchild-ca.crl")
+                .roaPrefixes(Arrays.asList(
+                    RoaPrefix.of(IpRange.prefix(IpAddress.parse("10." + i + ".0.0"), 24), 24, Asn.parse("6451" + i))
+                ))
+                .build();
+            children.add(CertificateAuthority.builder()
+                .dn("CN=" + name)
+                .keyPair(KEY_PAIR_FACTORY.generate())
+                .certificateLocation("rsync://rpki.test/CN=" + name + ".cer")
+                .resources(IpResourceSet.parse("10." + i + ".0.0/16"))
+                .notifyURI(i == 3 ? "https://pending.rpki.test/notification.xml" : TA_RRDP_NOTIFY_URI)
+                .manifestURI("rsync://rpki.test/CN=" + name + "/child-ca.mft")
+                .repositoryURI("rsync://rpki.test/CN=" + name + "/")
+                .crlDistributionPoint("rsync://rpki.test/CN=" + name + "/child-ca.crl")
+                .children(Arrays.asList(grandchild))
+                .roaPrefixes(Arrays.asList(
+                    RoaPrefix.of(IpRange.prefix(IpAddress.parse("10." + i + ".128.0"), 17), 24, Asn.parse("6450" + i))
+                ))
+                .build());
+        }
+        TrustAnchor ta = createTrustAnchor(x -> x.children(children));
+        trustAnchors.add(ta);
+        RpkiRepository repository = rpkiRepositories.register(ta, TA_RRDP_NOTIFY_URI, RpkiRepository.Type.RRDP);
+        repository.setDownloaded();
+        entityManager.flush();
+
+        CertificateTreeValidationService sequential = new CertificateTreeValidationService(entityManager, trustAnchors, rpkiObjects, rpkiRepositories, validationRuns, decodedObjectCache, authorityChangeLog, validatedRoaPrefixes, 1);
+        try {
+            sequential.validate(ta.getId());
+        } finally {
+            sequential.shutdown();
+        }
+        entityManager.flush();
+
+        subject.validate(ta.getId());
+        entityManager.flush();
+
+        List<CertificateTreeValidationRun> completed = validationRuns.findAll(CertificateTreeValidationRun.class);
+        assertThat(completed).hasSize(2);
+
+        CertificateTreeValidationRun expected = completed.get(0);
+        CertificateTreeValidationRun actual = completed.get(1);
+        assertThat(expected.getValidatedObjects()).hasSize(27);
+        assertThat(expected.getValidationChecks()).extracting(ValidationCheck::getKey).containsExactly("rpki.repository.pending");
+
+        assertThat(actual.getStatus()).isEqualTo(expected.getStatus());
+        assertThat(actual.getValidatedObjects()).containsExactlyInAnyOrder(expected.getValidatedObjects().toArray(new RpkiObject[0]));
+        assertThat(actual.getValidationChecks())
+            .extracting(ValidationCheck::getLocation, ValidationCheck::getStatus, ValidationCheck::getKey, ValidationCheck::getParameters)
+            .containsExactlyInAnyOrder(expected.getValidationChecks().stream()
+                .map(c -> tuple(c.getLocation(), c.getStatus(), c.getKey(), c.getParameters()))
+                .toArray(Tuple[]::new));
+    }
+
+    @Test
+    public void should_only_revalidate_changed_certificate_authorities() {
+        List<CertificateAuthority> children = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            String name = "child-ca-" + i;
+            children.add(CertificateAuthority.builder()
+                .dn("CN=" + name)
+                .keyPair(KEY_PAIR_FACTORY.generate())
+                .certificateLocation("rsync://rpki.test/CN=" + name + ".cer")
+                .resources(IpResourceSet.parse("10." + i + ".0.0/16"))
+                .notifyURI(TA_RRDP_NOTIFY_URI)
+                .manifestURI("rsync://rpki.test/CN=" + name + "/child-ca.mft")
+                .repositoryURI("rsync://rpki.test/CN=" + name + "/")
+                .crlDistributionPoint("rsync://rpki.test/CN=" + name + "/child-ca.crl")
+                .roaPrefixes(Arrays.asList(
+                    RoaPrefix.of(IpRange.prefix(IpAddress.parse("10." + i + ".0.0"), 16), 24, Asn.parse("6450" + i))
+                ))
+                .build());
+        }
+        TrustAnchor ta = createTrustAnchor(x -> x.children(children));
+        trustAnchors.add(ta);
+        RpkiRepository repository = rpkiRepositories.register(ta, TA_RRDP_NOTIFY_URI, RpkiRepository.Type.RRDP);
+        repository.setDownloaded();
+        entityManager.flush();
+
+        subject.validate(ta.getId());
+        subject.validateIncrementally(ta.getId());
+
+        // Publish a new manifest, CRL and ROA for both children, but only record the change of the second child.
+        // Changes are normally recorded on commit, which never happens in this test.
+        createCertificateAuthority(children.get(0), children.get(0));
+        X509ResourceCertificate reissued = createCertificateAuthority(children.get(1), children.get(1));
+        authorityChangeLog.changed(reissued.getSubjectKeyIdentifier());
+        entityManager.flush();
+
+        subject.validateIncrementally(ta.getId());
+        subject.validate(ta.getId());
+        entityManager.flush();
+
+        List<CertificateTreeValidationRun> completed = validationRuns.findAll(CertificateTreeValidationRun.class);
+        completed.sort(Comparator.comparing(CertificateTreeValidationRun::getId));
+        assertThat(completed).hasSize(4);
+
+        List<Long> initial = validatedObjectIds(completed.get(0));
+        assertThat(initial).hasSize(2 + 2 + 2 * 3);
+        assertThat(validatedObjectIds(completed.get(1))).containsExactlyInAnyOrder(initial.toArray(new Long[0]));
+
+        List<Long> incremental = validatedObjectIds(completed.get(2));
+        List<Long> full = validatedObjectIds(completed.get(3));
+        assertThat(full).hasSameSizeAs(initial);
+        assertThat(full.stream().filter(id -> !initial.contains(id)).collect(toList())).hasSize(2 * 3);
+        assertThat(incremental).hasSameSizeAs(initial);
+        assertThat(incremental.stream().filter(id -> !initial.contains(id)).collect(toList()))
+            .hasSize(3)
+            .isSubsetOf(full);
+        assertThat(completed).extracting(CertificateTreeValidationRun::getValidationChecks).allMatch(List::isEmpty);
+    }
+
+    private static List<Long> validatedObjectIds(CertificateTreeValidationRun validationRun) {
+        return validationRun.getValidatedObjects().stream().map(RpkiObject::getId).sorted().collect(toList());
+    }
+
     private TrustAnchor createTrustAnchor(Consumer<CertificateAuthority.CertificateAuthorityBuilder> configure) {
         KeyPair rootKeyPair = KEY_PAIR_FACTORY.generate();
         CertificateAuthority.CertificateAuthorityBuilder builder = CertificateAuthority.builder()
@@ -0,0 +1,224 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.domain.validation;
+
+import net.ripe.rpki.commons.crypto.util.CertificateRepositoryObjectFactory;
+import net.ripe.rpki.commons.validation.ValidationResult;
+import net.ripe.rpki.validator3.IntegrationTest;
+import net.ripe.rpki.validator3.TestObjects;
+import net.ripe.rpki.validator3.domain.RpkiObject;
+import net.ripe.rpki.validator3.domain.RpkiObjects;
+import net.ripe.rpki.validator3.domain.RpkiRepositories;
+import net.ripe.rpki.validator3.domain.RpkiRepository;
+import net.ripe.rpki.validator3.domain.RsyncRepositoryValidationRun;
+import net.ripe.rpki.validator3.domain.TrustAnchor;
+import net.ripe.rpki.validator3.domain.TrustAnchors;
+import net.ripe.rpki.validator3.domain.ValidationCheck;
+import net.ripe.rpki.validator3.domain.ValidationRuns;
+import net.ripe.rpki.validator3.rrdp.Objects;
+import net.ripe.rpki.validator3.rsync.RsyncFetcher;
+import net.ripe.rpki.validator3.util.Sha256;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.transaction.Transactional;
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringRunner.class)
+@IntegrationTest
+@Transactional
+public class RpkiRepositoryValidationServiceTest {
+
+    private static final String REPOSITORY_URI = "rsync://rpki.test/repository/";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Autowired
+    private RpkiRepositoryValidationService subject;
+
+    @Autowired
+    private TrustAnchors trustAnchors;
+
+    @Autowired
+    private RpkiRepositories rpkiRepositories;
+
+    @Autowired
+    private RpkiObjects rpkiObjects;
+
+    @Autowired
+    private ValidationRuns validationRuns;
+
+    private RpkiRepository repository;
+
+    @Before
+    public void setUp() {
+        TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        trustAnchors.add(trustAnchor);
+        repository = rpkiRepositories.register(trustAnchor, REPOSITORY_URI, RpkiRepository.Type.RSYNC);
+    }
+
+    @Test
+    public void should_only_store_new_and_modified_files() throws Exception {
+        File directory = temporaryFolder.getRoot();
+        File certificate = new File(directory, "cert.cer");
+        Files.write(certificate.toPath(), Objects.aParseableCertificate());
+        Files.write(new File(directory, "crl.crl").toPath(), Objects.aParseableCrl());
+
+        assertThat(storeObjects().getAddedObjectCount()).isEqualTo(2);
+
+        // Content modified without changing the size or last modified time is not noticed
+        FileTime lastModified = Files.getLastModifiedTime(certificate.toPath());
+        byte[] modified = Objects.aParseableCertificate();
+        modified[modified.length - 1] ^= 1;
+        Files.write(certificate.toPath(), modified);
+        Files.setLastModifiedTime(certificate.toPath(), lastModified);
+
+        RsyncRepositoryValidationRun unmodifiedRun = storeObjects();
+        assertThat(unmodifiedRun.getAddedObjectCount()).isEqualTo(0);
+        assertThat(unmodifiedRun.getValidationChecks()).isEmpty();
+
+        Files.setLastModifiedTime(certificate.toPath(), FileTime.fromMillis(lastModified.toMillis() + 1000));
+        assertThat(storeObjects().getAddedObjectCount()).isEqualTo(1);
+        assertThat(locationsOf(Objects.aParseableCertificate())).isEmpty();
+        assertThat(locationsOf(modified)).containsExactly(REPOSITORY_URI + "cert.cer");
+
+        Files.delete(certificate.toPath());
+        assertThat(storeObjects().getAddedObjectCount()).isEqualTo(0);
+        assertThat(locationsOf(modified)).isEmpty();
+        assertThat(locationsOf(Objects.aParseableCrl())).containsExactly(REPOSITORY_URI + "crl.crl");
+    }
+
+    @Test
+    public void should_store_files_read_ahead_in_parallel() throws Exception {
+        // More files than the two batches that are read ahead, with parseable objects in the first and last batch
+        List<String> unparseable = new ArrayList<>();
+        for (int i = 0; i < 2500; ++i) {
+            File directory = new File(temporaryFolder.getRoot(), String.valueOf(i % 10));
+            directory.mkdirs();
+            String name = "object-" + i + (i == 5 ? ".crl" : ".cer");
+            if (i == 5) {
+                Files.write(new File(directory, name).toPath(), Objects.aParseableCrl());
+            } else if (i == 2200) {
+                Files.write(new File(directory, name).toPath(), Objects.aParseableCertificate());
+            } else {
+                Files.write(new File(directory, name).toPath(), ("not an object " + i).getBytes(StandardCharsets.US_ASCII));
+                unparseable.add(REPOSITORY_URI + (i % 10) + "/" + name);
+            }
+        }
+
+        RsyncRepositoryValidationRun validationRun = storeObjects();
+
+        assertThat(validationRun.getAddedObjectCount()).isEqualTo(2);
+        assertThat(locationsOf(Objects.aParseableCrl())).containsExactly(REPOSITORY_URI + "5/object-5.crl");
+        assertThat(locationsOf(Objects.aParseableCertificate())).containsExactly(REPOSITORY_URI + "0/object-2200.cer");
+        assertThat(validationRun.getValidationChecks())
+            .extracting(ValidationCheck::getLocation)
+            .containsExactlyInAnyOrderElementsOf(unparseable);
+    }
+
+    @Test
+    public void should_parse_files_when_the_stored_object_was_removed() throws Exception {
+        RpkiObject removed = new RpkiObject(REPOSITORY_URI + "removed.cer", CertificateRepositoryObjectFactory.createCertificateRepositoryObject(Objects.aParseableCertificate(), ValidationResult.withLocation("removed.cer")));
+        rpkiObjects.add(removed);
+        // The hash stays in the SHA-256 index until the removal is committed
+        rpkiObjects.remove(removed);
+        assertThat(rpkiObjects.isStoredSha256().test(Sha256.hash(Objects.aParseableCertificate()))).isTrue();
+
+        Files.write(new File(temporaryFolder.getRoot(), "cert.cer").toPath(), Objects.aParseableCertificate());
+
+        assertThat(storeObjects().getAddedObjectCount()).isEqualTo(1);
+        assertThat(locationsOf(Objects.aParseableCertificate())).containsExactly(REPOSITORY_URI + "cert.cer");
+    }
+
+    @Test
+    public void should_report_rsync_fetches_that_completed_exceptionally() {
+        CompletableFuture<RsyncFetcher.Result> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("rsync client bug"));
+        CompletableFuture<RsyncFetcher.Result> cancelled = new CompletableFuture<>();
+        cancelled.cancel(false);
+
+        for (CompletableFuture<RsyncFetcher.Result> fetch : Arrays.asList(failed, cancelled)) {
+            RsyncRepositoryValidationRun validationRun = new RsyncRepositoryValidationRun();
+            validationRuns.add(validationRun);
+            ValidationResult result = subject.processRsyncRepository(new HashSet<>(), validationRun, new HashMap<>(), Collections.singletonMap(URI.create(REPOSITORY_URI), fetch), repository);
+
+            assertThat(result.getFailuresForCurrentLocation()).extracting(net.ripe.rpki.commons.validation.ValidationCheck::getKey).containsExactly("rsync.repository.rsync.error");
+            assertThat(repository.isFailed()).isTrue();
+        }
+    }
+
+    @Test
+    public void should_skip_locations_below_an_already_queued_location() {
+        Set<URI> queued = new HashSet<>(Arrays.asList(URI.create("rsync://rpki.test/repository/"), URI.create("rsync://root.test/")));
+
+        assertThat(RpkiRepositoryValidationService.hasParentLocation(URI.create("rsync://rpki.test/repository/"), queued::contains)).isTrue();
+        assertThat(RpkiRepositoryValidationService.hasParentLocation(URI.create("rsync://rpki.test/repository/ca/child/"), queued::contains)).isTrue();
+        assertThat(RpkiRepositoryValidationService.hasParentLocation(URI.create("rsync://rpki.test/other/"), queued::contains)).isFalse();
+        assertThat(RpkiRepositoryValidationService.hasParentLocation(URI.create("rsync://other.test/repository/"), queued::contains)).isFalse();
+        assertThat(RpkiRepositoryValidationService.hasParentLocation(URI.create("rsync://root.test/repository/"), queued::contains)).isTrue();
+
+        // Locations without a path are the root of the host
+        assertThat(RpkiRepositoryValidationService.hasParentLocation(URI.create("rsync://root.test"), queued::contains)).isTrue();
+        assertThat(RpkiRepositoryValidationService.hasParentLocation(URI.create("rsync://rpki.test"), queued::contains)).isFalse();
+        assertThat(RpkiRepositoryValidationService.hasParentLocation(URI.create("rsync://rpki.test/../repository/"), queued::contains)).isFalse();
+    }
+
+    private RsyncRepositoryValidationRun storeObjects() throws Exception {
+        RsyncRepositoryValidationRun validationRun = new RsyncRepositoryValidationRun();
+        validationRuns.add(validationRun);
+        subject.storeObjects(temporaryFolder.getRoot(), validationRun, ValidationResult.withLocation(REPOSITORY_URI), repository);
+        return validationRun;
+    }
+
+    private Iterable<String> locationsOf(byte[] content) {
+        RpkiObject object = rpkiObjects.findBySha256(Sha256.hash(content)).get();
+        return object.getLocations();
+    }
+}
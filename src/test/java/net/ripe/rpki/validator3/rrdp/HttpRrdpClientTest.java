@@ -0,0 +1,373 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rrdp;
+
+import com.sun.net.httpserver.HttpServer;
+import net.ripe.rpki.validator3.util.BufferedContent;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the client against a local HTTP server. The server only speaks HTTP/1.1, so this also checks that
+ * plain HTTP requests do not hang when HTTP/2 is enabled. HTTP/2 itself is tested against a Jetty server over
+ * TLS, which is skipped when the JVM does not support ALPN.
+ */
+public class HttpRrdpClientTest {
+
+    private static final byte[] NOTIFICATION = "<notification/>".getBytes(StandardCharsets.UTF_8);
+    private static final String ETAG = "\"notification-1\"";
+
+    private HttpServer server;
+    private HttpRrdpClient subject;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/notification.xml", exchange -> {
+            requests.incrementAndGet();
+            if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                exchange.sendResponseHeaders(200, NOTIFICATION.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(NOTIFICATION);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+
+        subject = new HttpRrdpClient();
+        ReflectionTestUtils.setField(subject, "trustAllTlsCertificates", true);
+        ReflectionTestUtils.setField(subject, "http2Enabled", true);
+        ReflectionTestUtils.setField(subject, "http2ResponseTimeout", "PT1S");
+        ReflectionTestUtils.setField(subject, "http2FallbackDuration", "PT1H");
+        ReflectionTestUtils.setField(subject, "maxConnectionsPerDestination", 2);
+        ReflectionTestUtils.setField(subject, "maxConcurrentStreamsPerConnection", 8);
+        ReflectionTestUtils.setField(subject, "downloadMemoryThreshold", 4L);
+        ReflectionTestUtils.setField(subject, "downloadDirectory", Files.createTempDirectory("http-rrdp-client-test").toFile());
+        subject.postConstruct();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        subject.preDestroy();
+        server.stop(0);
+    }
+
+    @Test
+    public void should_download_body() throws IOException {
+        assertEquals(new String(NOTIFICATION, StandardCharsets.UTF_8), new String(download(uri()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void should_not_read_body_when_not_modified() {
+        final HttpCacheValidators validators = new HttpCacheValidators(null, null);
+        final Optional<byte[]> first = subject.readStreamIfModified(uri(), validators, this::readFully);
+        assertTrue(first.isPresent());
+        assertEquals(ETAG, validators.getEtag());
+
+        final Optional<byte[]> second = subject.readStreamIfModified(uri(), validators, this::readFully);
+        assertFalse(second.isPresent());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void should_download_concurrently_with_limited_connections() throws Exception {
+        final List<byte[]> bodies = IntStream.range(0, 20).parallel().mapToObj(i -> {
+            try (BufferedContent content = subject.download(uri()); InputStream in = content.openStream()) {
+                assertTrue(content.isFileBacked());
+                return StreamUtils.copyToByteArray(in);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }).collect(Collectors.toList());
+
+        assertEquals(20, bodies.size());
+        bodies.forEach(body -> assertEquals(NOTIFICATION.length, body.length));
+    }
+
+    @Test
+    public void should_download_over_http2() throws Exception {
+        assumeTrue("ALPN is not supported by this JVM", ReflectionTestUtils.getField(subject, "http2Client") != null);
+
+        final List<String> protocols = new CopyOnWriteArrayList<>();
+        final Server http2Server = newHttp2Server(protocols);
+        try {
+            final String uri = "https://127.0.0.1:" + ((ServerConnector) http2Server.getConnectors()[0]).getLocalPort() + "/notification.xml";
+
+            assertArrayEquals(NOTIFICATION, download(uri));
+            assertArrayEquals(NOTIFICATION, download(uri));
+            assertEquals(Arrays.asList("HTTP/2.0", "HTTP/2.0"), protocols);
+            assertEquals(Collections.emptyMap(), ReflectionTestUtils.getField(subject, "http1Origins"));
+        } finally {
+            http2Server.stop();
+        }
+    }
+
+    @Test
+    public void should_fall_back_to_http1_when_http2_request_hangs() throws Exception {
+        // The fallback does not depend on the protocol, so an HTTP/1.1 client stands in for the HTTP/2 client, which
+        // is only available when the JVM supports ALPN. The server never answers the requests of the stand-in.
+        final HttpClient http2Client = (HttpClient) ReflectionTestUtils.getField(subject, "http2Client");
+        if (http2Client != null) {
+            http2Client.stop();
+        }
+        final HttpClient standIn = new HttpClient(new SslContextFactory(true));
+        standIn.setUserAgentField(new HttpField(HttpHeader.USER_AGENT, TlsServer.UNANSWERED_USER_AGENT));
+        // Counted by the client, the request may time out before the server has read it
+        final AtomicInteger http2Requests = new AtomicInteger();
+        standIn.getRequestListeners().add(new Request.Listener.Adapter() {
+            @Override
+            public void onBegin(Request request) {
+                http2Requests.incrementAndGet();
+            }
+        });
+        standIn.start();
+        ReflectionTestUtils.setField(subject, "http2Client", standIn);
+
+        try (TlsServer tlsServer = new TlsServer()) {
+            final String uri = "https://127.0.0.1:" + tlsServer.getPort() + "/notification.xml";
+
+            assertArrayEquals(NOTIFICATION, download(uri));
+            assertEquals(1, http2Requests.get());
+            assertEquals(1, tlsServer.answered.get());
+
+            assertArrayEquals(NOTIFICATION, download(uri));
+            assertEquals("HTTP/1.1 is used directly while the fallback lasts", 1, http2Requests.get());
+            assertEquals(2, tlsServer.answered.get());
+
+            @SuppressWarnings("unchecked")
+            final Map<String, Instant> http1Origins = (Map<String, Instant>) ReflectionTestUtils.getField(subject, "http1Origins");
+            http1Origins.replaceAll((origin, until) -> Instant.now().minusSeconds(1));
+            assertArrayEquals(NOTIFICATION, download(uri));
+            assertEquals("HTTP/2 is tried again once the fallback expired", 2, http2Requests.get());
+            assertEquals(3, tlsServer.answered.get());
+        }
+    }
+
+    /**
+     * @return a started server that only accepts HTTP/2 over TLS, recording the protocol of every request
+     */
+    private static Server newHttp2Server(List<String> protocols) throws Exception {
+        final Server server = new Server();
+        final SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setSslContext(TlsServer.newSslContext());
+        sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+        final ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory("h2");
+        final ServerConnector connector = new ServerConnector(server,
+            new SslConnectionFactory(sslContextFactory, alpn.getProtocol()),
+            alpn,
+            new HTTP2ServerConnectionFactory(new HttpConfiguration()));
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, org.eclipse.jetty.server.Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                protocols.add(request.getProtocol());
+                response.setContentLength(NOTIFICATION.length);
+                response.getOutputStream().write(NOTIFICATION);
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private byte[] download(String uri) throws IOException {
+        try (BufferedContent content = subject.download(uri); InputStream in = content.openStream()) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+
+    private byte[] readFully(InputStream inputStream) {
+        try {
+            return StreamUtils.copyToByteArray(inputStream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String uri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/notification.xml";
+    }
+
+    /**
+     * HTTP/1.1 server over TLS that never answers requests with the {@link #UNANSWERED_USER_AGENT}, like a server
+     * that does not respond to HTTP/2 requests.
+     */
+    private static class TlsServer implements AutoCloseable {
+        static final String UNANSWERED_USER_AGENT = "unanswered";
+
+        private static final char[] PASSWORD = "password".toCharArray();
+
+        final AtomicInteger answered = new AtomicInteger();
+
+        private final SSLServerSocket serverSocket;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+        TlsServer() throws Exception {
+            serverSocket = (SSLServerSocket) newSslContext().getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            final Thread acceptor = new Thread(this::accept, "tls-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void accept() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    final Thread responder = new Thread(() -> respond(socket), "tls-server-responder");
+                    responder.setDaemon(true);
+                    responder.start();
+                } catch (IOException e) {
+                    // Closed, or a connection the client aborted before it was accepted
+                }
+            }
+        }
+
+        private void respond(Socket socket) {
+            try (Socket closing = socket) {
+                final BufferedReader in = new BufferedReader(new InputStreamReader(closing.getInputStream(), StandardCharsets.US_ASCII));
+                final OutputStream out = closing.getOutputStream();
+                boolean answer = true;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equalsIgnoreCase("User-Agent: " + UNANSWERED_USER_AGENT)) {
+                        answer = false;
+                    } else if (line.isEmpty() && answer) {
+                        answered.incrementAndGet();
+                        out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + NOTIFICATION.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                        out.write(NOTIFICATION);
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                // The client closed the connection
+            }
+        }
+
+        private static SSLContext newSslContext() throws Exception {
+            final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            final KeyPair keyPair = generator.generateKeyPair();
+            final X500Name name = new X500Name("CN=127.0.0.1");
+            final Date now = new Date();
+            final X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(name, BigInteger.ONE, now, new Date(now.getTime() + 86_400_000L), name, keyPair.getPublic())
+                    .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate()))
+            );
+
+            final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            keyStore.setKeyEntry("server", keyPair.getPrivate(), PASSWORD, new Certificate[]{certificate});
+            final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, PASSWORD);
+
+            final SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            return sslContext;
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -133,7 +133,7 @@ public class Objects {
 
     static byte[] notificationXml(long serial, String sessionId, SnapshotInfo snapshot, DeltaInfo... deltas) {
         final StringBuilder sb = new StringBuilder();
-        sb.append("<notification xmlns=\"HTTP://www.ripe.net/rpki/rrdp\" version=\"1\" session_id=\"").append(sessionId).append("\" serial=\"").append(serial).append("\">");
+        sb.append("<notification xmlns=\"http://www.ripe.net/rpki/rrdp\" version=\"1\" session_id=\"").append(sessionId).append("\" serial=\"").append(serial).append("\">");
         sb.append("    <snapshot uri=\"").append(escapeXml(snapshot.uri)).append("\" hash=\"").append(Hex.format(snapshot.hash)).append("\"/>");
         for (DeltaInfo di : deltas) {
             sb.append("  <delta uri=\"").append(escapeXml(di.uri)).append("\" hash=\"").append(Hex.format(di.hash)).append("\" serial=\"").append(di.serial).append("\"/>");
@@ -242,10 +242,10 @@ public class Objects {
         }
     }
 
-    private static class DeltaWithdraw extends Change {
+    static class DeltaWithdraw extends Change {
         public final byte[] hash;
 
-        private DeltaWithdraw(String uri, byte[] hash) {
+        DeltaWithdraw(String uri, byte[] hash) {
             super(uri);
             this.hash = hash;
         }
@@ -29,16 +29,25 @@
  */
 package net.ripe.rpki.validator3.rrdp;
 
+import net.ripe.rpki.validator3.util.BufferedContent;
+import net.ripe.rpki.validator3.util.Hex;
+import net.ripe.rpki.validator3.util.Sha256;
+
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 
 public class RrdpClientStub implements RrdpClient {
 
     private Map<String, byte[]> contents = new HashMap<>();
 
+    private Set<String> notModified = new HashSet<>();
+
     @Override
     public <T> T readStream(String uri, Function<InputStream, T> reader) {
         final byte[] bytes = contents.get(uri);
@@ -46,11 +55,25 @@ public class RrdpClientStub implements RrdpClient {
     }
 
     @Override
-    public byte[] getBody(String uri) {
-        return contents.get(uri);
+    public <T> Optional<T> readStreamIfModified(String uri, HttpCacheValidators validators, Function<InputStream, T> reader) {
+        if (notModified.contains(uri)) {
+            return Optional.empty();
+        }
+        validators.setEtag("\"" + Hex.format(Sha256.hash(contents.get(uri))) + "\"");
+        return Optional.of(readStream(uri, reader));
+    }
+
+    @Override
+    public BufferedContent download(String uri) {
+        return BufferedContent.of(contents.get(uri));
     }
 
     public void add(String uri, byte[] content) {
         contents.put(uri, content);
+        notModified.remove(uri);
+    }
+
+    public void notModified(String uri) {
+        notModified.add(uri);
     }
 }
@@ -0,0 +1,132 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rrdp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the streaming snapshot parser decodes a snapshot with the size of a large publication point.
+ * Every operation is one published object, so the GC profiler reports the allocation per object. The main method
+ * also reports the throughput in MB/s.
+ * <p>
+ * The snapshot is generated from the objects of the RIPE NCC repository in <code>rrdp/snapshot2.xml</code>, each
+ * published under many different URIs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(RrdpParserBenchmark.OBJECTS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RrdpParserBenchmark {
+
+    static final int OBJECTS = 20_000;
+
+    private byte[] snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        snapshot = generateSnapshot(OBJECTS);
+    }
+
+    @Benchmark
+    public SnapshotHeader parse(Blackhole blackhole) {
+        return new RrdpParser().snapshot(new ByteArrayInputStream(snapshot), blackhole::consume);
+    }
+
+    /**
+     * @return a snapshot of the given number of objects, formatted like the snapshots of the RIPE NCC repository
+     */
+    static byte[] generateSnapshot(int objects) throws IOException {
+        final List<SnapshotObject> templates = new ArrayList<>();
+        try (InputStream inputStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("rrdp/snapshot2.xml")) {
+            new RrdpParser().snapshot(inputStream, templates::add);
+        }
+
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(result, StandardCharsets.US_ASCII)) {
+            writer.write("<snapshot version=\"1\" session_id=\"" + UUID.randomUUID() + "\" serial=\"3442\" xmlns=\"" + RrdpParser.NAMESPACE + "\">\n");
+            for (int i = 0; i < objects; ++i) {
+                final SnapshotObject template = templates.get(i % templates.size());
+                final String name = template.getUri().substring(template.getUri().lastIndexOf('/') + 1);
+                writer.write("    <publish uri=\"rsync://rpki.ripe.net/repository/DEFAULT/" + String.format("%02x", i % 256) + "/" + i + "/1/" + name + "\">\n");
+                writer.write("        " + Base64.getEncoder().encodeToString(template.content) + "\n");
+                writer.write("    </publish>\n");
+            }
+            writer.write("</snapshot>\n");
+        }
+        return result.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        final double megabytesPerObject = generateSnapshot(OBJECTS).length / 1e6 / OBJECTS;
+        for (RunResult runResult : new Runner(new OptionsBuilder().include(RrdpParserBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run()) {
+            final double objectsPerSecond = runResult.getPrimaryResult().getScore();
+            System.out.printf("%.0f objects/s, %.1f MB/s%n", objectsPerSecond, objectsPerSecond * megabytesPerObject);
+            for (Map.Entry<String, Result> secondary : runResult.getSecondaryResults().entrySet()) {
+                if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+                    System.out.printf("%.0f bytes allocated per object%n", secondary.getValue().getScore());
+                }
+            }
+        }
+    }
+}
@@ -33,13 +33,22 @@ import com.pholser.junit.quickcheck.Property;
 import net.ripe.rpki.validator3.util.Hex;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class RrdpParserTest {
 
@@ -78,6 +87,98 @@ public class RrdpParserTest {
         assertEquals(0, notification.deltas.size());
     }
 
+    @Test
+    public void should_decode_base64_split_over_chunks_and_whitespace() {
+        final byte[] expected = new byte[1000];
+        new Random(42).nextBytes(expected);
+        for (int length : new int[]{0, 1, 2, 3, 998, 999, 1000}) {
+            final byte[] bytes = Arrays.copyOf(expected, length);
+            final char[] encoded = ("  \n" + Base64.getMimeEncoder().encodeToString(bytes) + "\n ").toCharArray();
+
+            final RrdpParser.Base64Content content = new RrdpParser.Base64Content();
+            for (int start = 0; start < encoded.length; start += 7) {
+                content.append(encoded, start, Math.min(7, encoded.length - start));
+            }
+            assertArrayEquals(bytes, content.decode("rsync://example.com/object.cer"));
+        }
+    }
+
+    @Test
+    public void should_reject_invalid_base64() {
+        for (String invalid : new String[]{"AAAA=AAA", "A", "AB=", "AB===", "ABC==", "ABCD=", "ABCD====", "===="}) {
+            final RrdpParser.Base64Content content = new RrdpParser.Base64Content();
+            final char[] encoded = invalid.toCharArray();
+            content.append(encoded, 0, encoded.length);
+            try {
+                content.decode("rsync://example.com/object.cer");
+                fail("invalid base64 " + invalid + " was accepted");
+            } catch (RrdpException expected) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void should_reject_invalid_element_before_reading_the_rest_of_the_file() {
+        final String xml = "<snapshot xmlns=\"http://www.ripe.net/rpki/rrdp\" version=\"1\" session_id=\"9df4b597-af9e-4dca-bdda-719cce2c4e28\" serial=\"1\">\n" +
+            "  <publish uri=\"rsync://host/path/a.cer\">AAAA</publish>\n" +
+            "  <publish uri=\"rsync://host/path/b.cer\"><publish uri=\"rsync://host/path/c.cer\">AAAA</publish></publish>\n" +
+            "  <publish uri=\"rsync://host/path/d.cer\">AAAA";
+        final List<SnapshotObject> objects = new ArrayList<>();
+        try {
+            new RrdpParser().snapshot(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), objects::add);
+            fail("snapshot with nested publish element was accepted");
+        } catch (RrdpException e) {
+            assertEquals("Invalid RRDP file, 'publish' element is not allowed in 'publish' element at line 3", e.getMessage());
+        }
+        assertEquals(1, objects.size());
+    }
+
+    @Test
+    public void should_reject_files_that_do_not_match_the_schema() {
+        final String header = "xmlns=\"http://www.ripe.net/rpki/rrdp\" version=\"1\" session_id=\"9df4b597-af9e-4dca-bdda-719cce2c4e28\" serial=\"1\"";
+        final String hash = "EEEA7F7AD96D85BBD1F7274FA7DA0025984A2AF3D5A0538F77BEC732ECB1B068";
+
+        assertInvalidSnapshot("<snapshot version=\"1\" session_id=\"9df4b597\" serial=\"1\"/>");
+        assertInvalidSnapshot("<snapshot xmlns=\"http://www.ripe.net/rpki/rrdp\" version=\"2\" session_id=\"9df4b597\" serial=\"1\"/>");
+        assertInvalidSnapshot("<snapshot xmlns=\"http://www.ripe.net/rpki/rrdp\" version=\"1\" session_id=\"not a uuid\" serial=\"1\"/>");
+        assertInvalidSnapshot("<snapshot xmlns=\"http://www.ripe.net/rpki/rrdp\" version=\"1\" session_id=\"9df4b597\" serial=\"0\"/>");
+        assertInvalidSnapshot("<snapshot xmlns=\"http://www.ripe.net/rpki/rrdp\" version=\"1\" session_id=\"9df4b597\" serial=\"-1\"/>");
+        assertInvalidSnapshot("<delta " + header + "/>");
+        assertInvalidSnapshot("<snapshot " + header + "><publish>AAAA</publish></snapshot>");
+        assertInvalidSnapshot("<snapshot " + header + "><publish uri=\"rsync://host/a b.cer\">AAAA</publish></snapshot>");
+        assertInvalidSnapshot("<snapshot " + header + "><publish uri=\"rsync://host/a.cer\" hash=\"" + hash + "\">AAAA</publish></snapshot>");
+        assertInvalidSnapshot("<snapshot " + header + "><publish uri=\"rsync://host/a.cer\">AA*A</publish></snapshot>");
+        assertInvalidSnapshot("<snapshot " + header + ">text<publish uri=\"rsync://host/a.cer\">AAAA</publish></snapshot>");
+
+        assertInvalid(() -> new RrdpParser().delta(xml("<delta " + header + "/>")));
+        assertInvalid(() -> new RrdpParser().delta(xml("<delta " + header + "><withdraw uri=\"rsync://host/a.cer\"/></delta>")));
+        assertInvalid(() -> new RrdpParser().delta(xml("<delta " + header + "><withdraw uri=\"rsync://host/a.cer\" hash=\"XYZ\"/></delta>")));
+
+        assertInvalid(() -> new RrdpParser().notification(xml("<notification " + header + "/>")));
+        assertInvalid(() -> new RrdpParser().notification(xml("<notification " + header + "><snapshot uri=\"https://host/snapshot.xml\" hash=\"" + hash + "\"/>" +
+            "<delta uri=\"https://host/delta.xml\" hash=\"" + hash + "\" serial=\"0\"/></notification>")));
+        assertInvalid(() -> new RrdpParser().notification(xml("<notification " + header + "><delta uri=\"https://host/delta.xml\" hash=\"" + hash + "\" serial=\"1\"/>" +
+            "<snapshot uri=\"https://host/snapshot.xml\" hash=\"" + hash + "\"/></notification>")));
+    }
+
+    private static void assertInvalidSnapshot(final String xml) {
+        assertInvalid(() -> new RrdpParser().snapshot(xml(xml)));
+    }
+
+    private static void assertInvalid(final Runnable parse) {
+        try {
+            parse.run();
+            fail("invalid RRDP file was accepted");
+        } catch (RrdpException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid RRDP file, "));
+        }
+    }
+
+    private static InputStream xml(final String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
     private static InputStream fileIS(String path) throws IOException {
         return Thread.currentThread().getContextClassLoader().getResourceAsStream(path);
     }
@@ -40,6 +40,7 @@ import net.ripe.rpki.validator3.domain.TrustAnchor;
 import net.ripe.rpki.validator3.domain.ValidationCheck;
 import net.ripe.rpki.validator3.util.Hex;
 import net.ripe.rpki.validator3.util.Sha256;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -48,12 +49,16 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 import javax.persistence.EntityManager;
 import javax.transaction.Transactional;
+import java.io.ByteArrayInputStream;
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(SpringRunner.class)
@@ -76,7 +81,12 @@ public class RrdpServiceTest {
 
     @Before
     public void setUp() throws Exception {
-        subject = new RrdpService(rrdpClient, rpkiObjectRepository);
+        subject = new RrdpService(rrdpClient, rpkiObjectRepository, 2, 2);
+    }
+
+    @After
+    public void tearDown() {
+        subject.shutdown();
     }
 
     @Test
@@ -139,6 +149,33 @@ public class RrdpServiceTest {
         assertTrue(objects.stream().anyMatch(o -> crl.uri.equals(o.getLocations().first())));
     }
 
+    @Test
+    public void should_skip_repository_when_notification_is_not_modified() {
+        final String sessionId = UUID.randomUUID().toString();
+        final Objects.Publish crl = new Objects.Publish("rsync://host/path/crl1.crl", Objects.aParseableCrl());
+        final byte[] snapshotXml = Objects.snapshotXml(1, sessionId, crl);
+        final Objects.SnapshotInfo snapshot = new Objects.SnapshotInfo("https://host/path/snapshot.xml", Sha256.hash(snapshotXml));
+        rrdpClient.add(snapshot.uri, snapshotXml);
+
+        final String notificationUri = "https://rrdp.ripe.net/notification.xml";
+        final byte[] notificationXml = Objects.notificationXml(1, sessionId, snapshot);
+        rrdpClient.add(notificationUri, notificationXml);
+
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        entityManager.persist(trustAnchor);
+        final RpkiRepository rpkiRepository = new RpkiRepository(trustAnchor, notificationUri, RpkiRepository.Type.RRDP);
+        entityManager.persist(rpkiRepository);
+
+        assertTrue(subject.storeRepository(rpkiRepository, new RrdpRepositoryValidationRun(rpkiRepository)));
+        assertEquals("\"" + Hex.format(Sha256.hash(notificationXml)) + "\"", rpkiRepository.getRrdpNotificationEtag());
+
+        rrdpClient.notModified(notificationUri);
+        final RrdpRepositoryValidationRun validationRun = new RrdpRepositoryValidationRun(rpkiRepository);
+        assertFalse(subject.storeRepository(rpkiRepository, validationRun));
+        assertEquals(0, validationRun.getValidationChecks().size());
+        assertEquals(BigInteger.ONE, rpkiRepository.getRrdpSerial());
+    }
+
     @Test
     public void should_parse_notification_verify_snapshot_hash() {
         final Objects.Publish cert = new Objects.Publish("rsync://host/path/cert.cer", Objects.aParseableCertificate());
@@ -179,6 +216,109 @@ public class RrdpServiceTest {
         assertEquals(rpkiRepository.getRrdpNotifyUri(), validationCheck.getLocation());
     }
 
+    @Test
+    public void should_roll_back_stored_snapshot_objects_when_snapshot_hash_does_not_match() {
+        final Objects.Publish crl = new Objects.Publish("rsync://host/path/crl1.crl", Objects.aParseableCrl());
+        final Objects.Publish cert = new Objects.Publish("rsync://host/path/cert.cer", Objects.aParseableCertificate());
+
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        entityManager.persist(trustAnchor);
+
+        final String notificationUri = "https://rrdp.ripe.net/notification.xml";
+        final RpkiRepository rpkiRepository = new RpkiRepository(trustAnchor, notificationUri, RpkiRepository.Type.RRDP);
+        entityManager.persist(rpkiRepository);
+
+        final String sessionId = UUID.randomUUID().toString();
+        subject.storeSnapshot(new RrdpParser().snapshot(new ByteArrayInputStream(Objects.snapshotXml(1, sessionId, crl))), new RrdpRepositoryValidationRun(rpkiRepository));
+
+        final byte[] snapshotXml = Objects.snapshotXml(2, sessionId, crl, cert);
+        final Objects.SnapshotInfo snapshot = new Objects.SnapshotInfo("https://host/path/snapshot.xml", Hex.parse("FFFFFF"));
+        rrdpClient.add(snapshot.uri, snapshotXml);
+        rrdpClient.add(notificationUri, Objects.notificationXml(2, sessionId, snapshot));
+
+        final RrdpRepositoryValidationRun validationRun = new RrdpRepositoryValidationRun(rpkiRepository);
+        subject.storeRepository(rpkiRepository, validationRun);
+
+        assertEquals(1, validationRun.getValidationChecks().size());
+        assertEquals("rrdp.error", validationRun.getValidationChecks().get(0).getKey());
+        assertEquals(0, validationRun.getAddedObjectCount());
+
+        final List<RpkiObject> objects = rpkiObjects.all().collect(Collectors.toList());
+        assertEquals(1, objects.size());
+        assertEquals(Sets.newHashSet(crl.uri), objects.get(0).getLocations());
+    }
+
+    @Test
+    public void should_roll_back_stored_snapshot_batches_when_the_snapshot_is_broken() {
+        // More objects than are stored in a single batch, so objects are stored before the snapshot turns out broken
+        final Objects.Publish[] publishes = TestObjects.newCrls(1500).stream()
+            .map(crl -> new Objects.Publish("rsync://host/path/" + crl.getNumber() + ".crl", crl.getEncoded()))
+            .toArray(Objects.Publish[]::new);
+
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        entityManager.persist(trustAnchor);
+
+        final String notificationUri = "https://rrdp.ripe.net/notification.xml";
+        final RpkiRepository rpkiRepository = new RpkiRepository(trustAnchor, notificationUri, RpkiRepository.Type.RRDP);
+        entityManager.persist(rpkiRepository);
+
+        final String sessionId = UUID.randomUUID().toString();
+        final byte[] snapshotXml = Objects.snapshotXml(1, sessionId, publishes);
+        final byte[] truncated = Arrays.copyOf(snapshotXml, snapshotXml.length - 100);
+        final Objects.SnapshotInfo snapshot = new Objects.SnapshotInfo("https://host/path/snapshot.xml", Sha256.hash(truncated));
+        rrdpClient.add(snapshot.uri, truncated);
+        rrdpClient.add(notificationUri, Objects.notificationXml(1, sessionId, snapshot));
+
+        final RrdpRepositoryValidationRun validationRun = new RrdpRepositoryValidationRun(rpkiRepository);
+        subject.storeRepository(rpkiRepository, validationRun);
+
+        assertEquals(1, validationRun.getValidationChecks().size());
+        assertEquals("rrdp.error", validationRun.getValidationChecks().get(0).getKey());
+        assertEquals(0, validationRun.getAddedObjectCount());
+        assertEquals(0, rpkiObjects.all().count());
+    }
+
+    @Test
+    public void should_reject_snapshot_with_other_session_id_than_the_notification() {
+        final String sessionId = UUID.randomUUID().toString();
+        final String otherSessionId = UUID.randomUUID().toString();
+        final RpkiRepository rpkiRepository = storeRepositoryWithSnapshot(otherSessionId, 1, sessionId, 1, "Session id of the snapshot (https://host/path/snapshot.xml) is " + otherSessionId + ", but notification file says " + sessionId);
+        assertNull(rpkiRepository.getRrdpSessionId());
+    }
+
+    @Test
+    public void should_reject_snapshot_with_other_serial_than_the_notification() {
+        final String sessionId = UUID.randomUUID().toString();
+        final RpkiRepository rpkiRepository = storeRepositoryWithSnapshot(sessionId, 2, sessionId, 1, "Serial of the snapshot (https://host/path/snapshot.xml) is 2, but notification file says 1");
+        assertNull(rpkiRepository.getRrdpSessionId());
+    }
+
+    private RpkiRepository storeRepositoryWithSnapshot(String snapshotSessionId, int snapshotSerial, String notificationSessionId, int notificationSerial, String expectedError) {
+        final Objects.Publish crl = new Objects.Publish("rsync://host/path/crl1.crl", Objects.aParseableCrl());
+
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        entityManager.persist(trustAnchor);
+
+        final String notificationUri = "https://rrdp.ripe.net/notification.xml";
+        final RpkiRepository rpkiRepository = new RpkiRepository(trustAnchor, notificationUri, RpkiRepository.Type.RRDP);
+        entityManager.persist(rpkiRepository);
+
+        final byte[] snapshotXml = Objects.snapshotXml(snapshotSerial, snapshotSessionId, crl);
+        final Objects.SnapshotInfo snapshot = new Objects.SnapshotInfo("https://host/path/snapshot.xml", Sha256.hash(snapshotXml));
+        rrdpClient.add(snapshot.uri, snapshotXml);
+        rrdpClient.add(notificationUri, Objects.notificationXml(notificationSerial, notificationSessionId, snapshot));
+
+        final RrdpRepositoryValidationRun validationRun = new RrdpRepositoryValidationRun(rpkiRepository);
+        subject.storeRepository(rpkiRepository, validationRun);
+
+        assertEquals(1, validationRun.getValidationChecks().size());
+        assertEquals("rrdp.error", validationRun.getValidationChecks().get(0).getKey());
+        assertEquals(expectedError, validationRun.getValidationChecks().get(0).getParameters().get(0));
+        assertEquals(0, validationRun.getAddedObjectCount());
+        assertEquals(0, rpkiObjects.all().count());
+        return rpkiRepository;
+    }
+
     @Test
     public void should_parse_notification_use_delta() {
         final byte[] certificate = Objects.aParseableCertificate();
@@ -216,6 +356,42 @@ public class RrdpServiceTest {
         assertEquals(1, objects.size());
     }
 
+    @Test
+    public void should_parse_notification_and_apply_multiple_deltas_in_order() {
+        final String sessionId = UUID.randomUUID().toString();
+        final byte[] emptySnapshotXml = Objects.snapshotXml(4, sessionId);
+
+        final Objects.SnapshotInfo emptySnapshot = new Objects.SnapshotInfo("https://host/path/snapshot.xml", Sha256.hash(emptySnapshotXml));
+        rrdpClient.add(emptySnapshot.uri, emptySnapshotXml);
+
+        final byte[] deltaXml1 = Objects.deltaXml(2, sessionId, new Objects.DeltaPublish("rsync://host/path/cert.cer", Objects.aParseableCertificate()));
+        final byte[] deltaXml2 = Objects.deltaXml(3, sessionId, new Objects.DeltaPublish("rsync://host/path/crl1.crl", Objects.aParseableCrl()));
+        final byte[] deltaXml3 = Objects.deltaXml(4, sessionId, new Objects.DeltaPublish("rsync://host/path/manifest.mft", Objects.aValidManifest()));
+
+        final Objects.DeltaInfo deltaInfo1 = new Objects.DeltaInfo("https://host/path/delta1.xml", Sha256.hash(deltaXml1), 2);
+        final Objects.DeltaInfo deltaInfo2 = new Objects.DeltaInfo("https://host/path/delta2.xml", Sha256.hash(deltaXml2), 3);
+        final Objects.DeltaInfo deltaInfo3 = new Objects.DeltaInfo("https://host/path/delta3.xml", Sha256.hash(deltaXml3), 4);
+        rrdpClient.add(deltaInfo1.uri, deltaXml1);
+        rrdpClient.add(deltaInfo2.uri, deltaXml2);
+        rrdpClient.add(deltaInfo3.uri, deltaXml3);
+
+        final String notificationUri = "https://rrdp.ripe.net/notification.xml";
+        rrdpClient.add(notificationUri, Objects.notificationXml(4, sessionId, emptySnapshot, deltaInfo3, deltaInfo1, deltaInfo2));
+
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        entityManager.persist(trustAnchor);
+
+        final RpkiRepository rpkiRepository = makeRpkiRepository(sessionId, notificationUri, trustAnchor);
+
+        final RrdpRepositoryValidationRun validationRun = new RrdpRepositoryValidationRun(rpkiRepository);
+        subject.storeRepository(rpkiRepository, validationRun);
+        assertEquals(0, validationRun.getValidationChecks().size());
+        assertEquals(BigInteger.valueOf(4), rpkiRepository.getRrdpSerial());
+
+        final List<RpkiObject> objects = rpkiObjects.all().collect(Collectors.toList());
+        assertEquals(3, objects.size());
+    }
+
     @Test
     public void should_parse_notification_use_decline_delta_with_different_session_id_and_fallback_to_snapshot() {
         final byte[] certificate = Objects.aParseableCertificate();
@@ -268,6 +444,38 @@ public class RrdpServiceTest {
         assertEquals(Sets.newHashSet("rsync://host/path/crl1.crl"), rpkiObject.getLocations());
     }
 
+    @Test
+    public void should_apply_delta_location_changes_in_bulk() {
+        final TrustAnchor trustAnchor = TestObjects.newTrustAnchor();
+        entityManager.persist(trustAnchor);
+        final RpkiRepository rpkiRepository = new RpkiRepository(trustAnchor, "https://host/notification.xml", RpkiRepository.Type.RRDP);
+        entityManager.persist(rpkiRepository);
+        final RrdpRepositoryValidationRun validationRun = new RrdpRepositoryValidationRun(rpkiRepository);
+
+        final String sessionId = UUID.randomUUID().toString();
+        final Objects.Publish cert = new Objects.Publish("rsync://host/path/cert.cer", Objects.aParseableCertificate());
+        final Objects.Publish crl = new Objects.Publish("rsync://host/path/crl1.crl", Objects.aParseableCrl());
+        subject.storeSnapshot(new RrdpParser().snapshot(new ByteArrayInputStream(Objects.snapshotXml(1, sessionId, cert, crl))), validationRun);
+
+        final byte[] manifest = Objects.aValidManifest();
+        final byte[] deltaXml = Objects.deltaXml(2, sessionId,
+            new Objects.DeltaWithdraw(crl.uri, Sha256.hash(crl.content)),
+            new Objects.DeltaPublish("rsync://host/path/copy.cer", cert.content),
+            new Objects.DeltaPublish(cert.uri, Sha256.hash(cert.content), manifest),
+            new Objects.DeltaPublish("rsync://host/path/manifest.mft", manifest),
+            new Objects.DeltaWithdraw("rsync://host/path/unknown.roa", Sha256.hash(new byte[]{1}))
+        );
+        subject.storeDelta(new RrdpParser().delta(new ByteArrayInputStream(deltaXml)), validationRun);
+
+        assertEquals(Sets.newHashSet("rsync://host/path/copy.cer"), rpkiObjects.findBySha256(Sha256.hash(cert.content)).get().getLocations());
+        assertEquals(Sets.newHashSet(), rpkiObjects.findBySha256(Sha256.hash(crl.content)).get().getLocations());
+        assertEquals(Sets.newHashSet(cert.uri, "rsync://host/path/manifest.mft"), rpkiObjects.findBySha256(Sha256.hash(manifest)).get().getLocations());
+        assertEquals(3, rpkiObjects.all().count());
+
+        assertEquals(1, validationRun.getValidationChecks().size());
+        assertEquals("rrdp.withdraw.nonexistent.object", validationRun.getValidationChecks().get(0).getKey());
+    }
+
     @Test
     public void should_parse_notification_use_delta_add_and_replace_an_object() {
         final byte[] certificate = Objects.aParseableCertificate();
@@ -314,7 +522,7 @@ public class RrdpServiceTest {
         final Objects.Publish crl = new Objects.Publish("rsync://host/path/crl1.crl", Objects.aParseableCrl());
         rrdpClient.add(crl.uri, crl.content);
 
-        final byte[] snapshotXml = Objects.snapshotXml(3, sessionId, crl);
+        final byte[] snapshotXml = Objects.snapshotXml(4, sessionId, crl);
 
         final Objects.SnapshotInfo emptySnapshot = new Objects.SnapshotInfo("https://host/path/snapshot.xml", Sha256.hash(snapshotXml));
         rrdpClient.add(emptySnapshot.uri, snapshotXml);
@@ -0,0 +1,445 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rsync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RsyncClientTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private RsyncClient client = new RsyncClient(Duration.ofSeconds(5));
+
+    private Path repository;
+    private File target;
+    private StubRsyncDaemon daemon;
+
+    @Before
+    public void setUp() throws IOException {
+        File module = temporaryFolder.newFolder("module");
+        repository = module.toPath().resolve("repository");
+        target = new File(temporaryFolder.getRoot(), "target");
+
+        writeFile("ta.cer", "trust anchor certificate", 1_500_000_000L);
+        writeFile("ca/manifest.mft", "manifest", 1_500_000_100L);
+        writeFile("ca/roa.roa", "route origin authorization", 1_500_000_100L);
+        writeFile("ca/sub-ca/revocations.crl", "revocation list", 1_500_000_200L);
+        writeFile("ca.cer", "certificate", 1_500_000_300L);
+
+        daemon = new StubRsyncDaemon("module", module.toPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        daemon.close();
+    }
+
+    @Test
+    public void should_fetch_directory_recursively() throws IOException {
+        int transferred = client.fetch(daemon.uri("repository/"), target, deadline());
+
+        assertThat(transferred).isEqualTo(5);
+        assertThat(listFiles(target.toPath())).containsExactly("ca.cer", "ca/manifest.mft", "ca/roa.roa", "ca/sub-ca/revocations.crl", "ta.cer");
+        assertThat(new String(Files.readAllBytes(target.toPath().resolve("ca/roa.roa")), StandardCharsets.UTF_8)).isEqualTo("route origin authorization");
+        assertThat(Files.getLastModifiedTime(target.toPath().resolve("ca/sub-ca/revocations.crl")).to(TimeUnit.SECONDS)).isEqualTo(1_500_000_200L);
+    }
+
+    @Test
+    public void should_only_transfer_modified_files_and_delete_removed_files() throws IOException {
+        client.fetch(daemon.uri("repository/"), target, deadline());
+        daemon.requested.clear();
+
+        writeFile("ca/manifest.mft", "updated manifest", 1_500_000_400L);
+        Files.delete(repository.resolve("ca/roa.roa"));
+        Files.write(target.toPath().resolve("extra.cer"), new byte[]{1});
+        Files.createDirectories(target.toPath().resolve("extra/directory"));
+
+        int transferred = client.fetch(daemon.uri("repository/"), target, deadline());
+
+        assertThat(transferred).isEqualTo(1);
+        assertThat(daemon.requested).containsExactly("ca/manifest.mft");
+        assertThat(listFiles(target.toPath())).containsExactly("ca.cer", "ca/manifest.mft", "ca/sub-ca/revocations.crl", "ta.cer");
+        assertThat(new String(Files.readAllBytes(target.toPath().resolve("ca/manifest.mft")), StandardCharsets.UTF_8)).isEqualTo("updated manifest");
+    }
+
+    @Test
+    public void should_fetch_single_file() throws IOException {
+        File file = new File(target, "ta/ta.cer");
+
+        int transferred = client.fetch(daemon.uri("repository/ta.cer"), file, deadline());
+
+        assertThat(transferred).isEqualTo(1);
+        assertThat(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).isEqualTo("trust anchor certificate");
+    }
+
+    @Test
+    public void should_fail_on_unknown_module() {
+        URI source = URI.create("rsync://127.0.0.1:" + daemon.serverSocket.getLocalPort() + "/unknown/repository/");
+
+        assertThatThrownBy(() -> client.fetch(source, target, deadline()))
+            .isInstanceOf(RsyncException.class)
+            .hasMessageContaining("Unknown module");
+    }
+
+    private void writeFile(String name, String content, long modificationTime) throws IOException {
+        Path file = repository.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.from(modificationTime, TimeUnit.SECONDS));
+    }
+
+    private static Instant deadline() {
+        return Instant.now().plusSeconds(30);
+    }
+
+    private static List<String> listFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files
+                .filter(Files::isRegularFile)
+                .map(file -> directory.relativize(file).toString().replace(File.separatorChar, '/'))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Serves a single module with the server side of rsync protocol version 29, sending the file list unsorted and
+     * the data in small multiplexed packets mixed with messages.
+     */
+    private static class StubRsyncDaemon implements AutoCloseable {
+        final ServerSocket serverSocket;
+        final String module;
+        final Path root;
+        final List<String> requested = Collections.synchronizedList(new ArrayList<>());
+        final Thread thread;
+
+        StubRsyncDaemon(String module, Path root) throws IOException {
+            this.module = module;
+            this.root = root;
+            this.serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+            this.thread = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try (Socket socket = serverSocket.accept()) {
+                        serve(socket);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }, "stub-rsync-daemon");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        URI uri(String path) {
+            return URI.create("rsync://127.0.0.1:" + serverSocket.getLocalPort() + "/" + module + "/" + path);
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        private void serve(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            writeLine(out, "@RSYNCD: 31.0 md5 md4");
+            out.flush();
+            assertThat(readLine(in)).isEqualTo("@RSYNCD: 29.0");
+            String requestedModule = readLine(in);
+            writeLine(out, "Welcome to the stub rsync daemon");
+            if (!module.equals(requestedModule)) {
+                writeLine(out, "@ERROR: Unknown module '" + requestedModule + "'");
+                out.flush();
+                return;
+            }
+            writeLine(out, "@RSYNCD: OK");
+            out.flush();
+
+            List<String> arguments = new ArrayList<>();
+            for (String line = readLine(in); !line.isEmpty(); line = readLine(in)) {
+                arguments.add(line);
+            }
+            assertThat(arguments.subList(0, 2)).containsExactly("--server", "--sender");
+            String path = arguments.get(arguments.size() - 1).substring(module.length() + 1);
+            Path source = root.resolve(path);
+
+            writeInt(out, 12345);
+            out.flush();
+            Multiplexer mux = new Multiplexer(out);
+
+            assertThat(readInt(in)).isEqualTo(0);
+
+            List<Entry> entries = new ArrayList<>();
+            if (Files.isDirectory(source)) {
+                try (Stream<Path> files = Files.walk(source)) {
+                    files.forEach(file -> entries.add(new Entry(source.relativize(file).toString(), file)));
+                }
+                entries.set(0, new Entry(".", source));
+            } else {
+                entries.add(new Entry(source.getFileName().toString(), source));
+            }
+            Collections.reverse(entries);
+            mux.message(RsyncClient.MSG_INFO, "building file list");
+            sendFileList(mux, entries);
+
+            entries.sort(Comparator.comparing(Entry::sortKey));
+            int phase = 0;
+            while (true) {
+                int ndx = readInt(in);
+                if (ndx == RsyncClient.NDX_DONE) {
+                    if (++phase > 2) {
+                        break;
+                    }
+                    mux.writeInt(RsyncClient.NDX_DONE);
+                    mux.flush();
+                    continue;
+                }
+                int flags = readShort(in);
+                for (int i = 0; i < 4; ++i) {
+                    assertThat(readInt(in)).isEqualTo(0);
+                }
+                Entry entry = entries.get(ndx);
+                requested.add(entry.name);
+
+                mux.writeInt(ndx);
+                mux.writeShort(flags);
+                for (int i = 0; i < 4; ++i) {
+                    mux.writeInt(0);
+                }
+                byte[] content = Files.readAllBytes(entry.file);
+                for (int offset = 0; offset < content.length; offset += 10) {
+                    int length = Math.min(10, content.length - offset);
+                    mux.writeInt(length);
+                    mux.write(content, offset, length);
+                }
+                mux.writeInt(0);
+                mux.write(new byte[16], 0, 16);
+                mux.message(RsyncClient.MSG_INFO, entry.name);
+                mux.flush();
+            }
+            mux.writeInt(RsyncClient.NDX_DONE);
+            for (int i = 0; i < 5; ++i) {
+                mux.writeInt(0);
+            }
+            mux.flush();
+            assertThat(readInt(in)).isEqualTo(RsyncClient.NDX_DONE);
+        }
+
+        private void sendFileList(Multiplexer mux, List<Entry> entries) throws IOException {
+            byte[] lastName = new byte[0];
+            long lastModificationTime = -1;
+            int lastMode = -1;
+            for (Entry entry : entries) {
+                byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+                int prefix = 0;
+                while (prefix < Math.min(Math.min(name.length, lastName.length), 255) && name[prefix] == lastName[prefix]) {
+                    prefix++;
+                }
+                int flags = RsyncClient.XMIT_EXTENDED_FLAGS;
+                flags |= prefix > 0 ? RsyncClient.XMIT_SAME_NAME : 0;
+                flags |= entry.modificationTime == lastModificationTime ? RsyncClient.XMIT_SAME_TIME : 0;
+                flags |= entry.mode == lastMode ? RsyncClient.XMIT_SAME_MODE : 0;
+                mux.writeByte(flags);
+                mux.writeByte(0);
+                if (prefix > 0) {
+                    mux.writeByte(prefix);
+                }
+                mux.writeByte(name.length - prefix);
+                mux.write(name, prefix, name.length - prefix);
+                mux.writeInt((int) entry.length);
+                if (entry.modificationTime != lastModificationTime) {
+                    mux.writeInt((int) entry.modificationTime);
+                }
+                if (entry.mode != lastMode) {
+                    mux.writeInt(entry.mode);
+                }
+                lastName = name;
+                lastModificationTime = entry.modificationTime;
+                lastMode = entry.mode;
+            }
+            mux.writeByte(0);
+            mux.writeInt(0);
+            mux.flush();
+        }
+
+        private static String readLine(DataInputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = in.read(); c != '\n'; c = in.read()) {
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        private static int readShort(DataInputStream in) throws IOException {
+            return in.readUnsignedByte() | in.readUnsignedByte() << 8;
+        }
+
+        private static int readInt(DataInputStream in) throws IOException {
+            return Integer.reverseBytes(in.readInt());
+        }
+
+        private static void writeLine(OutputStream out, String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static void writeInt(OutputStream out, int value) throws IOException {
+            for (int i = 0; i < 4; ++i) {
+                out.write(value >>> (8 * i));
+            }
+        }
+    }
+
+    private static class Entry {
+        final String name;
+        final Path file;
+        final long length;
+        final long modificationTime;
+        final int mode;
+
+        Entry(String name, Path file) {
+            try {
+                this.name = name.replace(File.separatorChar, '/');
+                this.file = file;
+                boolean directory = Files.isDirectory(file);
+                this.length = directory ? 0 : Files.size(file);
+                this.modificationTime = Files.getLastModifiedTime(file).to(TimeUnit.SECONDS);
+                this.mode = directory ? RsyncClient.S_IFDIR | 0755 : RsyncClient.S_IFREG | 0644;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Files sort before directories in the same directory and a directory sorts directly before its contents.
+         */
+        String sortKey() {
+            if (".".equals(name)) {
+                return "";
+            }
+            String[] components = name.split("/");
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < components.length; ++i) {
+                boolean directory = i < components.length - 1 || (mode & RsyncClient.S_IFMT) == RsyncClient.S_IFDIR;
+                key.append(directory ? '1' : '0').append(components[i]).append('\0');
+            }
+            return key.toString();
+        }
+    }
+
+    /**
+     * Writes data in packets of at most 7 bytes, to split integers and file data over packets.
+     */
+    private static class Multiplexer {
+        final OutputStream out;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        Multiplexer(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeByte(int value) {
+            data.write(value);
+        }
+
+        void writeShort(int value) {
+            data.write(value);
+            data.write(value >>> 8);
+        }
+
+        void writeInt(int value) {
+            for (int i = 0; i < 4; ++i) {
+                data.write(value >>> (8 * i));
+            }
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            data.write(bytes, offset, length);
+        }
+
+        void message(int code, String text) throws IOException {
+            writePackets();
+            writePacket(code, text.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        void flush() throws IOException {
+            writePackets();
+            out.flush();
+        }
+
+        private void writePackets() throws IOException {
+            byte[] bytes = data.toByteArray();
+            data.reset();
+            for (int offset = 0; offset < bytes.length; offset += 7) {
+                byte[] packet = new byte[Math.min(7, bytes.length - offset)];
+                System.arraycopy(bytes, offset, packet, 0, packet.length);
+                writePacket(RsyncClient.MSG_DATA, packet);
+            }
+        }
+
+        private void writePacket(int code, byte[] bytes) throws IOException {
+            StubRsyncDaemon.writeInt(out, (RsyncClient.MPLEX_BASE + code) << 24 | bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rsync;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RsyncFetcherTest {
+
+    private static final File TARGET = new File("target");
+
+    private RsyncFetcher subject;
+
+    @After
+    public void tearDown() {
+        if (subject != null) {
+            subject.shutdown();
+        }
+    }
+
+    @Test
+    public void should_run_one_fetch_per_host_at_a_time() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingQueue<URI> started = new LinkedBlockingQueue<>();
+        final Map<String, AtomicInteger> runningPerHost = new ConcurrentHashMap<>();
+        final Map<String, Integer> maximumPerHost = new ConcurrentHashMap<>();
+        subject = new RsyncFetcher(4, 1, Duration.ofMinutes(1), (source, target, deadline) -> {
+            final String host = source.getHost().toLowerCase(Locale.ROOT);
+            final int running = runningPerHost.computeIfAbsent(host, key -> new AtomicInteger()).incrementAndGet();
+            maximumPerHost.merge(host, running, Math::max);
+            started.add(source);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                runningPerHost.get(host).decrementAndGet();
+            }
+            return 1;
+        });
+
+        final List<CompletableFuture<RsyncFetcher.Result>> results = new ArrayList<>();
+        results.add(subject.fetch(URI.create("rsync://a.example.com/repository/1/"), TARGET, null));
+        results.add(subject.fetch(URI.create("rsync://A.example.com/repository/2/"), TARGET, null));
+        results.add(subject.fetch(URI.create("rsync://a.example.com/repository/3/"), TARGET, null));
+        results.add(subject.fetch(URI.create("rsync://b.example.com/repository/"), TARGET, null));
+
+        // The fetch from the other host does not wait for the fetches from the busy host
+        assertThat(Arrays.asList(started.poll(5, TimeUnit.SECONDS), started.poll(5, TimeUnit.SECONDS)))
+            .containsExactlyInAnyOrder(URI.create("rsync://a.example.com/repository/1/"), URI.create("rsync://b.example.com/repository/"));
+        assertThat(started.poll(100, TimeUnit.MILLISECONDS)).isNull();
+
+        release.countDown();
+        for (CompletableFuture<RsyncFetcher.Result> result : results) {
+            assertThat(result.get(5, TimeUnit.SECONDS).isSucceeded()).isTrue();
+        }
+        assertThat(maximumPerHost.get("a.example.com")).isEqualTo(1);
+        assertThat(maximumPerHost.get("b.example.com")).isEqualTo(1);
+    }
+
+    @Test
+    public void should_start_least_recently_fetched_targets_first() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<URI> started = Collections.synchronizedList(new ArrayList<>());
+        subject = new RsyncFetcher(1, 1, Duration.ofMinutes(1), (source, target, deadline) -> {
+            started.add(source);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return 1;
+        });
+
+        final Instant now = Instant.now();
+        final CompletableFuture<?> all = CompletableFuture.allOf(
+            subject.fetch(URI.create("rsync://example.com/running/"), TARGET, null),
+            subject.fetch(URI.create("rsync://example.com/recent/"), TARGET, now),
+            subject.fetch(URI.create("rsync://example.com/old/"), TARGET, now.minusSeconds(3600)),
+            subject.fetch(URI.create("rsync://example.com/never/"), TARGET, null)
+        );
+        release.countDown();
+
+        all.get(5, TimeUnit.SECONDS);
+        assertThat(started).containsExactly(
+            URI.create("rsync://example.com/running/"),
+            URI.create("rsync://example.com/never/"),
+            URI.create("rsync://example.com/old/"),
+            URI.create("rsync://example.com/recent/")
+        );
+    }
+
+    @Test
+    public void should_fetch_now_without_waiting_for_other_transfers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingQueue<Instant> deadlines = new LinkedBlockingQueue<>();
+        subject = new RsyncFetcher(1, 1, Duration.ofMinutes(1), (source, target, deadline) -> {
+            deadlines.add(deadline);
+            if (source.getPath().endsWith("/")) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return 1;
+        });
+
+        final CompletableFuture<RsyncFetcher.Result> repository = subject.fetch(URI.create("rsync://example.com/repository/"), TARGET, null);
+        assertThat(deadlines.poll(5, TimeUnit.SECONDS)).isNotNull();
+
+        final Instant before = Instant.now();
+        assertThat(subject.fetchNow(URI.create("rsync://example.com/ta/ta.cer"), TARGET).isSucceeded()).isTrue();
+        assertThat(deadlines.poll()).isAfterOrEqualTo(before.plus(Duration.ofMinutes(1)));
+        assertThat(repository.isDone()).isFalse();
+
+        release.countDown();
+        assertThat(repository.get(5, TimeUnit.SECONDS).isSucceeded()).isTrue();
+    }
+
+    @Test
+    public void should_report_transfers_that_time_out() throws Exception {
+        final BlockingQueue<Instant> deadlines = new LinkedBlockingQueue<>();
+        subject = new RsyncFetcher(1, 1, Duration.ofMinutes(10), (source, target, deadline) -> {
+            deadlines.add(deadline);
+            throw new SocketTimeoutException("rsync transfer did not complete before " + deadline);
+        });
+
+        final Instant before = Instant.now();
+        final RsyncFetcher.Result result = subject.fetch(URI.create("rsync://example.com/repository/"), TARGET, null).get(5, TimeUnit.SECONDS);
+
+        assertThat(result.isTimedOut()).isTrue();
+        assertThat(result.isSucceeded()).isFalse();
+        assertThat(deadlines.poll()).isBetween(before.plus(Duration.ofMinutes(10)), Instant.now().plus(Duration.ofMinutes(10)));
+
+        // The next fetch from the same host is not blocked by the transfer that timed out
+        assertThat(subject.fetch(URI.create("rsync://example.com/repository/"), TARGET, null).get(5, TimeUnit.SECONDS).isTimedOut()).isTrue();
+    }
+
+    @Test
+    public void should_complete_fetches_that_fail_with_an_error() throws Exception {
+        subject = new RsyncFetcher(1, 1, Duration.ofMinutes(1), (source, target, deadline) -> {
+            throw new OutOfMemoryError("rsync client");
+        });
+
+        final CompletableFuture<RsyncFetcher.Result> result = subject.fetch(URI.create("rsync://example.com/repository/"), TARGET, null);
+
+        assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(OutOfMemoryError.class);
+        // The fetch no longer counts as running, so the next fetch from the same host starts
+        final CompletableFuture<RsyncFetcher.Result> next = subject.fetch(URI.create("rsync://example.com/repository/"), TARGET, null);
+        assertThatThrownBy(() -> next.get(5, TimeUnit.SECONDS)).hasCauseInstanceOf(OutOfMemoryError.class);
+    }
+
+    @Test
+    public void should_complete_all_fetches_on_shutdown() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        subject = new RsyncFetcher(1, 1, Duration.ofMinutes(1), (source, target, deadline) -> {
+            started.countDown();
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return 1;
+        });
+
+        final CompletableFuture<RsyncFetcher.Result> running = subject.fetch(URI.create("rsync://example.com/running/"), TARGET, null);
+        final CompletableFuture<RsyncFetcher.Result> waiting = subject.fetch(URI.create("rsync://example.com/waiting/"), TARGET, null);
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        subject.shutdown();
+
+        assertThat(running.get(5, TimeUnit.SECONDS).isSucceeded()).isFalse();
+        assertThatThrownBy(() -> waiting.get(5, TimeUnit.SECONDS)).isInstanceOf(CancellationException.class);
+        assertThatThrownBy(() -> subject.fetch(URI.create("rsync://example.com/later/"), TARGET, null).get(5, TimeUnit.SECONDS)).isInstanceOf(CancellationException.class);
+    }
+
+    @Test
+    public void should_report_transfer_errors() throws Exception {
+        subject = new RsyncFetcher(1, 1, Duration.ofMinutes(1), (source, target, deadline) -> {
+            throw new RsyncException("@ERROR: Unknown module 'repository'");
+        });
+
+        final RsyncFetcher.Result result = subject.fetch(URI.create("rsync://example.com/repository/"), TARGET, null).get(5, TimeUnit.SECONDS);
+
+        assertThat(result.isTimedOut()).isFalse();
+        assertThat(result.getErrors()).hasSize(1).allMatch(error -> error.contains("Unknown module 'repository'"));
+    }
+}
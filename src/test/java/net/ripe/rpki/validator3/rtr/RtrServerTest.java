@@ -0,0 +1,225 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.rtr;
+
+import net.ripe.ipresource.IpRange;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefix;
+import net.ripe.rpki.validator3.domain.ValidatedRoaPrefixSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RtrServerTest {
+
+    private static final ValidatedRoaPrefix IPV4 = new ValidatedRoaPrefix(64512, IpRange.parse("10.0.0.0/8"), 24, "ta");
+    private static final ValidatedRoaPrefix IPV4_OTHER_TRUST_ANCHOR = new ValidatedRoaPrefix(64512, IpRange.parse("10.0.0.0/8"), 24, "other-ta");
+    private static final ValidatedRoaPrefix IPV6 = new ValidatedRoaPrefix(4294967295L, IpRange.parse("2001:db8::/32"), null, "ta");
+    private static final ValidatedRoaPrefix IPV4_ADDED = new ValidatedRoaPrefix(64513, IpRange.parse("192.168.0.0/16"), null, "ta");
+
+    private RtrCache rtrCache;
+    private RtrServer rtrServer;
+
+    @Before
+    public void setUp() throws IOException {
+        rtrCache = new RtrCache(() -> ValidatedRoaPrefixSet.of(Arrays.asList(IPV4, IPV4_OTHER_TRUST_ANCHOR, IPV6)), 2);
+        rtrServer = new RtrServer(rtrCache, true, "localhost", 0);
+        rtrServer.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        rtrServer.shutdown();
+    }
+
+    @Test
+    public void should_answer_reset_query_with_all_prefixes() throws IOException {
+        try (RtrClient client = new RtrClient()) {
+            client.send(Pdus.VERSION_1, Pdus.RESET_QUERY, 0, new byte[0]);
+
+            List<ByteBuffer> response = client.readResponse();
+
+            assertThat(types(response)).containsExactly(Pdus.CACHE_RESPONSE, Pdus.IPV4_PREFIX, Pdus.IPV6_PREFIX, Pdus.END_OF_DATA);
+            assertThat(prefix(response.get(1))).isEqualTo("1 AS64512 0a000000/8-24");
+            assertThat(prefix(response.get(2))).isEqualTo("1 AS4294967295 20010db8000000000000000000000000/32-32");
+            assertThat(response.get(3).getInt(8)).isEqualTo(0);
+            assertThat(response.get(3).getInt(12)).isEqualTo(Pdus.REFRESH_INTERVAL);
+        }
+    }
+
+    @Test
+    public void should_notify_and_answer_serial_query_with_changes() throws IOException {
+        try (RtrClient client = new RtrClient()) {
+            client.send(Pdus.VERSION_1, Pdus.RESET_QUERY, 0, new byte[0]);
+            short sessionId = client.readResponse().get(0).getShort(2);
+
+            rtrCache.update(ValidatedRoaPrefixSet.of(Arrays.asList(IPV4, IPV6)));
+            rtrCache.update(ValidatedRoaPrefixSet.of(Arrays.asList(IPV4_ADDED, IPV6)));
+
+            ByteBuffer notify = client.readPdu();
+            assertThat(notify.get(1)).isEqualTo((byte) Pdus.SERIAL_NOTIFY);
+            assertThat(notify.getShort(2)).isEqualTo(sessionId);
+
+            client.send(Pdus.VERSION_1, Pdus.SERIAL_QUERY, sessionId, ByteBuffer.allocate(4).putInt(0).array());
+            List<ByteBuffer> response = client.readResponse();
+            assertThat(types(response)).containsExactly(Pdus.CACHE_RESPONSE, Pdus.IPV4_PREFIX, Pdus.IPV4_PREFIX, Pdus.END_OF_DATA);
+            assertThat(prefix(response.get(1))).isEqualTo("0 AS64512 0a000000/8-24");
+            assertThat(prefix(response.get(2))).isEqualTo("1 AS64513 c0a80000/16-16");
+            assertThat(response.get(3).getInt(8)).isEqualTo(1);
+
+            client.send(Pdus.VERSION_1, Pdus.SERIAL_QUERY, sessionId, ByteBuffer.allocate(4).putInt(1).array());
+            assertThat(types(client.readResponse())).containsExactly(Pdus.CACHE_RESPONSE, Pdus.END_OF_DATA);
+        }
+    }
+
+    @Test
+    public void should_reset_routers_too_far_behind() throws IOException {
+        short sessionId = rtrCache.getState().getSessionId();
+        rtrCache.update(ValidatedRoaPrefixSet.of(Arrays.asList(IPV4)));
+        rtrCache.update(ValidatedRoaPrefixSet.of(Arrays.asList(IPV6)));
+        rtrCache.update(ValidatedRoaPrefixSet.of(Arrays.asList(IPV4_ADDED)));
+
+        try (RtrClient client = new RtrClient()) {
+            client.send(Pdus.VERSION_0, Pdus.SERIAL_QUERY, sessionId, ByteBuffer.allocate(4).putInt(0).array());
+            ByteBuffer reset = client.readPdu();
+            assertThat(reset.get(0)).isEqualTo((byte) Pdus.VERSION_0);
+            assertThat(reset.get(1)).isEqualTo((byte) Pdus.CACHE_RESET);
+
+            client.send(Pdus.VERSION_0, Pdus.SERIAL_QUERY, sessionId, ByteBuffer.allocate(4).putInt(1).array());
+            List<ByteBuffer> response = client.readResponse();
+            assertThat(types(response)).containsExactly(Pdus.CACHE_RESPONSE, Pdus.IPV4_PREFIX, Pdus.IPV4_PREFIX, Pdus.END_OF_DATA);
+            assertThat(response.get(1).get(0)).isEqualTo((byte) Pdus.VERSION_0);
+            assertThat(prefix(response.get(1))).isEqualTo("0 AS64512 0a000000/8-24");
+            assertThat(prefix(response.get(2))).isEqualTo("1 AS64513 c0a80000/16-16");
+            assertThat(response.get(3).limit()).isEqualTo(12);
+        }
+    }
+
+    @Test
+    public void should_not_cache_responses_for_unknown_serials() throws IOException {
+        short sessionId = rtrCache.getState().getSessionId();
+        try (RtrClient client = new RtrClient()) {
+            for (int serial = 1; serial <= 100; ++serial) {
+                client.send(Pdus.VERSION_1, Pdus.SERIAL_QUERY, sessionId, ByteBuffer.allocate(4).putInt(serial).array());
+                assertThat(client.readPdu().get(1)).isEqualTo((byte) Pdus.CACHE_RESET);
+            }
+        }
+
+        assertThat((Map<?, ?>) ReflectionTestUtils.getField(rtrCache.getState(), "serialResponses")).isEmpty();
+    }
+
+    @Test
+    public void should_report_unsupported_protocol_version() throws IOException {
+        try (RtrClient client = new RtrClient()) {
+            client.send(2, Pdus.RESET_QUERY, 0, new byte[0]);
+
+            ByteBuffer error = client.readPdu();
+            assertThat(error.get(0)).isEqualTo((byte) Pdus.HIGHEST_VERSION);
+            assertThat(error.get(1)).isEqualTo((byte) Pdus.ERROR_REPORT);
+            assertThat(error.getShort(2)).isEqualTo((short) Pdus.UNSUPPORTED_PROTOCOL_VERSION);
+            assertThat(client.input.read()).isEqualTo(-1);
+        }
+    }
+
+    private static List<Integer> types(List<ByteBuffer> pdus) {
+        List<Integer> result = new ArrayList<>();
+        pdus.forEach(pdu -> result.add((int) pdu.get(1)));
+        return result;
+    }
+
+    private static String prefix(ByteBuffer pdu) {
+        byte[] address = new byte[pdu.get(1) == Pdus.IPV4_PREFIX ? 4 : 16];
+        pdu.position(12);
+        pdu.get(address);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : address) {
+            hex.append(String.format("%02x", b));
+        }
+        return pdu.get(8) + " AS" + Integer.toUnsignedLong(pdu.getInt()) + " " + hex + "/" + pdu.get(9) + "-" + pdu.get(10);
+    }
+
+    private class RtrClient implements AutoCloseable {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final OutputStream output;
+
+        RtrClient() throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), rtrServer.getLocalPort());
+            socket.setSoTimeout(10000);
+            input = new DataInputStream(socket.getInputStream());
+            output = socket.getOutputStream();
+        }
+
+        void send(int version, int type, int sessionId, byte[] payload) throws IOException {
+            output.write(ByteBuffer.allocate(Pdus.HEADER_LENGTH + payload.length)
+                .put((byte) version)
+                .put((byte) type)
+                .putShort((short) sessionId)
+                .putInt(Pdus.HEADER_LENGTH + payload.length)
+                .put(payload)
+                .array());
+        }
+
+        ByteBuffer readPdu() throws IOException {
+            byte[] header = new byte[Pdus.HEADER_LENGTH];
+            input.readFully(header);
+            int length = ByteBuffer.wrap(header).getInt(4);
+            byte[] pdu = Arrays.copyOf(header, length);
+            input.readFully(pdu, Pdus.HEADER_LENGTH, length - Pdus.HEADER_LENGTH);
+            return ByteBuffer.wrap(pdu);
+        }
+
+        List<ByteBuffer> readResponse() throws IOException {
+            List<ByteBuffer> result = new ArrayList<>();
+            do {
+                result.add(readPdu());
+            } while (result.get(result.size() - 1).get(1) != Pdus.END_OF_DATA);
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
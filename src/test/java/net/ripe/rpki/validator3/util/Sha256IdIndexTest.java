@@ -0,0 +1,95 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.util;
+
+import com.pholser.junit.quickcheck.Property;
+import com.pholser.junit.quickcheck.generator.InRange;
+import com.pholser.junit.quickcheck.runner.JUnitQuickcheck;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnitQuickcheck.class)
+public class Sha256IdIndexTest {
+
+    @Property
+    public void keyRoundTrip(byte[] bytes) {
+        final byte[] sha256 = Sha256.hash(bytes);
+        final Sha256Key key = Sha256Key.of(sha256);
+        assertArrayEquals(sha256, key.toByteArray());
+        assertEquals(Hex.format(sha256), key.toString());
+        assertEquals(key, Sha256Key.of(sha256.clone()));
+        assertEquals(0, key.compareTo(Sha256Key.of(sha256.clone())));
+    }
+
+    @Property
+    public void keysAreOrderedLikeUnsignedBytes(byte[] a, byte[] b) {
+        final byte[] x = Sha256.hash(a);
+        final byte[] y = Sha256.hash(b);
+        assertEquals(Integer.signum(Hex.format(x).compareTo(Hex.format(y))), Integer.signum(Sha256Key.of(x).compareTo(Sha256Key.of(y))));
+    }
+
+    @Property
+    public void behavesLikeAMap(List<@InRange(minInt = 0, maxInt = 3000) Integer> puts, List<@InRange(minInt = 0, maxInt = 3000) Integer> removes) {
+        final Sha256IdIndex subject = new Sha256IdIndex();
+        final Map<Sha256Key, Long> expected = new HashMap<>();
+
+        for (int i = 0; i < puts.size(); ++i) {
+            final Sha256Key key = key(puts.get(i));
+            subject.put(key, i);
+            expected.put(key, (long) i);
+        }
+        for (Integer remove : removes) {
+            final Sha256Key key = key(remove);
+            final Long id = expected.get(key);
+            if (id != null) {
+                subject.remove(key, id);
+                expected.remove(key);
+            }
+        }
+
+        assertEquals(expected.size(), subject.size());
+        for (int i = 0; i <= 3000; ++i) {
+            final Sha256Key key = key(i);
+            assertEquals(expected.getOrDefault(key, Sha256IdIndex.NOT_FOUND).longValue(), subject.get(key));
+        }
+    }
+
+    private static Sha256Key key(int i) {
+        // Only the first word is used for hashing, so use few distinct values to get collisions
+        return Sha256Key.of(ByteBuffer.allocate(Sha256Key.LENGTH).putLong(i % 7).putLong(i).array());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * The BSD License
+ *
+ * Copyright (c) 2010-2018 RIPE NCC
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *   - Redistributions of source code must retain the above copyright notice,
+ *     this list of conditions and the following disclaimer.
+ *   - Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *   - Neither the name of the RIPE NCC nor the names of its contributors may be
+ *     used to endorse or promote products derived from this software without
+ *     specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ripe.rpki.validator3.util;
+
+import com.pholser.junit.quickcheck.Property;
+import com.pholser.junit.quickcheck.generator.InRange;
+import com.pholser.junit.quickcheck.runner.JUnitQuickcheck;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.util.StreamUtils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnitQuickcheck.class)
+public class SpillingOutputStreamTest {
+    @Property
+    public void contentIsTheSameInMemoryAndOnDisk(byte[] bytes, @InRange(minInt = 0, maxInt = 64) int threshold) throws Exception {
+        final File directory = Files.createTempDirectory("spilling-output-stream-test").toFile();
+        final SpillingOutputStream out = new SpillingOutputStream(threshold, directory);
+        out.write(bytes);
+
+        final File tempFile;
+        try (BufferedContent content = out.toContent()) {
+            assertEquals(bytes.length > threshold, content.isFileBacked());
+            assertEquals(bytes.length, content.getSize());
+            assertArrayEquals(Sha256.hash(bytes), content.getSha256());
+            try (InputStream in = content.openStream()) {
+                assertArrayEquals(bytes, StreamUtils.copyToByteArray(in));
+            }
+            final ByteBuffer buffer = content.asByteBuffer();
+            final byte[] mapped = new byte[buffer.remaining()];
+            buffer.get(mapped);
+            assertArrayEquals(bytes, mapped);
+            tempFile = directory.listFiles().length == 0 ? null : directory.listFiles()[0];
+        }
+
+        if (tempFile != null) {
+            assertFalse(tempFile.exists());
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void removeTemporaryFilesKeepsOtherFiles() throws Exception {
+        final File directory = Files.createTempDirectory("spilling-output-stream-test").toFile();
+        final SpillingOutputStream out = new SpillingOutputStream(0, directory);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        final File other = new File(directory, "other.tmp");
+        assertTrue(other.createNewFile());
+
+        assertEquals(1, SpillingOutputStream.removeTemporaryFiles(directory));
+        assertArrayEquals(new String[]{"other.tmp"}, directory.list());
+
+        other.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void removeTemporaryFilesIgnoresMissingDirectory() throws Exception {
+        final File directory = Files.createTempDirectory("spilling-output-stream-test").toFile();
+        directory.delete();
+
+        assertEquals(0, SpillingOutputStream.removeTemporaryFiles(directory));
+    }
+}